@@ -17,12 +17,20 @@
 
 package be.nabu.libs.dms.converters;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -31,8 +39,14 @@ import be.nabu.libs.dms.MemoryFileFragment;
 import be.nabu.libs.dms.api.Converter;
 import be.nabu.libs.dms.api.DocumentManager;
 import be.nabu.libs.dms.api.FormatException;
+import be.nabu.libs.dms.utils.BufferPool;
+import be.nabu.libs.dms.utils.ChunkedBuffer;
+import be.nabu.libs.dms.utils.ConverterStatistics;
+import be.nabu.libs.dms.utils.CountingOutputStream;
+import be.nabu.libs.dms.utils.DMSUtils;
+import be.nabu.libs.dms.utils.RingBuffer;
+import be.nabu.libs.dms.utils.SimpleDocumentManager;
 import be.nabu.libs.vfs.api.File;
-import be.nabu.utils.io.IOUtils;
 
 /**
  * Allows you to chain together multiple converters into a single converter
@@ -44,6 +58,7 @@ public class ChainConverter implements Converter {
 	private List<Converter> chain;
 	private List<String> fromContentTypes;
 	private String toContentType;
+	private ConverterStatistics statistics;
 	
 	public ChainConverter(List<Converter> chain) {
 		this.chain = chain;
@@ -54,16 +69,272 @@ public class ChainConverter implements Converter {
 	
 	@Override
 	public void convert(DocumentManager repository, File file, OutputStream output, Map<String, String> properties) throws IOException, FormatException {
-		byte [] result = null;
+		List<Converter> steps = chain;
+		SimpleDocumentManager manager = DMSUtils.getDocumentManager(repository);
+		// the intermediate result that is cached by this conversion (if any)
+		int cacheIndex = getCacheIndex(repository, file);
+		String cacheKey = null;
+		File cacheFile = null;
+		boolean versioned = false;
+		if (cacheIndex >= 0) {
+			// the intermediate result can depend on includes as well
+			String unversionedKey = getCacheKey(cacheIndex, properties);
+			cacheFile = manager.getCacheFile(file, chain.subList(0, cacheIndex + 1));
+			// the dependencies are recorded for the result of the whole chain
+			cacheKey = manager.getVersionedContentType(manager.getCacheFile(file, Arrays.<Converter>asList(this)), unversionedKey);
+			versioned = !cacheKey.equals(unversionedKey);
+			byte [] cached = manager.getCacheManager().getCached(cacheFile, cacheKey);
+			if (cached != null) {
+				logger.debug("Intermediate cache hit for {} to " + cacheKey, file);
+				file = new MemoryFileFragment(file, cached, "converted", chain.get(cacheIndex).getOutputContentType());
+				steps = chain.subList(cacheIndex + 1, chain.size());
+				cacheIndex = -1;
+			}
+		}
+		ExecutorService executor = manager == null || steps.size() < 2 ? null : manager.getPipelineExecutor();
+		Semaphore permits = executor == null ? null : manager.getPipelinePermits();
+		// the intermediate results of a pipeline are never available as a whole so they can not be cached
+		// every step but the last needs a thread of its own, if they are not available right away the chain runs sequentially instead of waiting
+		if (permits != null && permits.tryAcquire(steps.size() - 1)) {
+			try {
+				convertPipelined(repository, file, output, properties, steps, executor, manager.getPipelineBufferSize());
+			}
+			finally {
+				permits.release(steps.size() - 1);
+			}
+		}
+		else {
+			convertSequentially(repository, file, output, properties, steps, cacheIndex, cacheFile, cacheKey, versioned);
+		}
+	}
+	
+	/**
+	 * The intermediate results of the chain are cached if the document manager has a cache and the output of a step (except the last) is one of its intermediate content types.
+	 * If multiple steps qualify, the last one is cached as it saves the most work.
+	 * Files in memory (e.g. quotes or the results of other conversions) have no stable identity and are not cached.
+	 */
+	private int getCacheIndex(DocumentManager repository, File file) {
+		SimpleDocumentManager manager = DMSUtils.getDocumentManager(repository);
+		if (manager == null || file instanceof MemoryFileFragment || manager.getCacheManager() == null) {
+			return -1;
+		}
+		for (int i = chain.size() - 2; i >= 0; i--) {
+			if (manager.getIntermediateCacheContentTypes().contains(chain.get(i).getOutputContentType())) {
+				return i;
+			}
+		}
+		return -1;
+	}
+	
+	/**
+	 * The key contains the converters that make up the prefix so different routes to the same content type do not share results
+	 * Only the properties that are relevant to the prefix are taken into account so chains to different targets can share the result
+	 */
+	private String getCacheKey(int cacheIndex, Map<String, String> properties) {
+		StringBuilder prefix = new StringBuilder();
+		for (int i = 0; i <= cacheIndex; i++) {
+			prefix.append(chain.get(i).getClass().getName()).append(",");
+		}
+		return DMSUtils.getCacheContentType(chain.get(cacheIndex).getOutputContentType(), DMSUtils.getRelevantProperties(chain.subList(0, cacheIndex + 1), properties)) + ";chain=" + Integer.toHexString(prefix.toString().hashCode());
+	}
+	
+	/**
+	 * The intermediate results are kept in pooled buffers, each buffer is released once the next step has read it
+	 * If the cache key is not versioned, the dependencies of the file were not known when it was calculated: the intermediate result is only cached if it turns out to have none
+	 */
+	private void convertSequentially(DocumentManager repository, File file, OutputStream output, Map<String, String> properties, List<Converter> steps, int cacheIndex, File cacheFile, String cacheKey, boolean versioned) throws IOException, FormatException {
+		SimpleDocumentManager manager = DMSUtils.getDocumentManager(repository);
+		BufferPool pool = manager == null ? null : manager.getBufferPool();
+		ChunkedBuffer result = null;
 		String currentContentType = null;
-		for (Converter converter : chain) {
-			File fileToConvert = result == null ? file : new MemoryFileFragment(file, result, "converted", currentContentType);
-			ByteArrayOutputStream buffer = new ByteArrayOutputStream();
-			converter.convert(repository, fileToConvert, buffer, properties);
-			result = buffer.toByteArray();
-			currentContentType = converter.getOutputContentType();
+		long chainStarted = System.nanoTime();
+		int dependencies = DMSUtils.getDependencies(repository).size();
+		try {
+			for (int i = 0; i < steps.size(); i++) {
+				// a cancelled chain stops before the next step, the finally releases the buffer of the previous one
+				DMSUtils.checkCancelled(repository);
+				Converter converter = steps.get(i);
+				File fileToConvert = result == null ? file : getIntermediate(file, result, currentContentType);
+				ChunkedBuffer buffer = new ChunkedBuffer(pool);
+				long bytesIn = statistics == null ? -1 : fileToConvert.getSize();
+				long started = System.nanoTime();
+				try {
+					converter.convert(repository, fileToConvert, buffer, properties);
+				}
+				finally {
+					// the input is no longer needed, on failure neither is the output
+					if (result != null) {
+						result.release();
+					}
+					result = buffer;
+				}
+				if (statistics != null) {
+					statistics.record(converter, System.nanoTime() - started, bytesIn, buffer.size());
+				}
+				if (i == cacheIndex && (versioned || DMSUtils.getDependencies(repository).size() == dependencies)) {
+					logger.debug("Intermediate cache miss for {} to " + cacheKey, file);
+					DMSUtils.setCached(manager.getCacheManager(), cacheFile, cacheKey, buffer.toByteArray(), System.nanoTime() - chainStarted);
+				}
+				currentContentType = converter.getOutputContentType();
+			}
+			result.writeTo(output);
 		}
-		IOUtils.copyBytes(IOUtils.wrap(new ByteArrayInputStream(result)), IOUtils.wrap(output));
+		finally {
+			if (result != null) {
+				result.release();
+			}
+		}
+	}
+	
+	/**
+	 * Wraps the result of a step so the next step reads it straight from the buffer
+	 */
+	private static File getIntermediate(File file, final ChunkedBuffer buffer, String contentType) {
+		return new MemoryFileFragment(file, new byte[0], "converted", contentType) {
+			@Override
+			public InputStream getInputStream() {
+				return buffer.getInputStream();
+			}
+			@Override
+			public long getSize() {
+				return buffer.size();
+			}
+		};
+	}
+	
+	/**
+	 * Wraps the output of a pipelined step, it is streamed while it is being produced so it can only be read once and its size is unknown
+	 */
+	private static File getPipedIntermediate(File file, final RingBuffer buffer, String contentType) {
+		final AtomicBoolean opened = new AtomicBoolean(false);
+		return new MemoryFileFragment(file, new byte[0], "converted", contentType) {
+			@Override
+			public InputStream getInputStream() {
+				if (!opened.compareAndSet(false, true)) {
+					throw new IllegalStateException("The intermediate result of a pipelined conversion can only be read once");
+				}
+				return buffer.getInputStream();
+			}
+			@Override
+			public long getSize() {
+				return -1;
+			}
+		};
+	}
+	
+	/**
+	 * All the steps except the last one run on the executor, each step writes into a bounded buffer that is read by the next step.
+	 * The last step runs in the calling thread and writes directly to the output.
+	 * As the steps wait on one another, the cpu time of each step is recorded in the statistics instead of its duration.
+	 */
+	private void convertPipelined(final DocumentManager repository, final File file, OutputStream output, final Map<String, String> properties, List<Converter> converters, ExecutorService executor, int bufferSize) throws IOException, FormatException {
+		// the first exception that occurs in one of the steps, subsequent steps will usually fail because their input failed
+		final AtomicReference<Exception> failure = new AtomicReference<Exception>();
+		List<RingBuffer> buffers = new ArrayList<RingBuffer>();
+		List<Future<?>> steps = new ArrayList<Future<?>>();
+		// the cpu time and the size of the output of each step, -1 if unknown
+		final long [] nanos = new long[converters.size()];
+		final long [] bytesOut = new long[converters.size()];
+		Arrays.fill(nanos, -1);
+		Arrays.fill(bytesOut, -1);
+		try {
+			File fileToConvert = file;
+			for (int i = 0; i < converters.size() - 1; i++) {
+				final int index = i;
+				final Converter converter = converters.get(i);
+				final File input = fileToConvert;
+				final RingBuffer buffer = new RingBuffer(bufferSize);
+				buffers.add(buffer);
+				steps.add(executor.submit(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							DMSUtils.checkCancelled(repository);
+							CountingOutputStream counting = new CountingOutputStream(buffer.getOutputStream());
+							long started = DMSUtils.getCpuTime();
+							converter.convert(repository, input, counting, properties);
+							nanos[index] = getCpuTime(started);
+							bytesOut[index] = counting.getCount();
+							// only close on success, otherwise the next step could mistake the partial output for the full result
+							buffer.getOutputStream().close();
+						}
+						catch (Exception e) {
+							// if the next step has stopped reading, the output is no longer needed and the exception is irrelevant
+							if (!buffer.isAbandoned()) {
+								failure.compareAndSet(null, e);
+								buffer.fail(e);
+							}
+						}
+					}
+				}));
+				fileToConvert = getPipedIntermediate(file, buffer, converter.getOutputContentType());
+			}
+			try {
+				CountingOutputStream counting = new CountingOutputStream(output);
+				long started = DMSUtils.getCpuTime();
+				converters.get(converters.size() - 1).convert(repository, fileToConvert, counting, properties);
+				nanos[converters.size() - 1] = getCpuTime(started);
+				bytesOut[converters.size() - 1] = counting.getCount();
+			}
+			catch (Exception e) {
+				failure.compareAndSet(null, e);
+			}
+			// wait for the steps from last to first, once a step is done its input is no longer needed
+			// this releases a step that is still writing output that the next step did not read
+			for (int i = steps.size() - 1; i >= 0 && failure.get() == null; i--) {
+				buffers.get(i).getInputStream().close();
+				try {
+					steps.get(i).get();
+				}
+				catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException("Interrupted while waiting for the conversion");
+				}
+				catch (ExecutionException e) {
+					failure.compareAndSet(null, e.getCause() instanceof Exception ? (Exception) e.getCause() : e);
+				}
+			}
+		}
+		finally {
+			// unblock any step that is still writing and stop the ones that are still running
+			for (RingBuffer buffer : buffers) {
+				buffer.getInputStream().close();
+			}
+			for (Future<?> step : steps) {
+				step.cancel(true);
+			}
+		}
+		Exception exception = failure.get();
+		if (exception == null && statistics != null) {
+			// the input of a step is the output of the previous one, a step that stopped without failing is not measured
+			long bytesIn = file.getSize();
+			for (int i = 0; i < converters.size(); i++) {
+				if (nanos[i] >= 0) {
+					statistics.record(converters.get(i), nanos[i], bytesIn, bytesOut[i]);
+				}
+				bytesIn = bytesOut[i];
+			}
+		}
+		if (exception instanceof IOException) {
+			throw (IOException) exception;
+		}
+		else if (exception instanceof FormatException) {
+			throw (FormatException) exception;
+		}
+		else if (exception instanceof RuntimeException) {
+			throw (RuntimeException) exception;
+		}
+		else if (exception != null) {
+			throw new IOException(exception);
+		}
+	}
+
+	/**
+	 * The cpu time of the current thread since the given start or -1 if it can not be measured
+	 */
+	private static long getCpuTime(long started) {
+		long ended = started < 0 ? -1 : DMSUtils.getCpuTime();
+		return ended < 0 ? -1 : ended - started;
 	}
 
 	@Override
@@ -96,4 +367,15 @@ public class ChainConverter implements Converter {
 	public List<Converter> getChain() {
 		return chain;
 	}
+
+	public ConverterStatistics getStatistics() {
+		return statistics;
+	}
+
+	/**
+	 * If set, the duration and size of each step in the chain is recorded
+	 */
+	public void setStatistics(ConverterStatistics statistics) {
+		this.statistics = statistics;
+	}
 }
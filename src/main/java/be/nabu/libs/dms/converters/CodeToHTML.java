@@ -20,6 +20,7 @@ package be.nabu.libs.dms.converters;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
@@ -28,14 +29,13 @@ import java.util.UUID;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
-import be.nabu.libs.dms.api.Converter;
 import be.nabu.libs.dms.api.DocumentManager;
 import be.nabu.libs.dms.api.FormatException;
 import be.nabu.libs.dms.utils.FileUtils;
 import be.nabu.libs.vfs.api.File;
 import be.nabu.utils.io.IOUtils;
 
-public class CodeToHTML implements Converter {
+public class CodeToHTML implements PropertyAwareConverter, PathIndependentConverter {
 
 	@Override
 	public void convert(DocumentManager documentManager, File file, OutputStream output, Map<String, String> properties) throws IOException, FormatException {
@@ -183,6 +183,11 @@ public class CodeToHTML implements Converter {
 		"drop table"
 	};
 
+	@Override
+	public List<String> getRelevantProperties() {
+		return new ArrayList<String>();
+	}
+
 	@Override
 	public List<String> getContentTypes() {
 		return Arrays.asList(new String [] {
@@ -37,6 +37,10 @@ import be.nabu.libs.dms.MemoryFileFragment;
 import be.nabu.libs.dms.api.Converter;
 import be.nabu.libs.dms.api.DocumentManager;
 import be.nabu.libs.dms.api.FormatException;
+import be.nabu.libs.dms.utils.BatchContext;
+import be.nabu.libs.dms.utils.ConversionContext;
+import be.nabu.libs.dms.utils.DMSUtils;
+import be.nabu.libs.dms.utils.DependencyGraph.Dependency;
 import be.nabu.libs.resources.URIUtils;
 import be.nabu.libs.vfs.api.File;
 import be.nabu.utils.io.IOUtils;
@@ -50,6 +54,8 @@ abstract public class DXFConverter implements Converter {
 		Pattern quotePattern = Pattern.compile("(?s)<blockquote[^>]*format[\\s='\"]+([^'\"]+)[^>]*>(.*?)</blockquote>");
 		Matcher matcher = quotePattern.matcher(content);
 		while (matcher.find()) {
+			// every quote is a nested conversion
+			DMSUtils.checkCancelled(repository);
 			String targetType = matcher.group().replaceAll(quotePattern.pattern(), "$1");
 			String quote = matcher.group().replaceAll(quotePattern.pattern(), "$2");
 
@@ -79,6 +85,8 @@ abstract public class DXFConverter implements Converter {
 		Pattern pattern = Pattern.compile("<link[^>]*href[\\s='\"]+([^'\"]+)[^>]*/>");
 		Matcher matcher = pattern.matcher(content);
 		while(matcher.find()) {
+			// every include is a nested conversion that can take a while
+			DMSUtils.checkCancelled(repository);
 			// unescape the properties in the url
 			// they may have been escape in "general" escaping to prevent injection
 			String url = matcher.group().replaceAll(pattern.pattern(), "$1").replaceAll("[/]+$", "").replace("&amp;", "&");
@@ -102,6 +110,7 @@ abstract public class DXFConverter implements Converter {
 				byte[] bytes;
 				DataProperties dataProperties = repository.getDatastore(file).getProperties(uri);
 				InputStream retrieve = repository.getDatastore(file).retrieve(uri);
+				DMSUtils.addDependency(repository, uri);
 				try {
 					bytes = IOUtils.toBytes(IOUtils.wrap(retrieve));
 				}
@@ -122,37 +131,14 @@ abstract public class DXFConverter implements Converter {
 				
 				
 				logger.debug("Resolving link '" + link + "' from file " + file.getPath());
-				linkedFile = file.getParent().resolve(link);
-				logger.debug("Resolving link '" + link + "' against '" + file.getParent().getPath() + "': " + linkedFile.exists());
+				linkedFile = DMSUtils.resolve(repository, file.getParent(), link);
+				logger.debug("Resolving link '" + link + "' against '" + file.getParent().getPath() + "': " + linkedFile);
+				// also if it does not exist, the result changes once it does
+				DMSUtils.addDependency(repository, linkedFile);
 			}
 						
-			if (linkedFile.exists()) {
-				Converter converter = repository.getConverter(linkedFile.getContentType(), toContentType);
-				logger.debug("Converting " + linkedFile.getPath() + " / " + linkedFile.getContentType() + " to " + toContentType + " using converter: " + converter);
-				if (converter == null)
-					throw new FormatException("Could not find converter for include from '" + linkedFile.getContentType() + "' to '" + toContentType + "' for: " + matcher.group());
-				ByteArrayOutputStream output = new ByteArrayOutputStream();
-				converter.convert(repository, linkedFile, output, properties);
-				String replacement = new String(output.toByteArray(), "UTF-8");
-				
-				// shift the headers
-				if (properties.containsKey("h")) {
-					Integer shift = new Integer(properties.get("h"));
-					Pattern headerPattern = Pattern.compile("<h([1-7])>([^<]+)</h[1-7]>");
-					Matcher headerMatcher = headerPattern.matcher(replacement);
-					while(headerMatcher.find()) {
-						int current = new Integer(headerMatcher.group().replaceAll(headerPattern.pattern(), "$1"));
-						String replacementHeader = headerMatcher.group().replaceAll(headerPattern.pattern(), "$2");
-						current += shift;
-						replacement = replacement.replaceAll(Pattern.quote(headerMatcher.group()), Matcher.quoteReplacement("<h" + current + ">" + replacementHeader + "</h" + current + ">"));
-					}
-				}
-				
-				// do a recursive resolve of included files, but don't take quotes into account
-				Map<String, String> quotes = new HashMap<String, String>();
-				replacement = removeQuotes(replacement, quotes);
-				replacement = replaceIncludes(repository, linkedFile, replacement, toContentType, originalProperties);
-				replacement = addQuotes(replacement, quotes);
+			if (DMSUtils.exists(repository, linkedFile)) {
+				String replacement = getInclude(repository, linkedFile, toContentType, properties, originalProperties, matcher.group());
 				
 				// currently don't wrap anything in a span, it breaks css counters because a new counter is started for the span tag
 				// so need to fix that or find another solution
@@ -177,6 +163,56 @@ abstract public class DXFConverter implements Converter {
 		return content;
 	}
 	
+	/**
+	 * Within a batch, an included document is only converted once for each combination of target and properties, the other conversions reuse the result and its dependencies
+	 */
+	private String getInclude(DocumentManager repository, File linkedFile, String toContentType, Map<String, String> properties, Map<String, String> originalProperties, String reference) throws IOException, FormatException {
+		BatchContext batch = DMSUtils.getBatch(repository);
+		if (batch == null) {
+			return convertInclude(repository, linkedFile, toContentType, properties, originalProperties, reference);
+		}
+		String key = DMSUtils.getCacheContentType(linkedFile.getPath() + ";" + toContentType, properties) + ";" + DMSUtils.getCacheContentType("original", originalProperties);
+		BatchContext.Include include = batch.getInclude(key);
+		if (include == null) {
+			ConversionContext context = new ConversionContext(DMSUtils.getDocumentManager(repository), batch, DMSUtils.getCancellation(repository));
+			include = new BatchContext.Include(convertInclude(context, linkedFile, toContentType, properties, originalProperties, reference), context.getDependencies());
+			batch.putInclude(key, include);
+		}
+		for (Dependency dependency : include.getDependencies()) {
+			((ConversionContext) repository).addDependency(dependency);
+		}
+		return include.getContent();
+	}
+	
+	private String convertInclude(DocumentManager repository, File linkedFile, String toContentType, Map<String, String> properties, Map<String, String> originalProperties, String reference) throws IOException, FormatException {
+		Converter converter = repository.getConverter(linkedFile.getContentType(), toContentType);
+		logger.debug("Converting " + linkedFile.getPath() + " / " + linkedFile.getContentType() + " to " + toContentType + " using converter: " + converter);
+		if (converter == null)
+			throw new FormatException("Could not find converter for include from '" + linkedFile.getContentType() + "' to '" + toContentType + "' for: " + reference);
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		converter.convert(repository, linkedFile, output, properties);
+		String replacement = new String(output.toByteArray(), "UTF-8");
+		
+		// shift the headers
+		if (properties.containsKey("h")) {
+			Integer shift = new Integer(properties.get("h"));
+			Pattern headerPattern = Pattern.compile("<h([1-7])>([^<]+)</h[1-7]>");
+			Matcher headerMatcher = headerPattern.matcher(replacement);
+			while(headerMatcher.find()) {
+				int current = new Integer(headerMatcher.group().replaceAll(headerPattern.pattern(), "$1"));
+				String replacementHeader = headerMatcher.group().replaceAll(headerPattern.pattern(), "$2");
+				current += shift;
+				replacement = replacement.replaceAll(Pattern.quote(headerMatcher.group()), Matcher.quoteReplacement("<h" + current + ">" + replacementHeader + "</h" + current + ">"));
+			}
+		}
+		
+		// do a recursive resolve of included files, but don't take quotes into account
+		Map<String, String> quotes = new HashMap<String, String>();
+		replacement = removeQuotes(replacement, quotes);
+		replacement = replaceIncludes(repository, linkedFile, replacement, toContentType, originalProperties);
+		return addQuotes(replacement, quotes);
+	}
+	
 	protected String removeQuotes(String content, Map<String, String> quotes) {
 		Pattern quotePattern = Pattern.compile("(?s)<blockquote[^>]*format[\\s='\"]+([^'\"]+)[^>]*>(.*?)</blockquote>");
 		Matcher matcher = quotePattern.matcher(content);
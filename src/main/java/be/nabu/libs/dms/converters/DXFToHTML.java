@@ -31,6 +31,7 @@ import org.slf4j.LoggerFactory;
 
 import be.nabu.libs.dms.api.DocumentManager;
 import be.nabu.libs.dms.api.FormatException;
+import be.nabu.libs.dms.utils.DMSUtils;
 import be.nabu.libs.dms.utils.FileUtils;
 import be.nabu.libs.vfs.api.File;
 import be.nabu.utils.io.IOUtils;
@@ -44,11 +45,19 @@ public class DXFToHTML extends DXFConverter {
 	
 	@Override
 	public void convert(DocumentManager repository, File file, OutputStream output, Map<String, String> properties) throws IOException, FormatException {
-		String content = FileUtils.toString(file, "UTF-8");
-		
+		String content = toHTML(repository, file, FileUtils.toString(file, "UTF-8"), properties);
+		IOUtils.copyBytes(IOUtils.wrap(new ByteArrayInputStream(content.getBytes("UTF-8"))), IOUtils.wrap(output));
+	}
+	
+	/**
+	 * Converts the dxf content of the given file to html
+	 */
+	public String toHTML(DocumentManager repository, File file, String content, Map<String, String> properties) throws IOException, FormatException {
+		DMSUtils.checkCancelled(repository);
 		// transform the blockquotes
 		content = transformQuotes(repository, file, content, properties, false, getOutputContentType());
 		content = replaceIncludes(repository, file, content, getOutputContentType(), properties);
+		DMSUtils.checkCancelled(repository);
 		
 		// replace tabs
 		content = content.replaceAll("\t", TAB_SPACES);
@@ -59,7 +68,8 @@ public class DXFToHTML extends DXFConverter {
 		// replace internal links
 		if (properties != null && Boolean.TRUE.toString().equals(properties.get("embed"))) {
 			try {
-				content = DXFToSlides.embedImages(file, content);
+				content = DXFToSlides.embedImages(repository, file, content);
+				DMSUtils.checkCancelled(repository);
 			}
 			catch (MalformedURLException e) {
 				throw new RuntimeException(e);
@@ -71,8 +81,7 @@ public class DXFToHTML extends DXFConverter {
 			content = content.replaceAll("(?s)(href|src)([\\s'\"=]+)" + Pattern.quote(SCHEME_LINK) + ":", "$1$2/" + (viewPath == null ? "view" : viewPath));
 			content = content.replaceAll("(?s)(href|src)([\\s'\"=]+)" + Pattern.quote(SCHEME_STREAM) + ":", "$1$2/" + (downloadPath == null ? "download" : downloadPath));
 		}
-		
-		IOUtils.copyBytes(IOUtils.wrap(new ByteArrayInputStream(content.getBytes("UTF-8"))), IOUtils.wrap(output));
+		return content;
 	}
 
 	@Override
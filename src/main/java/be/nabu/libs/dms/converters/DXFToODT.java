@@ -55,6 +55,7 @@ import org.xml.sax.SAXException;
 
 import be.nabu.libs.dms.api.DocumentManager;
 import be.nabu.libs.dms.api.FormatException;
+import be.nabu.libs.dms.utils.DMSUtils;
 import be.nabu.libs.dms.utils.FileUtils;
 import be.nabu.libs.resources.URIUtils;
 import be.nabu.libs.vfs.api.File;
@@ -97,6 +98,7 @@ public class DXFToODT extends DXFConverter {
 		
 		System.out.println("BEFORE: " + content);
 		content = replaceIncludes(repository, file, content, DOCUMENT_EXCHANGE_FORMAT_CONTENT_TYPE, properties);
+		DMSUtils.checkCancelled(repository);
 		
 		// if the format does not have a converter to odt, just paste it verbatim
 		// this may use intermediate converters to convert blockquotes directly to odt format (a zip) which means blockquotes are their own zips, embedded in the text content of the parent
@@ -124,6 +126,8 @@ public class DXFToODT extends DXFConverter {
 			Matcher matcher = pattern.matcher(content);
 			int mediaCounter = 1;
 			while(matcher.find()) {
+				// every image is decoded and written to the zip
+				DMSUtils.checkCancelled(repository);
 				try {
 					String src = matcher.group().replaceAll(pattern.pattern(), "$2");
 					if (src.startsWith("data:"))
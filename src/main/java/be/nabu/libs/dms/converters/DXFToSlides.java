@@ -36,6 +36,7 @@ import java.util.regex.Pattern;
 
 import be.nabu.libs.dms.api.DocumentManager;
 import be.nabu.libs.dms.api.FormatException;
+import be.nabu.libs.dms.utils.DMSUtils;
 import be.nabu.libs.dms.utils.FileUtils;
 import be.nabu.libs.resources.URIUtils;
 import be.nabu.libs.vfs.api.File;
@@ -77,7 +78,8 @@ public class DXFToSlides extends DXFConverter {
 		
 		Pattern pattern;
 		Matcher matcher;
-		content = embedImages(file, content);
+		content = embedImages(documentManager, file, content);
+		DMSUtils.checkCancelled(documentManager);
 		
 		// replace spaces etc
 		content = content.replaceAll("\t", TAB_SPACES);
@@ -232,10 +234,19 @@ public class DXFToSlides extends DXFConverter {
 	}
 
 	public static String embedImages(File file, String content) throws IOException, MalformedURLException, FormatException {
+		return embedImages(null, file, content);
+	}
+	
+	/**
+	 * The local images that are embedded are recorded as dependencies of the conversion
+	 */
+	public static String embedImages(DocumentManager repository, File file, String content) throws IOException, MalformedURLException, FormatException {
 		// need to embed images
 		Pattern pattern = Pattern.compile("(<img[^>]+?src[\\s='\"]+)([^'\"]+)('|\")");
 		Matcher matcher = pattern.matcher(content);
 		while (matcher.find()) {
+			// every image is read and encoded in memory
+			DMSUtils.checkCancelled(repository);
 			String src = matcher.group().replaceAll(pattern.pattern(), "$2");
 			// already embedded
 			if (src.startsWith("data:"))
@@ -249,12 +260,14 @@ public class DXFToSlides extends DXFConverter {
 				// alternatively you could reference an image on a remote site (e.g. src="http://example.com/image.gif")
 				if (uri.getScheme().equals(SCHEME_STREAM)) {
 					File image = file.getParent().resolve(uri.getPath());
+					DMSUtils.addDependency(repository, image);
 					if (!image.exists()) {
 						throw new IOException("Could not find local image: " + image.getPath());
 					}
 					imageContent = image.getInputStream();
 				}
 				else {
+					DMSUtils.addDependency(repository, uri);
 					imageContent = uri.toURL().openStream();
 				}
 				
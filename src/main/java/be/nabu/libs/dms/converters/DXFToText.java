@@ -20,18 +20,18 @@ package be.nabu.libs.dms.converters;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
 
-import be.nabu.libs.dms.api.Converter;
 import be.nabu.libs.dms.api.DocumentManager;
 import be.nabu.libs.dms.api.FormatException;
 import be.nabu.libs.dms.utils.FileUtils;
 import be.nabu.libs.vfs.api.File;
 import be.nabu.utils.io.IOUtils;
 
-public class DXFToText implements Converter {
+public class DXFToText implements PropertyAwareConverter, PathIndependentConverter {
 
 	@Override
 	public void convert(DocumentManager repository, File file, OutputStream output, Map<String, String> properties) throws IOException, FormatException {
@@ -51,6 +51,11 @@ public class DXFToText implements Converter {
 		IOUtils.copyBytes(IOUtils.wrap(new ByteArrayInputStream(content.getBytes("UTF-8"))), IOUtils.wrap(output));
 	}
 
+	@Override
+	public List<String> getRelevantProperties() {
+		return new ArrayList<String>();
+	}
+
 	@Override
 	public List<String> getContentTypes() {
 		return Arrays.asList(DOCUMENT_EXCHANGE_FORMAT_CONTENT_TYPE);
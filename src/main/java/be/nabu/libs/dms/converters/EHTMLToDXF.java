@@ -27,6 +27,7 @@ import java.net.URI;
 import java.net.URL;
 import java.net.Proxy.Type;
 import java.net.URLConnection;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
@@ -34,9 +35,9 @@ import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import be.nabu.libs.datastore.api.WritableDatastore;
-import be.nabu.libs.dms.api.Converter;
 import be.nabu.libs.dms.api.DocumentManager;
 import be.nabu.libs.dms.api.FormatException;
+import be.nabu.libs.dms.utils.DMSUtils;
 import be.nabu.libs.dms.utils.FileUtils;
 import be.nabu.libs.resources.URIUtils;
 import be.nabu.libs.vfs.api.File;
@@ -45,7 +46,7 @@ import be.nabu.utils.codec.impl.Base64Decoder;
 import be.nabu.utils.io.ContentTypeMap;
 import be.nabu.utils.io.IOUtils;
 
-public class EHTMLToDXF implements Converter {
+public class EHTMLToDXF implements PropertyAwareConverter {
 
 	@Override
 	public void convert(DocumentManager documentManager, File file, OutputStream output, Map<String, String> properties) throws IOException, FormatException {
@@ -55,6 +56,7 @@ public class EHTMLToDXF implements Converter {
 		// 6 spaces = 1 tab, this is generated by the browser
 		html = html.replaceAll("      ", "\t");
 		html = html.replaceAll("&nbsp;", " ");
+		DMSUtils.checkCancelled(documentManager);
 		// externalize embedded images
 		html = unembedImages(documentManager, file, html);
 		
@@ -71,6 +73,8 @@ public class EHTMLToDXF implements Converter {
 			}
 			String src = matcher.group().replaceAll(pattern.pattern(), "$2");
 			if (src.startsWith("data:") || src.startsWith("http:") || src.startsWith("https:")) {
+				// every image is decoded or downloaded and stored
+				DMSUtils.checkCancelled(documentManager);
 				String mimeType = src.startsWith("data:") 
 					? src.replaceAll("^data:([^;]+).*", "$1")
 					: ContentTypeMap.getInstance().getContentTypeFor(src);
@@ -124,6 +128,11 @@ public class EHTMLToDXF implements Converter {
 		return content;
 	}
 
+	@Override
+	public List<String> getRelevantProperties() {
+		return new ArrayList<String>();
+	}
+
 	@Override
 	public List<String> getContentTypes() {
 		return Arrays.asList(new String [] { WikiToEHTML.EDITABLE_HTML });
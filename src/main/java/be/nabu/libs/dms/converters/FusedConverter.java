@@ -0,0 +1,32 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+package be.nabu.libs.dms.converters;
+
+import java.util.List;
+
+import be.nabu.libs.dms.api.Converter;
+
+/**
+ * A converter that produces the same result as a number of adjacent converters in a chain, but in a single pass.
+ * Fused converters are registered through SPI, whenever a route contains the converters they replace, the resolver substitutes them.
+ */
+public interface FusedConverter extends Converter {
+	/**
+	 * The classes of the converters that are replaced, in the order they appear in the chain
+	 */
+	public List<Class<? extends Converter>> getFusedConverters();
+}
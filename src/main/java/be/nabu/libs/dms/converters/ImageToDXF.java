@@ -24,14 +24,13 @@ import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
 
-import be.nabu.libs.dms.api.Converter;
 import be.nabu.libs.dms.api.DocumentManager;
 import be.nabu.libs.dms.api.FormatException;
 import be.nabu.libs.resources.URIUtils;
 import be.nabu.libs.vfs.api.File;
 import be.nabu.utils.io.IOUtils;
 
-public class ImageToDXF implements Converter {
+public class ImageToDXF implements PropertyAwareConverter {
 
 	@Override
 	public void convert(DocumentManager repository, File file, OutputStream output, Map<String, String> properties) throws IOException, FormatException {
@@ -53,6 +52,11 @@ public class ImageToDXF implements Converter {
 		IOUtils.copyBytes(IOUtils.wrap(new ByteArrayInputStream(image.getBytes("UTF-8"))), IOUtils.wrap(output));
 	}
 
+	@Override
+	public List<String> getRelevantProperties() {
+		return Arrays.asList(new String [] { "title", "alt", "float", "width", "height", "class" });
+	}
+
 	@Override
 	public List<String> getContentTypes() {
 		return Arrays.asList(new String[] { 
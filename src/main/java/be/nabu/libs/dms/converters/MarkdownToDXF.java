@@ -22,6 +22,7 @@ import java.util.List;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+import be.nabu.libs.dms.utils.CancellationToken;
 import be.nabu.utils.io.ContentTypeMap;
 
 public class MarkdownToDXF extends WikiToDXF {
@@ -46,7 +47,7 @@ public class MarkdownToDXF extends WikiToDXF {
 	public String replaceExternalLinks(String content) {
 		content = super.replaceExternalLinks(content);
 		Pattern pattern = Pattern.compile("(?<!\\\\)\\[([^|\\]]*)\\][\\s]*\\(([\\w]+:[^)]+|/[^)]+)\\)");
-		Matcher matcher = pattern.matcher(content);
+		Matcher matcher = pattern.matcher(CancellationToken.cancellable(content));
 		while(matcher.find()) {
 			String displayName = matcher.group().replaceAll(pattern.pattern(), "$1");
 			String link = matcher.group().replaceAll(pattern.pattern(), "$2");
@@ -86,7 +87,7 @@ public class MarkdownToDXF extends WikiToDXF {
 	public String replaceHeaders(String content) {
 		// find all the headers
 		Pattern pattern = Pattern.compile("(?m)^([#]{1,6})[\\s]*([^#\\r\\n]+)$");
-		Matcher matcher = pattern.matcher(content);
+		Matcher matcher = pattern.matcher(CancellationToken.cancellable(content));
 		while(matcher.find()) {
 			int level = matcher.group().replaceAll(pattern.pattern(), "$1").length();
 			String headerContent = matcher.group().replaceAll(pattern.pattern(), "$2");
@@ -22,6 +22,7 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
@@ -40,14 +41,13 @@ import org.w3c.dom.Element;
 import org.w3c.dom.NodeList;
 import org.xml.sax.SAXException;
 
-import be.nabu.libs.dms.api.Converter;
 import be.nabu.libs.dms.api.DocumentManager;
 import be.nabu.libs.dms.api.FormatException;
 import be.nabu.libs.vfs.api.File;
 import be.nabu.utils.io.IOUtils;
 import be.nabu.utils.xml.XMLUtils;
 
-public class ODTToDXF implements Converter {
+public class ODTToDXF implements PropertyAwareConverter {
 
 	private static Transformer transformer;
 	
@@ -120,6 +120,11 @@ public class ODTToDXF implements Converter {
 		return transformer;
 	}
 
+	@Override
+	public List<String> getRelevantProperties() {
+		return new ArrayList<String>();
+	}
+
 	@Override
 	public List<String> getContentTypes() {
 		return Arrays.asList(new String [] { "application/vnd.oasis.opendocument.text" });
@@ -20,6 +20,7 @@ package be.nabu.libs.dms.converters;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
@@ -33,7 +34,7 @@ import be.nabu.utils.io.IOUtils;
 /**
  * Allows you to perform a simple copy
  */
-public class PassThroughConverter implements Converter {
+public class PassThroughConverter implements PropertyAwareConverter, PathIndependentConverter {
 
 	private String fromContentType, toContentType;
 	
@@ -53,6 +54,11 @@ public class PassThroughConverter implements Converter {
 		}
 	}
 
+	@Override
+	public List<String> getRelevantProperties() {
+		return new ArrayList<String>();
+	}
+
 	@Override
 	public List<String> getContentTypes() {
 		return Arrays.asList(new String [] { fromContentType });
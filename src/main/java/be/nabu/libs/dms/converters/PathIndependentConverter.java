@@ -0,0 +1,29 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+
+package be.nabu.libs.dms.converters;
+
+import be.nabu.libs.dms.api.Converter;
+
+/**
+ * A converter whose output only depends on the content of the file and the properties, not on its path or name.
+ * With content keys identical files in different locations share the results of these converters.
+ * Converters that resolve links or includes against the file or show its name (e.g. in a title) should not implement it.
+ */
+public interface PathIndependentConverter extends Converter {
+}
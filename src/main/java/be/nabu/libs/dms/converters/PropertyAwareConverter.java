@@ -0,0 +1,29 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+package be.nabu.libs.dms.converters;
+
+import java.util.List;
+
+import be.nabu.libs.dms.api.Converter;
+
+/**
+ * A converter that knows which properties can change its output, the other properties are ignored when caching its result.
+ * Converters that pass the properties on to other conversions (e.g. for includes or quotes) can not know this and should not implement it.
+ */
+public interface PropertyAwareConverter extends Converter {
+	public List<String> getRelevantProperties();
+}
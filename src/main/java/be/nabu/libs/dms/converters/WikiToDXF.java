@@ -21,6 +21,7 @@ import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.io.UncheckedIOException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.util.Arrays;
@@ -38,17 +39,24 @@ import be.nabu.libs.dms.api.Converter;
 import be.nabu.libs.dms.api.DocumentManager;
 import be.nabu.libs.dms.api.FormatException;
 import be.nabu.libs.dms.api.Templater;
+import be.nabu.libs.dms.utils.CancellationToken;
+import be.nabu.libs.dms.utils.DMSUtils;
 import be.nabu.libs.dms.utils.FileUtils;
 import be.nabu.libs.resources.URIUtils;
 import be.nabu.libs.vfs.api.File;
 import be.nabu.utils.io.IOUtils;
 
-public class WikiToDXF implements Converter {
+public class WikiToDXF implements PropertyAwareConverter {
 
 	private Logger logger = LoggerFactory.getLogger(getClass());
 	
 	public static final String WIKI_CONTENT_TYPE = "application/vnd-nabu-wiki";
 	
+	@Override
+	public List<String> getRelevantProperties() {
+		return Arrays.asList(new String [] { "annotationDelimiter" });
+	}
+
 	@Override
 	public List<String> getContentTypes() {
 		return Arrays.asList(new String[] { WIKI_CONTENT_TYPE });
@@ -62,7 +70,37 @@ public class WikiToDXF implements Converter {
 	@Override
 	public void convert(DocumentManager repository, File file, OutputStream output, Map<String, String> properties) throws IOException, FormatException {
 		logger.debug("Converting file '" + file + "'");
-		String content = FileUtils.toString(file, "UTF-8").replaceAll("\r", "");
+		String content = toDXF(repository, file, FileUtils.toString(file, "UTF-8"), properties);
+		IOUtils.copyBytes(IOUtils.wrap(new ByteArrayInputStream(content.getBytes("UTF-8"))), IOUtils.wrap(output));
+	}
+	
+	/**
+	 * Converts the content of the given file to dxf
+	 */
+	public String toDXF(DocumentManager repository, File file, String content, Map<String, String> properties) throws IOException, FormatException {
+		CancellationToken cancellation = DMSUtils.getCancellation(repository);
+		if (cancellation == null) {
+			cancellation = new CancellationToken();
+		}
+		// the token is bound to the thread so the regular expressions in the stages can check it as well
+		CancellationToken previous = CancellationToken.bind(cancellation);
+		try {
+			return toDXF(repository, file, content, properties, cancellation);
+		}
+		catch (UncheckedIOException e) {
+			CancellationToken.rethrow(e);
+			return null;
+		}
+		finally {
+			CancellationToken.bind(previous);
+		}
+	}
+	
+	/**
+	 * The token is checked between the stages
+	 */
+	private String toDXF(DocumentManager repository, File file, String content, Map<String, String> properties, CancellationToken cancellation) throws IOException, FormatException {
+		content = content.replaceAll("\r", "");
 		
 		for (Templater templater : repository.getTemplaters()) {
 			content = templater.template(content);
@@ -71,7 +109,7 @@ public class WikiToDXF implements Converter {
 		// find all the "quoted" parts, they have to be processed afterwards
 		Map<String, String> quotes = new HashMap<String, String>();
 		Pattern quotePattern = Pattern.compile(getQuotePattern());
-		Matcher matcher = quotePattern.matcher(content);
+		Matcher matcher = quotePattern.matcher(CancellationToken.cancellable(content));
 		while (matcher.find()) {
 			String uuid = UUID.randomUUID().toString();
 			quotes.put(uuid, matcher.group());
@@ -80,6 +118,7 @@ public class WikiToDXF implements Converter {
 
 		
 		// preprocessing
+		cancellation.check();
 		content = escapeXML(content);
 		
 		content = replaceAnnotations(content, properties == null || properties.get("annotationDelimiter") == null ? "@" : properties.get("annotationDelimiter"));
@@ -88,11 +127,14 @@ public class WikiToDXF implements Converter {
 		content = replaceHeaders(content);
 		content = replaceLists(content);
 		content = replaceTables(content);
+		cancellation.check();
 		content = replaceStyling(content);
 		content = replaceParagraphs(content);
+		cancellation.check();
 		content = replaceExternalLinks(content);
 		content = replaceEmbeddedLinks(content, file);
 		content = replaceAnchorLinks(content);
+		cancellation.check();
 		content = replaceLocalLinks(file, content);
 		content = replaceAnchors(content);
 		content = removeAnnotationsMarker(content);
@@ -103,6 +145,7 @@ public class WikiToDXF implements Converter {
 		// unescape any possibly escaped "["
 		content = content.replaceAll("\\\\\\[", "[");
 		
+		cancellation.check();
 		// process the quoted parts
 		// once everything else is done, process the quoted parts
 		for (String uuid : quotes.keySet()) {
@@ -124,8 +167,7 @@ public class WikiToDXF implements Converter {
 			quote = "<blockquote format='" + targetType + "'>" + quote + "</blockquote>";
 			content = content.replaceAll(Pattern.quote("[quote=" + uuid + "]"), Matcher.quoteReplacement(quote));
 		}
-		
-		IOUtils.copyBytes(IOUtils.wrap(new ByteArrayInputStream(content.getBytes("UTF-8"))), IOUtils.wrap(output));
+		return content;
 	}
 
 	protected String getQuotePattern() {
@@ -212,7 +254,7 @@ public class WikiToDXF implements Converter {
 	 */
 	public String replaceAnchors(String content) {
 		Pattern pattern = Pattern.compile("(?<!\\\\)\\[#([^\\]]+)\\]");
-		Matcher matcher = pattern.matcher(content);
+		Matcher matcher = pattern.matcher(CancellationToken.cancellable(content));
 		while(matcher.find()) {
 			String anchor = matcher.group().replaceAll(pattern.pattern(), "$1");
 			content = content.replaceFirst(Pattern.quote(matcher.group()), Matcher.quoteReplacement("<a name='" + encodeAnchor(anchor) + "' original='" + anchor + "'></a>"));			
@@ -225,7 +267,7 @@ public class WikiToDXF implements Converter {
 	 */
 	public String replaceLocalLinks(File file, String content) throws FormatException, IOException {
 		Pattern pattern = Pattern.compile("(?<!\\\\)\\[([^|\\]]*)\\|\\$([^\\]]+)\\]");
-		Matcher matcher = pattern.matcher(content);
+		Matcher matcher = pattern.matcher(CancellationToken.cancellable(content));
 		while(matcher.find()) {
 			String displayName = matcher.group().replaceAll(pattern.pattern(), "$1");
 			// strip tracing "/"
@@ -255,7 +297,7 @@ public class WikiToDXF implements Converter {
 		
 		// create local link [$page]
 		pattern = Pattern.compile("(?<!\\\\)\\[\\$([^\\]]+)]");
-		matcher = pattern.matcher(content);
+		matcher = pattern.matcher(CancellationToken.cancellable(content));
 		while(matcher.find()) {
 			// strip tracing "/"
 			String url = matcher.group().replaceAll(pattern.pattern(), "$1").replaceAll("[/]+$", "");
@@ -285,7 +327,7 @@ public class WikiToDXF implements Converter {
 	 */
 	public String replaceAnchorLinks(String content) {
 		Pattern pattern = Pattern.compile("(?<!\\\\)\\[([^|\\]]*)\\|#([^\\]]+)\\]");
-		Matcher matcher = pattern.matcher(content);
+		Matcher matcher = pattern.matcher(CancellationToken.cancellable(content));
 		while(matcher.find()) {
 			String displayName = matcher.group().replaceAll(pattern.pattern(), "$1");
 			String anchor = matcher.group().replaceAll(pattern.pattern(), "$2");
@@ -306,7 +348,7 @@ public class WikiToDXF implements Converter {
 	public String replaceExternalLinks(String content) {
 		// resolve other url links [name|url]
 		Pattern pattern = Pattern.compile("(?<!\\\\)\\[([^|\\]]*)\\|([\\w]+:/[^\\]]+)\\]");
-		Matcher matcher = pattern.matcher(content);
+		Matcher matcher = pattern.matcher(CancellationToken.cancellable(content));
 		while(matcher.find()) {
 			String displayName = matcher.group().replaceAll(pattern.pattern(), "$1");
 			String link = matcher.group().replaceAll(pattern.pattern(), "$2");
@@ -323,7 +365,7 @@ public class WikiToDXF implements Converter {
 	 */
 	public String replaceEmbeddedLinks(String content, File file) {
 		Pattern pattern = Pattern.compile("(?<!\\\\)\\[\\^([^\\]]+)\\]");
-		Matcher matcher = pattern.matcher(content);
+		Matcher matcher = pattern.matcher(CancellationToken.cancellable(content));
 		while(matcher.find()) {
 			String link = matcher.group().replaceAll(pattern.pattern(), "$1");
 			if (!link.startsWith("http:") && !link.startsWith("https:")) {
@@ -360,7 +402,7 @@ public class WikiToDXF implements Converter {
 	
 	public String replaceParagraphs(String content) {
 		Pattern pattern = Pattern.compile("(?s)(?:\n\n|^)(.+?)(?=\n\n|$)");
-		Matcher matcher = pattern.matcher(content);
+		Matcher matcher = pattern.matcher(CancellationToken.cancellable(content));
 		while(matcher.find()) {
 			String text = matcher.group().replaceAll(pattern.pattern(), "$1");
 			// this is an include, though it will often stand alone, it should not be encapsulated in a paragraph
@@ -425,7 +467,7 @@ public class WikiToDXF implements Converter {
 	
 	public String replaceTables(String content) {
 		Pattern pattern = Pattern.compile("(?s)([\n]+|\\A)\\|(.*?)\\|(\n\n(?!\\|)|\n(?=\n\\|)|(?=\n\\|)|\\z)");
-		Matcher matcher = pattern.matcher(content);
+		Matcher matcher = pattern.matcher(CancellationToken.cancellable(content));
 		boolean tableStarted = false;
 		boolean bodyStarted = false;
 		while(matcher.find()) {
@@ -496,7 +538,7 @@ public class WikiToDXF implements Converter {
 	public String replaceLists(String content, String indicator, String tag) {
 		// a list item starts on a new line with one or more "*" and is stopped by either another list item, an empty line or the end of the text
 		Pattern pattern = Pattern.compile(getListRegex(indicator));
-		Matcher matcher = pattern.matcher(content);
+		Matcher matcher = pattern.matcher(CancellationToken.cancellable(content));
 		
 		// keeps track of the depth
 		int listDepth = 0;
@@ -556,7 +598,7 @@ public class WikiToDXF implements Converter {
 	public String replaceHeaders(String content) {
 		// find all the headers
 		Pattern pattern = Pattern.compile("(?m)^h([0-7]{1})\\.[\\s]*(.*)$");
-		Matcher matcher = pattern.matcher(content);
+		Matcher matcher = pattern.matcher(CancellationToken.cancellable(content));
 		while(matcher.find()) {
 			int level = new Integer(matcher.group().replaceAll(pattern.pattern(), "$1"));
 			String headerContent = matcher.group().replaceAll(pattern.pattern(), "$2");
@@ -0,0 +1,99 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+package be.nabu.libs.dms.converters;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import be.nabu.libs.dms.MemoryFileFragment;
+import be.nabu.libs.dms.api.Converter;
+import be.nabu.libs.dms.api.DocumentManager;
+import be.nabu.libs.dms.api.FormatException;
+import be.nabu.libs.dms.utils.DMSUtils;
+import be.nabu.libs.dms.utils.FileUtils;
+import be.nabu.libs.dms.utils.SimpleDocumentManager;
+import be.nabu.libs.vfs.api.File;
+import be.nabu.utils.io.IOUtils;
+
+/**
+ * Replaces the chain of {@link WikiToDXF} and {@link DXFToHTML}, the dxf is handed over as a string instead of being serialized and read again
+ */
+public class WikiToHTML implements FusedConverter {
+
+	private WikiToDXF toDXF;
+	private DXFToHTML toHTML = new DXFToHTML();
+	
+	public WikiToHTML() {
+		this(new WikiToDXF());
+	}
+	
+	protected WikiToHTML(WikiToDXF toDXF) {
+		this.toDXF = toDXF;
+	}
+	
+	@Override
+	public void convert(DocumentManager repository, File file, OutputStream output, Map<String, String> properties) throws IOException, FormatException {
+		// if the document manager caches the dxf, it is cheaper to share it with the other conversions of this file
+		if (isIntermediateCached(repository, file)) {
+			List<Converter> chain = new ArrayList<Converter>();
+			chain.add(toDXF);
+			chain.add(toHTML);
+			new ChainConverter(chain).convert(repository, file, output, properties);
+			return;
+		}
+		String content = toDXF.toDXF(repository, file, FileUtils.toString(file, "UTF-8"), properties);
+		// the html conversion sees the same file as it would in a chain so includes, quotes and images resolve identically
+		File intermediate = new MemoryFileFragment(file, new byte[0], "converted", toDXF.getOutputContentType());
+		content = toHTML.toHTML(repository, intermediate, content, properties);
+		IOUtils.copyBytes(IOUtils.wrap(new ByteArrayInputStream(content.getBytes("UTF-8"))), IOUtils.wrap(output));
+	}
+	
+	private boolean isIntermediateCached(DocumentManager repository, File file) {
+		SimpleDocumentManager manager = DMSUtils.getDocumentManager(repository);
+		if (manager == null || file instanceof MemoryFileFragment) {
+			return false;
+		}
+		return manager.getCacheManager() != null && manager.getIntermediateCacheContentTypes().contains(toDXF.getOutputContentType());
+	}
+
+	@Override
+	public List<Class<? extends Converter>> getFusedConverters() {
+		List<Class<? extends Converter>> converters = new ArrayList<Class<? extends Converter>>();
+		converters.add(toDXF.getClass());
+		converters.add(toHTML.getClass());
+		return converters;
+	}
+
+	@Override
+	public List<String> getContentTypes() {
+		return toDXF.getContentTypes();
+	}
+
+	@Override
+	public String getOutputContentType() {
+		return toHTML.getOutputContentType();
+	}
+
+	@Override
+	public boolean isLossless() {
+		return toDXF.isLossless() && toHTML.isLossless();
+	}
+}
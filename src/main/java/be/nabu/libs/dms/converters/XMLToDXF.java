@@ -19,17 +19,17 @@ package be.nabu.libs.dms.converters;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
 
-import be.nabu.libs.dms.api.Converter;
 import be.nabu.libs.dms.api.DocumentManager;
 import be.nabu.libs.dms.api.FormatException;
 import be.nabu.libs.dms.utils.FileUtils;
 import be.nabu.libs.vfs.api.File;
 
-public class XMLToDXF implements Converter {
+public class XMLToDXF implements PropertyAwareConverter, PathIndependentConverter {
 
 	@Override
 	public void convert(DocumentManager documentManager, File file, OutputStream output, Map<String, String> properties) throws IOException, FormatException {
@@ -40,6 +40,11 @@ public class XMLToDXF implements Converter {
 		output.write(string.getBytes("UTF-8"));
 	}
 
+	@Override
+	public List<String> getRelevantProperties() {
+		return new ArrayList<String>();
+	}
+
 	@Override
 	public List<String> getContentTypes() {
 		return Arrays.asList(new String [] { "application/xml", "text/xml", "text/html" });
@@ -36,7 +36,8 @@ import be.nabu.utils.xml.XMLUtils;
 
 abstract public class XSLConverter implements Converter {
 	
-	private Transformer transformer;
+	private URL xsl;
+	private volatile Transformer transformer;
 	private boolean usesProperties = false;
 	
 	/**
@@ -47,15 +48,27 @@ abstract public class XSLConverter implements Converter {
 	 * @throws IOException
 	 */
 	public XSLConverter(URL xsl, boolean usesProperties) throws IOException {
-		initialize(xsl);
+		// the stylesheet is only compiled when the converter is actually used
+		this.xsl = xsl;
 	}
 	
-	private void initialize(URL url) throws IOException {
+	private Transformer getTransformer() throws IOException {
+		if (transformer == null) {
+			synchronized(this) {
+				if (transformer == null) {
+					transformer = initialize(xsl);
+				}
+			}
+		}
+		return transformer;
+	}
+	
+	private Transformer initialize(URL url) throws IOException {
 		InputStream xsl = url.openStream();
 		if (xsl == null)
 			throw new RuntimeException("Could not find dxf2odt.xsl");
 		try {
-			transformer = XMLUtils.newTransformer(new StreamSource(xsl), null);
+			return XMLUtils.newTransformer(new StreamSource(xsl), null);
 		}
 		catch (TransformerConfigurationException e) {
 			throw new RuntimeException(e);
@@ -76,6 +89,13 @@ abstract public class XSLConverter implements Converter {
 	}
 	
 	protected void transform(InputStream input, OutputStream output, Map<String, String> properties) throws FormatException {
+		Transformer transformer;
+		try {
+			transformer = getTransformer();
+		}
+		catch (IOException e) {
+			throw new FormatException(e);
+		}
 		try {
 			if (!usesProperties)
 				transformer.transform(new StreamSource(input), new StreamResult(output));
@@ -0,0 +1,111 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.dms.utils;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import be.nabu.libs.dms.api.Converter;
+import be.nabu.libs.dms.utils.DependencyGraph.Dependency;
+import be.nabu.libs.vfs.api.File;
+
+/**
+ * Shared by all the conversions of a single batch so work that they have in common is only done once: looking up converters, resolving links and converting included documents.
+ * The files are assumed not to change for the duration of the batch.
+ */
+public class BatchContext {
+
+	private SimpleDocumentManager manager;
+	private ConcurrentMap<String, Converter> converters = new ConcurrentHashMap<String, Converter>();
+	private ConcurrentMap<String, File> resolved = new ConcurrentHashMap<String, File>();
+	private ConcurrentMap<String, Boolean> exists = new ConcurrentHashMap<String, Boolean>();
+	private ConcurrentMap<String, Include> includes = new ConcurrentHashMap<String, Include>();
+	
+	public BatchContext(SimpleDocumentManager manager) {
+		this.manager = manager;
+	}
+	
+	public Converter getConverter(String fromContentType, String toContentType) {
+		String key = fromContentType + ">" + toContentType;
+		Converter converter = converters.get(key);
+		if (converter == null) {
+			converter = manager.getConverter(fromContentType, toContentType);
+			// there is no need to remember that there is no converter, the resolver answers that quickly
+			if (converter != null) {
+				converters.putIfAbsent(key, converter);
+			}
+		}
+		return converter;
+	}
+	
+	public File resolve(File parent, String link) throws IOException {
+		String key = parent.getPath() + ">" + link;
+		File file = resolved.get(key);
+		if (file == null) {
+			file = parent.resolve(link);
+			if (file != null) {
+				resolved.putIfAbsent(key, file);
+			}
+		}
+		return file;
+	}
+	
+	public boolean exists(File file) throws IOException {
+		Boolean result = exists.get(file.getPath());
+		if (result == null) {
+			result = file.exists();
+			exists.putIfAbsent(file.getPath(), result);
+		}
+		return result;
+	}
+	
+	/**
+	 * Returns null if the include was not converted yet in this batch
+	 */
+	public Include getInclude(String key) {
+		return includes.get(key);
+	}
+	
+	public void putInclude(String key, Include include) {
+		includes.putIfAbsent(key, include);
+	}
+	
+	/**
+	 * The converted content of an included document and the dependencies that were recorded while converting it, they are added to every conversion that reuses it
+	 */
+	public static class Include {
+		private String content;
+		private Collection<Dependency> dependencies;
+		
+		public Include(String content, Collection<Dependency> dependencies) {
+			this.content = content;
+			this.dependencies = new ArrayList<Dependency>(dependencies);
+		}
+
+		public String getContent() {
+			return content;
+		}
+
+		public Collection<Dependency> getDependencies() {
+			return dependencies;
+		}
+	}
+}
@@ -0,0 +1,104 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.dms.utils;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A pool of byte chunks in a limited number of size classes: the smallest chunk is 4kb and each class doubles in size up to 256kb.
+ * Chunks that are released while the pool is full are left to the garbage collector.
+ */
+public class BufferPool {
+
+	public static final int MINIMUM_CHUNK_SIZE = 4 * 1024;
+	public static final int MAXIMUM_CHUNK_SIZE = 256 * 1024;
+
+	private static BufferPool instance = new BufferPool(32 * 1024 * 1024);
+
+	/**
+	 * The default pool which is shared by all document managers
+	 */
+	public static BufferPool getInstance() {
+		return instance;
+	}
+
+	private Queue<byte[]> [] classes;
+
+	/**
+	 * The maximum amount of bytes that are kept in the pool
+	 */
+	private long maxSize;
+	private AtomicLong size = new AtomicLong();
+
+	@SuppressWarnings("unchecked")
+	public BufferPool(long maxSize) {
+		this.maxSize = maxSize;
+		classes = new Queue[getSizeClass(MAXIMUM_CHUNK_SIZE) + 1];
+		for (int i = 0; i < classes.length; i++) {
+			classes[i] = new ConcurrentLinkedQueue<byte[]>();
+		}
+	}
+
+	/**
+	 * The chunk size for the given position in a buffer, chunks grow as the buffer grows so small documents stay small
+	 */
+	public static int getChunkSize(int index) {
+		return MINIMUM_CHUNK_SIZE << Math.min(index, getSizeClass(MAXIMUM_CHUNK_SIZE));
+	}
+
+	private static int getSizeClass(int chunkSize) {
+		return Integer.numberOfTrailingZeros(chunkSize / MINIMUM_CHUNK_SIZE);
+	}
+
+	/**
+	 * The size must be one of the chunk sizes
+	 */
+	public byte [] acquire(int chunkSize) {
+		byte [] chunk = classes[getSizeClass(chunkSize)].poll();
+		if (chunk == null) {
+			return new byte[chunkSize];
+		}
+		size.addAndGet(-chunk.length);
+		return chunk;
+	}
+
+	public void release(byte [] chunk) {
+		if (chunk.length < MINIMUM_CHUNK_SIZE || chunk.length > MAXIMUM_CHUNK_SIZE || Integer.bitCount(chunk.length) != 1) {
+			return;
+		}
+		if (size.addAndGet(chunk.length) > maxSize) {
+			size.addAndGet(-chunk.length);
+		}
+		else {
+			classes[getSizeClass(chunk.length)].offer(chunk);
+		}
+	}
+
+	/**
+	 * The amount of bytes currently held in the pool
+	 */
+	public long getSize() {
+		return size.get();
+	}
+
+	public long getMaxSize() {
+		return maxSize;
+	}
+}
@@ -0,0 +1,187 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.dms.utils;
+
+import java.io.UncheckedIOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Allows a running conversion to be stopped, either explicitly or once its deadline has passed.
+ * The token is carried by the {@link ConversionContext}, converters check it between their stages (see {@link DMSUtils#checkCancelled(be.nabu.libs.dms.api.DocumentManager)}) and fail with a {@link ConversionCancelledException}.
+ * A cancelled conversion does not cache its result.
+ */
+public class CancellationToken {
+
+	private static ThreadLocal<CancellationToken> current = new ThreadLocal<CancellationToken>();
+	
+	private volatile boolean cancelled;
+	
+	/**
+	 * The deadline in nanoseconds as returned by {@link System#nanoTime()}, only relevant if there is a timeout
+	 */
+	private long deadline;
+	private boolean timeout;
+	
+	/**
+	 * A token that is cancelled when its parent is, e.g. the token of the batch that a conversion is part of
+	 */
+	private CancellationToken parent;
+	
+	/**
+	 * A token without a deadline, the conversion only stops if it is cancelled
+	 */
+	public CancellationToken() {
+		// no deadline
+	}
+	
+	/**
+	 * A token with a deadline the given amount of ms from now
+	 */
+	public CancellationToken(long timeout) {
+		this.deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+		this.timeout = true;
+	}
+	
+	/**
+	 * A token that is also cancelled once the parent is, with a deadline the given amount of ms from now if it is > 0
+	 */
+	public CancellationToken(CancellationToken parent, long timeout) {
+		this.parent = parent;
+		if (timeout > 0) {
+			this.deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+			this.timeout = true;
+		}
+	}
+	
+	public void cancel() {
+		cancelled = true;
+	}
+	
+	public boolean isCancelled() {
+		return cancelled || isExpired() || (parent != null && parent.isCancelled());
+	}
+	
+	public boolean isExpired() {
+		return (timeout && System.nanoTime() - deadline >= 0) || (parent != null && parent.isExpired());
+	}
+	
+	/**
+	 * The remaining time in ms, or -1 if there is no deadline
+	 */
+	public long getRemaining() {
+		long remaining = timeout ? Math.max(0, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime())) : -1;
+		long inherited = parent == null ? -1 : parent.getRemaining();
+		return remaining < 0 ? inherited : (inherited < 0 ? remaining : Math.min(remaining, inherited));
+	}
+	
+	public void check() throws ConversionCancelledException {
+		ConversionCancelledException exception = getException();
+		if (exception != null) {
+			throw exception;
+		}
+	}
+	
+	private ConversionCancelledException getException() {
+		ConversionCancelledException inherited = parent == null ? null : parent.getException();
+		if (inherited != null) {
+			return inherited;
+		}
+		else if (cancelled) {
+			return new ConversionCancelledException("The conversion was cancelled", false);
+		}
+		else if (timeout && System.nanoTime() - deadline >= 0) {
+			return new ConversionCancelledException("The conversion ran past its deadline", true);
+		}
+		return null;
+	}
+	
+	/**
+	 * Binds the token to the current thread for code that can not reach the conversion context, e.g. regular expressions. Returns the previous token so it can be restored.
+	 */
+	public static CancellationToken bind(CancellationToken token) {
+		CancellationToken previous = current.get();
+		if (token == null) {
+			current.remove();
+		}
+		else {
+			current.set(token);
+		}
+		return previous;
+	}
+	
+	public static CancellationToken getCurrent() {
+		return current.get();
+	}
+	
+	/**
+	 * Wraps the content so a regular expression that matches it checks the token of the current thread every few thousand characters it reads.
+	 * This stops an expression that backtracks for minutes on a pathological document, it fails with an {@link UncheckedIOException} around the {@link ConversionCancelledException}.
+	 */
+	public static CharSequence cancellable(CharSequence content) {
+		CancellationToken token = current.get();
+		return token == null ? content : new CancellableCharSequence(content, token);
+	}
+	
+	/**
+	 * Unwraps the exception thrown by a cancelled regular expression, see {@link #cancellable(CharSequence)}
+	 */
+	public static void rethrow(UncheckedIOException exception) throws ConversionCancelledException {
+		if (exception.getCause() instanceof ConversionCancelledException) {
+			throw (ConversionCancelledException) exception.getCause();
+		}
+		throw exception;
+	}
+	
+	private static class CancellableCharSequence implements CharSequence {
+		
+		private CharSequence content;
+		private CancellationToken token;
+		private int reads;
+		
+		public CancellableCharSequence(CharSequence content, CancellationToken token) {
+			this.content = content;
+			this.token = token;
+		}
+		
+		@Override
+		public char charAt(int index) {
+			if ((++reads & 0xfff) == 0) {
+				ConversionCancelledException exception = token.getException();
+				if (exception != null) {
+					throw new UncheckedIOException(exception);
+				}
+			}
+			return content.charAt(index);
+		}
+		
+		@Override
+		public int length() {
+			return content.length();
+		}
+		
+		@Override
+		public CharSequence subSequence(int start, int end) {
+			return content.subSequence(start, end);
+		}
+		
+		@Override
+		public String toString() {
+			return content.toString();
+		}
+	}
+}
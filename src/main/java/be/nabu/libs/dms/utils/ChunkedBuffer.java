@@ -0,0 +1,153 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.dms.utils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * An output stream that writes into a list of chunks instead of a single growing array, so it never has to copy what was already written.
+ * The content can be read back (multiple times) without copying, once the buffer is no longer needed it should be released to return the chunks to the pool.
+ */
+public class ChunkedBuffer extends OutputStream {
+
+	private BufferPool pool;
+	private List<byte[]> chunks = new ArrayList<byte[]>();
+	private byte [] current;
+	private int position;
+	private long size;
+
+	/**
+	 * If the pool is null, the chunks are allocated
+	 */
+	public ChunkedBuffer(BufferPool pool) {
+		this.pool = pool;
+	}
+
+	@Override
+	public void write(int single) {
+		if (current == null || position == current.length) {
+			nextChunk();
+		}
+		current[position++] = (byte) single;
+		size++;
+	}
+
+	@Override
+	public void write(byte [] bytes, int offset, int length) {
+		while (length > 0) {
+			if (current == null || position == current.length) {
+				nextChunk();
+			}
+			int amount = Math.min(length, current.length - position);
+			System.arraycopy(bytes, offset, current, position, amount);
+			position += amount;
+			offset += amount;
+			length -= amount;
+			size += amount;
+		}
+	}
+
+	private void nextChunk() {
+		int chunkSize = BufferPool.getChunkSize(chunks.size());
+		current = pool == null ? new byte[chunkSize] : pool.acquire(chunkSize);
+		chunks.add(current);
+		position = 0;
+	}
+
+	public long size() {
+		return size;
+	}
+
+	public void writeTo(OutputStream output) throws IOException {
+		long remaining = size;
+		for (byte [] chunk : chunks) {
+			int amount = (int) Math.min(remaining, chunk.length);
+			output.write(chunk, 0, amount);
+			remaining -= amount;
+		}
+	}
+
+	public byte [] toByteArray() {
+		byte [] bytes = new byte[(int) size];
+		int offset = 0;
+		for (byte [] chunk : chunks) {
+			int amount = Math.min(bytes.length - offset, chunk.length);
+			System.arraycopy(chunk, 0, bytes, offset, amount);
+			offset += amount;
+		}
+		return bytes;
+	}
+
+	/**
+	 * A new stream that reads the current content directly from the chunks
+	 */
+	public InputStream getInputStream() {
+		return new InputStream() {
+			private int chunk, offset;
+			private long remaining = size;
+			@Override
+			public int read() {
+				byte [] single = new byte[1];
+				return read(single, 0, 1) < 0 ? -1 : single[0] & 0xff;
+			}
+			@Override
+			public int read(byte [] bytes, int start, int length) {
+				if (remaining <= 0) {
+					return -1;
+				}
+				int read = 0;
+				while (read < length && remaining > 0) {
+					byte [] current = chunks.get(chunk);
+					int amount = (int) Math.min(Math.min(length - read, current.length - offset), remaining);
+					System.arraycopy(current, offset, bytes, start + read, amount);
+					offset += amount;
+					read += amount;
+					remaining -= amount;
+					if (offset == current.length) {
+						chunk++;
+						offset = 0;
+					}
+				}
+				return read;
+			}
+			@Override
+			public int available() {
+				return (int) Math.min(Integer.MAX_VALUE, remaining);
+			}
+		};
+	}
+
+	/**
+	 * Returns the chunks to the pool, the buffer is empty afterwards
+	 */
+	public void release() {
+		if (pool != null) {
+			for (byte [] chunk : chunks) {
+				pool.release(chunk);
+			}
+		}
+		chunks.clear();
+		current = null;
+		position = 0;
+		size = 0;
+	}
+}
@@ -0,0 +1,417 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.dms.utils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+import be.nabu.libs.dms.api.DocumentCacheManager;
+import be.nabu.libs.vfs.api.File;
+
+/**
+ * Compresses the entries of another cache with gzip at its fastest level so more renditions fit in the same space.
+ * Each entry starts with a single byte that indicates whether the rest is compressed or not.
+ * Results that are already compressed (e.g. the zip of an odt) or that do not compress well are stored as they are.
+ * The compressed entries can be written as is to clients that accept gzip.
+ */
+public class CompressingDocumentCacheManager implements RenditionCache, CostAwareCache {
+
+	private static final byte RAW = 0, GZIP = 1;
+	
+	/**
+	 * The signatures of formats that are already compressed: zip (which includes odt), gzip, png and jpeg
+	 */
+	private static final byte [][] COMPRESSED = new byte [][] {
+		new byte [] { 0x50, 0x4b, 0x03, 0x04 },
+		new byte [] { 0x1f, (byte) 0x8b },
+		new byte [] { (byte) 0x89, 0x50, 0x4e, 0x47 },
+		new byte [] { (byte) 0xff, (byte) 0xd8, (byte) 0xff }
+	};
+	
+	private DocumentCacheManager cacheManager;
+	
+	/**
+	 * Results smaller than this are not worth compressing
+	 */
+	private int minSize = 256;
+	
+	/**
+	 * The compressed result is only kept if it is at most this fraction of the original
+	 */
+	private double maxRatio = 0.9;
+	
+	private AtomicLong originalSize = new AtomicLong(), storedSize = new AtomicLong();
+	
+	public CompressingDocumentCacheManager(DocumentCacheManager cacheManager) {
+		this.cacheManager = cacheManager;
+	}
+	
+	@Override
+	public byte [] getCached(File file, String contentType) {
+		return decode(cacheManager.getCached(file, contentType));
+	}
+
+	/**
+	 * If the cache we wrap can write its entries without a copy, the entry is decoded while it is written
+	 */
+	@Override
+	public boolean writeCached(File file, String contentType, OutputStream output) throws IOException {
+		if (cacheManager instanceof RenditionCache) {
+			return writeDecoded(file, contentType, new DecodingOutputStream(output, true));
+		}
+		byte [] entry = cacheManager.getCached(file, contentType);
+		if (!isValid(entry)) {
+			return false;
+		}
+		InputStream input;
+		try {
+			input = open(entry);
+		}
+		// a gzip entry without a valid gzip header is a miss as well, nothing was written yet
+		catch (IOException e) {
+			return false;
+		}
+		write(input, output);
+		return true;
+	}
+	
+	/**
+	 * The compressed result (a complete gzip stream) or null if there is no entry or it is not compressed
+	 * This allows the caller to decide on the encoding of a response before anything is written
+	 */
+	public byte [] getGzipped(File file, String contentType) {
+		byte [] entry = cacheManager.getCached(file, contentType);
+		return isGzipped(entry) ? Arrays.copyOfRange(entry, 1, entry.length) : null;
+	}
+	
+	/**
+	 * Writes the compressed entry without decompressing it, returns false if there is no entry or it is not compressed
+	 */
+	public boolean writeGzipped(File file, String contentType, OutputStream output) throws IOException {
+		if (cacheManager instanceof RenditionCache) {
+			return writeDecoded(file, contentType, new DecodingOutputStream(output, false));
+		}
+		byte [] entry = cacheManager.getCached(file, contentType);
+		if (!isGzipped(entry)) {
+			return false;
+		}
+		output.write(entry, 1, entry.length - 1);
+		return true;
+	}
+
+	private boolean writeDecoded(File file, String contentType, DecodingOutputStream decoder) throws IOException {
+		try {
+			return ((RenditionCache) cacheManager).writeCached(file, contentType, decoder) && decoder.finish();
+		}
+		finally {
+			decoder.end();
+		}
+	}
+
+	@Override
+	public byte [] getStale(File file, String contentType) {
+		return cacheManager instanceof RenditionCache ? decode(((RenditionCache) cacheManager).getStale(file, contentType)) : null;
+	}
+
+	@Override
+	public void setCached(File file, String contentType, byte [] content) {
+		setCached(file, contentType, content, 0);
+	}
+	
+	@Override
+	public void setCached(File file, String contentType, byte [] content, long nanos) {
+		DMSUtils.setCached(cacheManager, file, contentType, encode(content), nanos);
+	}
+	
+	private byte [] encode(byte [] content) {
+		if (content.length >= minSize && !isCompressed(content)) {
+			ByteArrayOutputStream output = new ByteArrayOutputStream(content.length / 4);
+			output.write(GZIP);
+			try {
+				GZIPOutputStream gzip = new GZIPOutputStream(output) {
+					{
+						def.setLevel(Deflater.BEST_SPEED);
+					}
+				};
+				gzip.write(content);
+				gzip.close();
+			}
+			catch (IOException e) {
+				// can not happen in memory
+				throw new RuntimeException(e);
+			}
+			if (output.size() <= content.length * maxRatio) {
+				originalSize.addAndGet(content.length);
+				storedSize.addAndGet(output.size());
+				return output.toByteArray();
+			}
+		}
+		byte [] entry = new byte[content.length + 1];
+		entry[0] = RAW;
+		System.arraycopy(content, 0, entry, 1, content.length);
+		originalSize.addAndGet(content.length);
+		storedSize.addAndGet(entry.length);
+		return entry;
+	}
+	
+	/**
+	 * An entry with an unknown header (e.g. cached before compression was added) is treated as a miss
+	 */
+	private static byte [] decode(byte [] entry) {
+		if (!isValid(entry)) {
+			return null;
+		}
+		try {
+			ByteArrayOutputStream output = new ByteArrayOutputStream(entry[0] == RAW ? entry.length - 1 : entry.length * 4);
+			write(open(entry), output);
+			return output.toByteArray();
+		}
+		catch (IOException e) {
+			return null;
+		}
+	}
+	
+	/**
+	 * Only the two known headers are valid, any other byte (including negative ones) means the entry was not written by us
+	 */
+	private static boolean isValid(byte [] entry) {
+		return entry != null && entry.length > 0 && (entry[0] == RAW || entry[0] == GZIP);
+	}
+	
+	private static boolean isGzipped(byte [] entry) {
+		return entry != null && entry.length > 2 && entry[0] == GZIP && entry[1] == (byte) 0x1f && entry[2] == (byte) 0x8b;
+	}
+	
+	/**
+	 * Opening a gzip entry reads its header, so a foreign entry fails before anything is written
+	 */
+	private static InputStream open(byte [] entry) throws IOException {
+		if (entry[0] == RAW) {
+			return new ByteArrayInputStream(entry, 1, entry.length - 1);
+		}
+		return new GZIPInputStream(new ByteArrayInputStream(entry, 1, entry.length - 1));
+	}
+	
+	private static void write(InputStream input, OutputStream output) throws IOException {
+		try {
+			byte [] buffer = new byte[8192];
+			int read;
+			while ((read = input.read(buffer)) > 0) {
+				output.write(buffer, 0, read);
+			}
+		}
+		finally {
+			input.close();
+		}
+	}
+	
+	private static boolean isCompressed(byte [] content) {
+		for (byte [] signature : COMPRESSED) {
+			if (content.length >= signature.length) {
+				boolean matches = true;
+				for (int i = 0; i < signature.length && matches; i++) {
+					matches = content[i] == signature[i];
+				}
+				if (matches) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+	
+	/**
+	 * Decodes an entry while the wrapped cache writes it, nothing is written to the output until the header is known to be valid
+	 * If it does not inflate, only compressed entries are accepted and the gzip stream is written as is
+	 */
+	private static class DecodingOutputStream extends OutputStream {
+		
+		private OutputStream output;
+		private boolean inflate;
+		// the header of the entry followed by the header of the gzip stream, our gzip stream never has optional header fields
+		private byte [] header = new byte[11];
+		private int headerSize;
+		private boolean valid = true;
+		private Inflater inflater;
+		private CRC32 crc;
+		private byte [] buffer;
+		private byte [] trailer = new byte[8];
+		private int trailerSize;
+		private long size;
+		
+		public DecodingOutputStream(OutputStream output, boolean inflate) {
+			this.output = output;
+			this.inflate = inflate;
+		}
+		
+		@Override
+		public void write(int single) throws IOException {
+			write(new byte [] { (byte) single }, 0, 1);
+		}
+		
+		@Override
+		public void write(byte [] bytes, int offset, int length) throws IOException {
+			if (!valid) {
+				return;
+			}
+			while (length > 0 && (headerSize == 0 || (header[0] == GZIP && headerSize < header.length))) {
+				int part = Math.min(length, headerSize == 0 ? 1 : header.length - headerSize);
+				System.arraycopy(bytes, offset, header, headerSize, part);
+				headerSize += part;
+				offset += part;
+				length -= part;
+				if ((header[0] != RAW || !inflate) && header[0] != GZIP) {
+					valid = false;
+					return;
+				}
+				if (header[0] == GZIP && headerSize == header.length) {
+					if (header[1] != (byte) 0x1f || header[2] != (byte) 0x8b || header[3] != 8 || header[4] != 0) {
+						valid = false;
+						return;
+					}
+					if (inflate) {
+						inflater = new Inflater(true);
+						crc = new CRC32();
+						buffer = new byte[8192];
+					}
+					else {
+						output.write(header, 1, header.length - 1);
+					}
+				}
+			}
+			if (length == 0) {
+				return;
+			}
+			if (header[0] == RAW || !inflate) {
+				output.write(bytes, offset, length);
+				return;
+			}
+			if (!inflater.finished()) {
+				inflater.setInput(bytes, offset, length);
+				inflate();
+				// the bytes after the compressed data are the trailer
+				int remaining = inflater.finished() ? inflater.getRemaining() : 0;
+				offset += length - remaining;
+				length = remaining;
+			}
+			if (trailerSize + length > trailer.length) {
+				throw new ZipException("Unexpected data after the gzip trailer");
+			}
+			System.arraycopy(bytes, offset, trailer, trailerSize, length);
+			trailerSize += length;
+		}
+		
+		private void inflate() throws IOException {
+			try {
+				int read;
+				while ((read = inflater.inflate(buffer)) > 0) {
+					output.write(buffer, 0, read);
+					crc.update(buffer, 0, read);
+					size += read;
+				}
+				if (inflater.needsDictionary()) {
+					throw new ZipException("Unexpected dictionary in the gzip entry");
+				}
+			}
+			catch (DataFormatException e) {
+				throw new ZipException(e.getMessage());
+			}
+		}
+		
+		/**
+		 * Returns false if the entry was not written by us, in that case nothing was written. Fails if the compressed data is incomplete or corrupt.
+		 */
+		public boolean finish() throws IOException {
+			if (!valid || headerSize == 0 || (header[0] == GZIP && headerSize < header.length)) {
+				return false;
+			}
+			// the client that receives the gzip stream verifies it
+			if (inflate && header[0] == GZIP) {
+				if (!inflater.finished() || trailerSize < trailer.length) {
+					throw new EOFException("Unexpected end of the gzip entry");
+				}
+				if (getInt(trailer, 0) != crc.getValue() || getInt(trailer, 4) != (size & 0xffffffffL)) {
+					throw new ZipException("Corrupt gzip entry");
+				}
+			}
+			return true;
+		}
+		
+		public void end() {
+			if (inflater != null) {
+				inflater.end();
+			}
+		}
+		
+		private static long getInt(byte [] bytes, int offset) {
+			return (bytes[offset] & 0xffL) | (bytes[offset + 1] & 0xffL) << 8 | (bytes[offset + 2] & 0xffL) << 16 | (bytes[offset + 3] & 0xffL) << 24;
+		}
+	}
+	
+	public DocumentCacheManager getCacheManager() {
+		return cacheManager;
+	}
+
+	public int getMinSize() {
+		return minSize;
+	}
+
+	public void setMinSize(int minSize) {
+		this.minSize = minSize;
+	}
+
+	public double getMaxRatio() {
+		return maxRatio;
+	}
+
+	public void setMaxRatio(double maxRatio) {
+		this.maxRatio = maxRatio;
+	}
+	
+	/**
+	 * The total size of the results that were cached
+	 */
+	public long getOriginalSize() {
+		return originalSize.get();
+	}
+
+	/**
+	 * The total size of the entries that were handed to the cache, including the headers
+	 */
+	public long getStoredSize() {
+		return storedSize.get();
+	}
+
+	@Override
+	public String toString() {
+		return "[originalSize=" + getOriginalSize() + ", storedSize=" + getStoredSize() + ", cacheManager=" + cacheManager + "]";
+	}
+}
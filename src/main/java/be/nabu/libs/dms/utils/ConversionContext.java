@@ -0,0 +1,120 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+package be.nabu.libs.dms.utils;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import be.nabu.libs.datastore.api.WritableDatastore;
+import be.nabu.libs.dms.api.Converter;
+import be.nabu.libs.dms.api.DocumentManager;
+import be.nabu.libs.dms.api.FormatException;
+import be.nabu.libs.dms.api.Templater;
+import be.nabu.libs.dms.utils.DependencyGraph.Dependency;
+import be.nabu.libs.vfs.api.File;
+
+/**
+ * Wraps the document manager for the duration of a single conversion, it is passed to the converters (and the converters they call) in its place.
+ * It collects the dependencies of the conversion, converters should use the methods in {@link DMSUtils} to reach it.
+ */
+public class ConversionContext implements DocumentManager {
+
+	private SimpleDocumentManager manager;
+	private BatchContext batch;
+	private CancellationToken cancellation;
+	private Map<String, Dependency> dependencies = new LinkedHashMap<String, Dependency>();
+	
+	public ConversionContext(SimpleDocumentManager manager) {
+		this(manager, null);
+	}
+	
+	/**
+	 * The batch is optional, it is shared by all the conversions of the batch
+	 */
+	public ConversionContext(SimpleDocumentManager manager, BatchContext batch) {
+		this(manager, batch, null);
+	}
+	
+	/**
+	 * The cancellation token is optional, it is shared by the nested conversions
+	 */
+	public ConversionContext(SimpleDocumentManager manager, BatchContext batch, CancellationToken cancellation) {
+		this.manager = manager;
+		this.batch = batch;
+		this.cancellation = cancellation;
+	}
+	
+	@Override
+	public Converter getConverter(String fromContentType, String toContentType) {
+		return batch == null ? manager.getConverter(fromContentType, toContentType) : batch.getConverter(fromContentType, toContentType);
+	}
+
+	@Override
+	public boolean canConvert(String fromContentType, String toContentType) {
+		return manager.canConvert(fromContentType, toContentType);
+	}
+
+	/**
+	 * A nested conversion, the file becomes a dependency of this conversion
+	 * It is not limited separately, this conversion already holds the permits
+	 */
+	@Override
+	public void convert(File file, String toContentType, OutputStream output, Map<String, String> properties) throws IOException, FormatException {
+		addDependency(new Dependency(file));
+		manager.convertNested(file, toContentType, output, properties, cancellation);
+	}
+
+	@Override
+	public WritableDatastore getDatastore(File file) {
+		return manager.getDatastore(file);
+	}
+
+	@Override
+	public List<Templater> getTemplaters() {
+		return manager.getTemplaters();
+	}
+	
+	/**
+	 * Steps of a pipelined conversion run in parallel so this can be called concurrently
+	 */
+	public synchronized void addDependency(Dependency dependency) {
+		if (!dependencies.containsKey(dependency.getPath())) {
+			dependencies.put(dependency.getPath(), dependency);
+		}
+	}
+	
+	public synchronized Collection<Dependency> getDependencies() {
+		return new ArrayList<Dependency>(dependencies.values());
+	}
+	
+	public SimpleDocumentManager getManager() {
+		return manager;
+	}
+	
+	public BatchContext getBatch() {
+		return batch;
+	}
+	
+	public CancellationToken getCancellation() {
+		return cancellation;
+	}
+}
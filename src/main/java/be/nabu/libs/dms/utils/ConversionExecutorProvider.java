@@ -0,0 +1,37 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.dms.utils;
+
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Creates the executors for the internally parallel work of the document manager: the asynchronous api, batches, pipelined chains and revalidations.
+ * An implementation can be registered as a service, the first one found is used by default.
+ */
+public interface ConversionExecutorProvider {
+	/**
+	 * An executor that runs at most the given amount of tasks at the same time and rejects new tasks once the given amount is queued.
+	 * If the amount of threads is <= 0, every task is started immediately. If the queue size is <= 0, the queue is unbounded.
+	 */
+	public ExecutorService newExecutor(String name, int threads, int queueSize);
+	
+	/**
+	 * An executor for a batch of independent conversions with the given parallelism, a fork join pool is split using work stealing
+	 */
+	public ExecutorService newBatchExecutor(String name, int parallelism);
+}
@@ -0,0 +1,279 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.dms.utils;
+
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import be.nabu.libs.dms.api.Converter;
+import be.nabu.libs.dms.converters.ChainConverter;
+import be.nabu.libs.dms.converters.FusedConverter;
+
+/**
+ * Limits the amount of concurrent conversions per converter class and per target content type.
+ * This keeps a burst of expensive conversions (e.g. to odt or slides) from starving the cheap ones.
+ * A chain needs a permit for every converter in it, a conversion waits for its permits up to the timeout and is rejected immediately if too many conversions are already waiting.
+ * Nested conversions (e.g. of an include) run under the permits of the conversion that started them, they are not limited separately.
+ */
+public class ConversionLimiter {
+
+	private ConcurrentMap<Object, Limit> limits = new ConcurrentHashMap<Object, Limit>();
+	
+	/**
+	 * The limits are always acquired in the order they were created so two conversions can not wait on each other
+	 */
+	private AtomicLong sequence = new AtomicLong();
+	
+	/**
+	 * The permits held by the current thread, a nested conversion does not need a second permit for the same limit
+	 */
+	private ThreadLocal<Map<Limit, Integer>> held = new ThreadLocal<Map<Limit, Integer>>() {
+		@Override
+		protected Map<Limit, Integer> initialValue() {
+			return new HashMap<Limit, Integer>();
+		}
+	};
+	
+	/**
+	 * How long (in ms) a conversion waits for a permit before it is rejected
+	 */
+	private long timeout = 30000;
+	
+	/**
+	 * The amount of conversions that can wait for a permit of the same limit, if <= 0 there is no maximum
+	 */
+	private int maxQueued = 0;
+	
+	public void setConverterLimit(Class<? extends Converter> converterClass, int permits) {
+		setLimit(converterClass, converterClass.getName(), permits);
+	}
+	
+	public void setContentTypeLimit(String contentType, int permits) {
+		setLimit(contentType, contentType, permits);
+	}
+	
+	/**
+	 * Conversions that are running keep their permits, they are returned to the limit they were taken from
+	 */
+	private void setLimit(Object key, String name, int permits) {
+		if (permits <= 0) {
+			limits.remove(key);
+		}
+		else {
+			limits.put(key, new Limit(name, permits, sequence.incrementAndGet()));
+		}
+	}
+	
+	/**
+	 * Waits for a permit for every limit that applies to the converter and its target content type
+	 */
+	public Permit acquire(Converter converter, String toContentType) throws ConversionRejectedException, InterruptedIOException {
+		List<Limit> applicable = getLimits(converter, toContentType);
+		Permit permit = new Permit();
+		if (applicable.isEmpty()) {
+			return permit;
+		}
+		Map<Limit, Integer> current = held.get();
+		try {
+			for (Limit limit : applicable) {
+				if (!current.containsKey(limit)) {
+					limit.acquire(timeout, maxQueued);
+				}
+				Integer count = current.get(limit);
+				current.put(limit, count == null ? 1 : count + 1);
+				permit.limits.add(limit);
+			}
+		}
+		catch (ConversionRejectedException e) {
+			permit.release();
+			throw e;
+		}
+		catch (InterruptedIOException e) {
+			permit.release();
+			throw e;
+		}
+		return permit;
+	}
+	
+	private List<Limit> getLimits(Converter converter, String toContentType) {
+		if (limits.isEmpty()) {
+			return Collections.emptyList();
+		}
+		Set<Class<?>> classes = new LinkedHashSet<Class<?>>();
+		collectClasses(converter, classes);
+		List<Limit> applicable = new ArrayList<Limit>();
+		for (Class<?> converterClass : classes) {
+			Limit limit = limits.get(converterClass);
+			if (limit != null) {
+				applicable.add(limit);
+			}
+		}
+		Limit limit = toContentType == null ? null : limits.get(toContentType);
+		if (limit != null) {
+			applicable.add(limit);
+		}
+		Collections.sort(applicable, new Comparator<Limit>() {
+			@Override
+			public int compare(Limit first, Limit second) {
+				return Long.compare(first.order, second.order);
+			}
+		});
+		return applicable;
+	}
+	
+	private static void collectClasses(Converter converter, Set<Class<?>> classes) {
+		classes.add(converter.getClass());
+		if (converter instanceof ChainConverter) {
+			for (Converter step : ((ChainConverter) converter).getChain()) {
+				collectClasses(step, classes);
+			}
+		}
+		// a fused converter does the work of the converters it replaces
+		else if (converter instanceof FusedConverter) {
+			classes.addAll(((FusedConverter) converter).getFusedConverters());
+		}
+	}
+	
+	/**
+	 * The amount of conversions waiting for a permit per limit
+	 */
+	public Map<String, Integer> getQueueDepths() {
+		Map<String, Integer> depths = new TreeMap<String, Integer>();
+		for (Limit limit : limits.values()) {
+			depths.put(limit.name, limit.waiting.get());
+		}
+		return depths;
+	}
+	
+	/**
+	 * The amount of conversions holding a permit per limit
+	 */
+	public Map<String, Integer> getActive() {
+		Map<String, Integer> active = new TreeMap<String, Integer>();
+		for (Limit limit : limits.values()) {
+			active.put(limit.name, limit.permits - limit.semaphore.availablePermits());
+		}
+		return active;
+	}
+	
+	public long getRejections() {
+		long rejections = 0;
+		for (Limit limit : limits.values()) {
+			rejections += limit.rejections.get();
+		}
+		return rejections;
+	}
+	
+	public long getTimeout() {
+		return timeout;
+	}
+
+	public void setTimeout(long timeout) {
+		this.timeout = timeout;
+	}
+
+	public int getMaxQueued() {
+		return maxQueued;
+	}
+
+	public void setMaxQueued(int maxQueued) {
+		this.maxQueued = maxQueued;
+	}
+
+	/**
+	 * The permits of a single conversion, they must be released once it is done
+	 */
+	public class Permit {
+		
+		private List<Limit> limits = new ArrayList<Limit>();
+		
+		public void release() {
+			Map<Limit, Integer> current = held.get();
+			for (Limit limit : limits) {
+				Integer count = current.get(limit);
+				if (count == null || count <= 1) {
+					current.remove(limit);
+					limit.semaphore.release();
+				}
+				else {
+					current.put(limit, count - 1);
+				}
+			}
+			limits.clear();
+		}
+	}
+	
+	private static class Limit {
+		
+		private String name;
+		private int permits;
+		private long order;
+		private Semaphore semaphore;
+		private AtomicInteger waiting = new AtomicInteger();
+		private AtomicLong rejections = new AtomicLong();
+		
+		public Limit(String name, int permits, long order) {
+			this.name = name;
+			this.permits = permits;
+			this.order = order;
+			// fair so the conversions that wait longest go first
+			this.semaphore = new Semaphore(permits, true);
+		}
+		
+		public void acquire(long timeout, int maxQueued) throws ConversionRejectedException, InterruptedIOException {
+			try {
+				// unlike the untimed variant, this does not barge ahead of the conversions that are already waiting
+				if (semaphore.tryAcquire(0, TimeUnit.MILLISECONDS)) {
+					return;
+				}
+				if (maxQueued > 0 && waiting.get() >= maxQueued) {
+					rejections.incrementAndGet();
+					throw new ConversionRejectedException(name, "Too many conversions are waiting for " + name);
+				}
+				waiting.incrementAndGet();
+				try {
+					if (!semaphore.tryAcquire(timeout, TimeUnit.MILLISECONDS)) {
+						rejections.incrementAndGet();
+						throw new ConversionRejectedException(name, "No permit for " + name + " within " + timeout + "ms");
+					}
+				}
+				finally {
+					waiting.decrementAndGet();
+				}
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while waiting for a permit for " + name);
+			}
+		}
+	}
+}
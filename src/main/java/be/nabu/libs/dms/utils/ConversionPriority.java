@@ -0,0 +1,33 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.dms.utils;
+
+/**
+ * The priority of an asynchronous or batch conversion, see {@link PriorityScheduler}
+ */
+public enum ConversionPriority {
+	/**
+	 * A user is waiting for the result, e.g. a page view
+	 */
+	INTERACTIVE,
+	NORMAL,
+	/**
+	 * Background work like extracting text for a search index or a bulk export
+	 */
+	BULK
+}
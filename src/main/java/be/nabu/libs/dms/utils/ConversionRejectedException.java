@@ -0,0 +1,42 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.dms.utils;
+
+import java.io.IOException;
+
+/**
+ * Thrown when a conversion can not get a permit because too many conversions of the same kind are running or waiting
+ */
+public class ConversionRejectedException extends IOException {
+
+	private static final long serialVersionUID = 1L;
+	
+	private String limit;
+	
+	public ConversionRejectedException(String limit, String message) {
+		super(message);
+		this.limit = limit;
+	}
+
+	/**
+	 * The name of the limit that was saturated, a converter class or a content type
+	 */
+	public String getLimit() {
+		return limit;
+	}
+}
@@ -0,0 +1,91 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.dms.utils;
+
+import be.nabu.libs.vfs.api.File;
+
+/**
+ * The outcome of a single conversion
+ */
+public class ConversionResult {
+	
+	private File file;
+	private String toContentType;
+	private byte [] content;
+	private Throwable failure;
+	private long nanos;
+	private boolean stale;
+	
+	public ConversionResult(File file, String toContentType, byte [] content, Throwable failure, long nanos) {
+		this(file, toContentType, content, failure, nanos, false);
+	}
+	
+	public ConversionResult(File file, String toContentType, byte [] content, Throwable failure, long nanos, boolean stale) {
+		this.file = file;
+		this.toContentType = toContentType;
+		this.content = content;
+		this.failure = failure;
+		this.nanos = nanos;
+		this.stale = stale;
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	public String getToContentType() {
+		return toContentType;
+	}
+
+	/**
+	 * The converted content, this is null if the batch was given an output or the conversion failed
+	 */
+	public byte [] getContent() {
+		return content;
+	}
+
+	/**
+	 * Why the conversion failed, this can be an error as well, e.g. a stack overflow in a regex
+	 */
+	public Throwable getFailure() {
+		return failure;
+	}
+	
+	public boolean isSuccessful() {
+		return failure == null;
+	}
+
+	/**
+	 * How long the conversion took
+	 */
+	public long getNanos() {
+		return nanos;
+	}
+	
+	/**
+	 * Whether the previous result of a recently modified file was served while it is being revalidated
+	 */
+	public boolean isStale() {
+		return stale;
+	}
+
+	@Override
+	public String toString() {
+		return "[" + file.getPath() + " to " + toContentType + (failure == null ? "" : ", failure=" + failure) + (stale ? ", stale" : "") + "]";
+	}
+}
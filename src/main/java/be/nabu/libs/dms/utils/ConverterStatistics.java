@@ -0,0 +1,181 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.dms.utils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import be.nabu.libs.dms.api.Converter;
+
+/**
+ * Keeps an exponentially decaying average of the measured cost of each converter
+ */
+public class ConverterStatistics {
+
+	/**
+	 * How much weight a new measurement gets compared to the history
+	 */
+	private double decay = 0.1;
+
+	/**
+	 * The minimum amount of measurements before the cost of a converter is considered reliable
+	 */
+	private int minimumSamples = 10;
+
+	private ConcurrentMap<Converter, ConverterCost> costs = new ConcurrentHashMap<Converter, ConverterCost>();
+
+	/**
+	 * Records a single conversion, if the size of the input is not known (negative) the measurement is skipped as the cost per byte can not be calculated
+	 */
+	public void record(Converter converter, long nanos, long bytesIn, long bytesOut) {
+		if (bytesIn < 0) {
+			return;
+		}
+		ConverterCost cost = costs.get(converter);
+		if (cost == null) {
+			costs.putIfAbsent(converter, new ConverterCost());
+			cost = costs.get(converter);
+		}
+		cost.record(decay, nanos, bytesIn, bytesOut);
+	}
+
+	/**
+	 * The cost of each reliably measured converter relative to the median of all reliably measured converters
+	 * A converter that is not in the map should be considered median (a relative cost of 1), using the median means an unmeasured converter does not lose against a measured converter just because the others are cheap
+	 */
+	public Map<Converter, Double> getRelativeCosts() {
+		Map<Converter, Double> nanosPerByte = new HashMap<Converter, Double>();
+		for (Map.Entry<Converter, ConverterCost> entry : costs.entrySet()) {
+			ConverterCost cost = entry.getValue().copy();
+			if (cost.getSamples() >= minimumSamples) {
+				nanosPerByte.put(entry.getKey(), cost.getNanosPerByte());
+			}
+		}
+		Map<Converter, Double> relativeCosts = new HashMap<Converter, Double>();
+		double median = getMedian(new ArrayList<Double>(nanosPerByte.values()));
+		if (median > 0) {
+			for (Map.Entry<Converter, Double> entry : nanosPerByte.entrySet()) {
+				relativeCosts.put(entry.getKey(), entry.getValue() / median);
+			}
+		}
+		return relativeCosts;
+	}
+	
+	private static double getMedian(List<Double> values) {
+		if (values.isEmpty()) {
+			return 0;
+		}
+		Collections.sort(values);
+		int middle = values.size() / 2;
+		return values.size() % 2 == 1 ? values.get(middle) : (values.get(middle - 1) + values.get(middle)) / 2;
+	}
+
+	/**
+	 * A snapshot of the learned costs per converter
+	 */
+	public Map<Converter, ConverterCost> getCosts() {
+		Map<Converter, ConverterCost> snapshot = new HashMap<Converter, ConverterCost>();
+		for (Map.Entry<Converter, ConverterCost> entry : costs.entrySet()) {
+			snapshot.put(entry.getKey(), entry.getValue().copy());
+		}
+		return snapshot;
+	}
+
+	public double getDecay() {
+		return decay;
+	}
+
+	public void setDecay(double decay) {
+		this.decay = decay;
+	}
+
+	public int getMinimumSamples() {
+		return minimumSamples;
+	}
+
+	public void setMinimumSamples(int minimumSamples) {
+		this.minimumSamples = minimumSamples;
+	}
+
+	public static class ConverterCost {
+
+		private long samples;
+		private double nanos, nanosPerByte, ratio;
+
+		private synchronized void record(double decay, long nanos, long bytesIn, long bytesOut) {
+			// an empty input is counted as a single byte so we still get a usable figure
+			double nanosPerByte = nanos / (double) Math.max(1, bytesIn);
+			double ratio = bytesOut / (double) Math.max(1, bytesIn);
+			if (samples == 0) {
+				this.nanos = nanos;
+				this.nanosPerByte = nanosPerByte;
+				this.ratio = ratio;
+			}
+			else {
+				this.nanos += decay * (nanos - this.nanos);
+				this.nanosPerByte += decay * (nanosPerByte - this.nanosPerByte);
+				this.ratio += decay * (ratio - this.ratio);
+			}
+			samples++;
+		}
+
+		private synchronized ConverterCost copy() {
+			ConverterCost copy = new ConverterCost();
+			copy.samples = samples;
+			copy.nanos = nanos;
+			copy.nanosPerByte = nanosPerByte;
+			copy.ratio = ratio;
+			return copy;
+		}
+
+		public synchronized long getSamples() {
+			return samples;
+		}
+
+		/**
+		 * The average duration of a single conversion
+		 */
+		public synchronized double getNanos() {
+			return nanos;
+		}
+
+		/**
+		 * The average duration per byte of input
+		 */
+		public synchronized double getNanosPerByte() {
+			return nanosPerByte;
+		}
+
+		/**
+		 * The average ratio of bytes out to bytes in
+		 */
+		public synchronized double getRatio() {
+			return ratio;
+		}
+
+		@Override
+		public String toString() {
+			return "[samples=" + getSamples() + ", nanos=" + getNanos() + ", nanosPerByte=" + getNanosPerByte() + ", ratio=" + getRatio() + "]";
+		}
+	}
+}
@@ -0,0 +1,31 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.dms.utils;
+
+import be.nabu.libs.dms.api.DocumentCacheManager;
+import be.nabu.libs.vfs.api.File;
+
+/**
+ * A cache that takes into account how expensive a result was to calculate when deciding what to keep
+ */
+public interface CostAwareCache extends DocumentCacheManager {
+	/**
+	 * The nanos are the time it took to convert the content
+	 */
+	public void setCached(File file, String contentType, byte [] content, long nanos);
+}
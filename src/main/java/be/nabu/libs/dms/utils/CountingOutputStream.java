@@ -0,0 +1,60 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.dms.utils;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Counts the bytes that are written to the output, e.g. to record the cost of a converter per byte
+ */
+public class CountingOutputStream extends OutputStream {
+
+	private OutputStream output;
+	private long count;
+	
+	public CountingOutputStream(OutputStream output) {
+		this.output = output;
+	}
+	
+	@Override
+	public void write(int single) throws IOException {
+		output.write(single);
+		count++;
+	}
+
+	@Override
+	public void write(byte [] bytes, int offset, int length) throws IOException {
+		output.write(bytes, offset, length);
+		count += length;
+	}
+
+	@Override
+	public void flush() throws IOException {
+		output.flush();
+	}
+
+	@Override
+	public void close() throws IOException {
+		output.close();
+	}
+	
+	public long getCount() {
+		return count;
+	}
+}
@@ -19,11 +19,32 @@ package be.nabu.libs.dms.utils;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.URI;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
 
 import be.nabu.libs.dms.MemoryFileFragment;
 import be.nabu.libs.dms.api.Converter;
+import be.nabu.libs.dms.api.DocumentCacheManager;
 import be.nabu.libs.dms.api.DocumentManager;
 import be.nabu.libs.dms.api.FormatException;
+import be.nabu.libs.dms.converters.ChainConverter;
+import be.nabu.libs.dms.converters.PathIndependentConverter;
+import be.nabu.libs.dms.converters.PropertyAwareConverter;
+import be.nabu.libs.dms.utils.DependencyGraph.Dependency;
 import be.nabu.libs.vfs.api.File;
 
 public class DMSUtils {
@@ -37,6 +58,87 @@ public class DMSUtils {
 		return root;
 	}
 
+	/**
+	 * The document manager that started the conversion or null if it is not a simple document manager
+	 */
+	public static SimpleDocumentManager getDocumentManager(DocumentManager repository) {
+		if (repository instanceof ConversionContext) {
+			return ((ConversionContext) repository).getManager();
+		}
+		return repository instanceof SimpleDocumentManager ? (SimpleDocumentManager) repository : null;
+	}
+	
+	/**
+	 * Records that the result of the current conversion depends on the given file, e.g. because it is included
+	 */
+	public static void addDependency(DocumentManager repository, File file) throws IOException {
+		if (repository instanceof ConversionContext) {
+			((ConversionContext) repository).addDependency(new Dependency(file));
+		}
+	}
+	
+	/**
+	 * Records that the result of the current conversion depends on a resource that is not a file, e.g. something in a datastore
+	 */
+	public static void addDependency(DocumentManager repository, URI uri) {
+		if (repository instanceof ConversionContext) {
+			((ConversionContext) repository).addDependency(new Dependency(uri.toString()));
+		}
+	}
+	
+	/**
+	 * Passes the time it took to calculate the content along if the cache can use it
+	 */
+	public static void setCached(DocumentCacheManager cacheManager, File file, String contentType, byte [] content, long nanos) {
+		if (cacheManager instanceof CostAwareCache) {
+			((CostAwareCache) cacheManager).setCached(file, contentType, content, nanos);
+		}
+		else {
+			cacheManager.setCached(file, contentType, content);
+		}
+	}
+	
+	/**
+	 * The batch the current conversion is part of or null if it is not part of one
+	 */
+	public static BatchContext getBatch(DocumentManager repository) {
+		return repository instanceof ConversionContext ? ((ConversionContext) repository).getBatch() : null;
+	}
+	
+	public static CancellationToken getCancellation(DocumentManager repository) {
+		return repository instanceof ConversionContext ? ((ConversionContext) repository).getCancellation() : null;
+	}
+	
+	/**
+	 * Fails with a {@link ConversionCancelledException} if the current conversion is cancelled or past its deadline, converters should call this between their stages
+	 */
+	public static void checkCancelled(DocumentManager repository) throws ConversionCancelledException {
+		CancellationToken cancellation = getCancellation(repository);
+		if (cancellation != null) {
+			cancellation.check();
+		}
+	}
+	
+	/**
+	 * Resolves a link against the parent, within a batch the result is shared with the other conversions
+	 */
+	public static File resolve(DocumentManager repository, File parent, String link) throws IOException {
+		BatchContext batch = getBatch(repository);
+		return batch == null ? parent.resolve(link) : batch.resolve(parent, link);
+	}
+	
+	public static boolean exists(DocumentManager repository, File file) throws IOException {
+		BatchContext batch = getBatch(repository);
+		return batch == null ? file.exists() : batch.exists(file);
+	}
+	
+	/**
+	 * The dependencies recorded so far by the current conversion
+	 */
+	public static Collection<Dependency> getDependencies(DocumentManager repository) {
+		return repository instanceof ConversionContext ? ((ConversionContext) repository).getDependencies() : new ArrayList<Dependency>();
+	}
+	
 	public static byte [] convertQuote(DocumentManager repository, File context, byte [] content, String fromContentType, String toContentType) throws IOException, FormatException {
 		File fragment = new MemoryFileFragment(context, content, "quote", fromContentType);
 		Converter converter = repository.getConverter(fragment.getContentType(), toContentType);
@@ -55,4 +157,129 @@ public class DMSUtils {
 		converter.convert(repository, include, transformedOutput, null);
 		return transformedOutput.toByteArray();
 	}
+	
+	/**
+	 * Only keeps the properties that can change the output of the given converter(s), for a chain this is the union of the steps
+	 * If one of the converters does not declare its relevant properties, all the properties are kept
+	 */
+	public static Map<String, String> getRelevantProperties(List<Converter> converters, Map<String, String> properties) {
+		if (properties == null || properties.isEmpty()) {
+			return properties;
+		}
+		Set<String> names = new HashSet<String>();
+		for (Converter converter : converters) {
+			if (converter instanceof ChainConverter) {
+				Map<String, String> relevant = getRelevantProperties(((ChainConverter) converter).getChain(), properties);
+				if (relevant == properties) {
+					return properties;
+				}
+				names.addAll(relevant.keySet());
+			}
+			else if (converter instanceof PropertyAwareConverter) {
+				names.addAll(((PropertyAwareConverter) converter).getRelevantProperties());
+			}
+			else {
+				return properties;
+			}
+		}
+		Map<String, String> relevant = new HashMap<String, String>();
+		for (String name : names) {
+			if (properties.containsKey(name)) {
+				relevant.put(name, properties.get(name));
+			}
+		}
+		return relevant;
+	}
+	
+	public static Map<String, String> getRelevantProperties(Converter converter, Map<String, String> properties) {
+		return getRelevantProperties(Arrays.asList(converter), properties);
+	}
+	
+	/**
+	 * Whether the output of the given converter(s) only depends on the content of the file, a chain is if all of its steps are
+	 */
+	public static boolean isPathIndependent(List<Converter> converters) {
+		for (Converter converter : converters) {
+			if (converter instanceof ChainConverter) {
+				if (!isPathIndependent(((ChainConverter) converter).getChain())) {
+					return false;
+				}
+			}
+			else if (!(converter instanceof PathIndependentConverter)) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * The content type that is used as cache key for a conversion with the given properties
+	 * The properties are added as a hash parameter that does not depend on the order of the map, no properties means no parameter
+	 */
+	public static String getCacheContentType(String contentType, Map<String, String> properties) {
+		if (properties == null || properties.isEmpty()) {
+			return contentType;
+		}
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			Charset charset = Charset.forName("UTF-8");
+			for (Map.Entry<String, String> entry : new TreeMap<String, String>(properties).entrySet()) {
+				// length prefixed so the boundaries between keys and values are unambiguous
+				for (String part : new String [] { entry.getKey(), entry.getValue() }) {
+					byte [] bytes = part == null ? new byte[0] : part.getBytes(charset);
+					digest.update((part == null ? "-1:" : bytes.length + ":").getBytes(charset));
+					digest.update(bytes);
+				}
+			}
+			return contentType + ";properties=" + toHex(digest.digest(), 16);
+		}
+		catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+	}
+	
+	/**
+	 * The cpu time of the current thread in nanoseconds or -1 if it can not be measured, e.g. because it is a virtual thread
+	 */
+	public static long getCpuTime() {
+		ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		try {
+			return bean.isCurrentThreadCpuTimeSupported() ? bean.getCurrentThreadCpuTime() : -1;
+		}
+		catch (UnsupportedOperationException e) {
+			return -1;
+		}
+	}
+	
+	/**
+	 * A hash of the content of the file, identical files have the same hash regardless of their path
+	 */
+	public static String getContentHash(File file) throws IOException {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			InputStream input = file.getInputStream();
+			try {
+				byte [] buffer = new byte[8192];
+				int read;
+				while ((read = input.read(buffer)) > 0) {
+					digest.update(buffer, 0, read);
+				}
+			}
+			finally {
+				input.close();
+			}
+			return toHex(digest.digest(), 16);
+		}
+		catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+	}
+	
+	static String toHex(byte [] bytes, int length) {
+		StringBuilder builder = new StringBuilder();
+		for (int i = 0; i < length; i++) {
+			builder.append(String.format("%02x", bytes[i] & 0xff));
+		}
+		return builder.toString();
+	}
 }
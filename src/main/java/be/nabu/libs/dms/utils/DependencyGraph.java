@@ -0,0 +1,298 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+package be.nabu.libs.dms.utils;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import be.nabu.libs.vfs.api.File;
+
+/**
+ * Keeps track of the files and resources that were used by the conversion of a file, e.g. the included documents and the embedded images.
+ * Each file with dependencies has a version that is part of its cache key, invalidating a dependency changes the version of all the files that (transitively) depend on it.
+ * The version is derived from the recorded dependencies and their modification dates so it is the same across restarts.
+ * The graph only lives in memory: after a restart the first conversion of a file records its dependencies again and replaces the result that was cached under the same version.
+ */
+public class DependencyGraph {
+
+	/**
+	 * How often (in ms) the dependencies of a file are checked for modifications, a value <= 0 checks them on every use
+	 */
+	private long checkInterval = 1000;
+	
+	/**
+	 * The maximum amount of files whose dependencies are tracked, the least recently used ones are forgotten and converted again on their next use
+	 */
+	private int maxFiles = 100000;
+	
+	/**
+	 * The dependencies of each file from least to most recently used, keyed by the path of the file
+	 */
+	private LinkedHashMap<String, Dependencies> dependencies = new LinkedHashMap<String, Dependencies>(16, 0.75f, true);
+	
+	/**
+	 * The files that depend on a path
+	 */
+	private Map<String, Set<String>> dependents = new HashMap<String, Set<String>>();
+	
+	/**
+	 * How often each path was invalidated, this is part of the fingerprint of the files that depend on it
+	 */
+	private Map<String, Long> invalidations = new HashMap<String, Long>();
+	
+	/**
+	 * Replaces the dependencies of the file with the ones recorded during its latest conversion
+	 */
+	public synchronized void record(String path, Collection<Dependency> recorded) {
+		Dependencies previous = dependencies.get(path);
+		if (previous != null) {
+			unlink(path, previous);
+		}
+		if (recorded.isEmpty() && previous == null) {
+			return;
+		}
+		Dependencies current = new Dependencies(previous == null ? 0 : previous.generation, recorded);
+		dependencies.put(path, current);
+		for (Dependency dependency : recorded) {
+			if (!dependents.containsKey(dependency.getPath())) {
+				dependents.put(dependency.getPath(), new HashSet<String>());
+			}
+			dependents.get(dependency.getPath()).add(path);
+		}
+		Iterator<Map.Entry<String, Dependencies>> iterator = dependencies.entrySet().iterator();
+		while (dependencies.size() > maxFiles && iterator.hasNext()) {
+			Map.Entry<String, Dependencies> eldest = iterator.next();
+			iterator.remove();
+			unlink(eldest.getKey(), eldest.getValue());
+		}
+	}
+	
+	/**
+	 * Removes the file from the dependents of its dependencies
+	 * The invalidation counts are kept, a result that was cached before an invalidation must never match again
+	 */
+	private void unlink(String path, Dependencies previous) {
+		for (Dependency dependency : previous.dependencies) {
+			Set<String> set = dependents.get(dependency.getPath());
+			if (set != null) {
+				set.remove(path);
+				if (set.isEmpty()) {
+					dependents.remove(dependency.getPath());
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Checks whether any of the dependencies of the file has been modified since they were recorded, if so everything that depends on them is invalidated
+	 */
+	public void validate(String path) throws IOException {
+		Dependencies current;
+		synchronized(this) {
+			current = dependencies.get(path);
+			if (current == null || current.invalidated) {
+				return;
+			}
+			long now = System.currentTimeMillis();
+			if (checkInterval > 0 && now - current.checked < checkInterval) {
+				return;
+			}
+			current.checked = now;
+		}
+		for (Dependency dependency : current.dependencies) {
+			if (dependency.isModified()) {
+				invalidate(dependency.getPath());
+			}
+		}
+	}
+	
+	/**
+	 * Invalidates all the files that depend (transitively) on the given path, returns the paths that were invalidated
+	 */
+	public synchronized Set<String> invalidate(String path) {
+		Set<String> invalidated = new HashSet<String>();
+		invalidations.put(path, invalidations.containsKey(path) ? invalidations.get(path) + 1 : 1);
+		Deque<String> queue = new ArrayDeque<String>();
+		queue.add(path);
+		while (!queue.isEmpty()) {
+			Set<String> set = dependents.get(queue.poll());
+			if (set != null) {
+				for (String dependent : set) {
+					if (invalidated.add(dependent)) {
+						Dependencies current = dependencies.get(dependent);
+						current.generation++;
+						// until it is converted again, there is no need to check its dependencies
+						current.invalidated = true;
+						queue.add(dependent);
+					}
+				}
+			}
+		}
+		return invalidated;
+	}
+	
+	/**
+	 * The version of the file's dependencies or null if it has none
+	 */
+	public synchronized String getVersion(String path) {
+		Dependencies current = dependencies.get(path);
+		if (current == null) {
+			return null;
+		}
+		List<String> parts = new ArrayList<String>();
+		for (Dependency dependency : current.dependencies) {
+			parts.add(dependency.getPath() + ":" + dependency.lastModified);
+		}
+		return hash(parts) + "." + current.generation;
+	}
+	
+	/**
+	 * A fingerprint of the file's dependencies that, unlike the version, does not depend on the path of the file itself or null if it has no dependencies
+	 * Files that include the same resources have the same fingerprint, it changes when one of those resources is modified or invalidated
+	 */
+	public synchronized String getFingerprint(String path) {
+		Dependencies current = dependencies.get(path);
+		if (current == null || current.dependencies.isEmpty()) {
+			return null;
+		}
+		List<String> parts = new ArrayList<String>();
+		for (Dependency dependency : current.dependencies) {
+			Long count = invalidations.get(dependency.getPath());
+			parts.add(dependency.getPath() + ":" + dependency.lastModified + ":" + (count == null ? 0 : count));
+		}
+		return hash(parts);
+	}
+	
+	private static String hash(List<String> parts) {
+		Collections.sort(parts);
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			for (String part : parts) {
+				digest.update((part + "\n").getBytes("UTF-8"));
+			}
+			return DMSUtils.toHex(digest.digest(), 16);
+		}
+		catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+		catch (UnsupportedEncodingException e) {
+			throw new RuntimeException(e);
+		}
+	}
+	
+	public synchronized Set<String> getDependencies(String path) {
+		Set<String> paths = new HashSet<String>();
+		Dependencies current = dependencies.get(path);
+		if (current != null) {
+			for (Dependency dependency : current.dependencies) {
+				paths.add(dependency.getPath());
+			}
+		}
+		return paths;
+	}
+	
+	public long getCheckInterval() {
+		return checkInterval;
+	}
+
+	public void setCheckInterval(long checkInterval) {
+		this.checkInterval = checkInterval;
+	}
+
+	public int getMaxFiles() {
+		return maxFiles;
+	}
+
+	public synchronized void setMaxFiles(int maxFiles) {
+		this.maxFiles = maxFiles;
+	}
+	
+	/**
+	 * The amount of files whose dependencies are currently tracked
+	 */
+	public synchronized int getSize() {
+		return dependencies.size();
+	}
+
+	private static class Dependencies {
+		private long generation, checked;
+		private boolean invalidated;
+		private Collection<Dependency> dependencies;
+		
+		public Dependencies(long generation, Collection<Dependency> dependencies) {
+			this.generation = generation;
+			this.dependencies = dependencies;
+		}
+	}
+	
+	/**
+	 * A file or a resource that was used during a conversion, for files the modification date at that time is kept so changes can be detected
+	 */
+	public static class Dependency {
+		
+		private String path;
+		private File file;
+		private long lastModified;
+		
+		/**
+		 * A resource that can only be invalidated explicitly, e.g. something in a datastore
+		 */
+		public Dependency(String path) {
+			this.path = path;
+		}
+		
+		public Dependency(File file) throws IOException {
+			this.path = file.getPath();
+			this.file = file;
+			this.lastModified = getLastModified(file);
+		}
+		
+		public boolean isModified() throws IOException {
+			return file != null && getLastModified(file) != lastModified;
+		}
+		
+		public String getPath() {
+			return path;
+		}
+		
+		/**
+		 * A file that does not exist (yet) is recorded as well, if it is created later the dependents are no longer valid
+		 */
+		private static long getLastModified(File file) throws IOException {
+			if (!file.exists()) {
+				return -1;
+			}
+			Date lastModified = file.getLastModified();
+			return lastModified == null ? 0 : lastModified.getTime();
+		}
+	}
+}
@@ -0,0 +1,106 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.dms.utils;
+
+/**
+ * An approximation of how often each key was used recently, in a fixed amount of memory.
+ * This is a count-min sketch with four rows of 4-bit counters, the estimate of a key is the lowest of its four counters.
+ * Once the amount of increments reaches ten times the width of the sketch, all counters are halved so the frequencies follow a changing workload.
+ */
+public class FrequencySketch {
+
+	private static final long [] SEEDS = new long [] { 0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L };
+	
+	private static final long HALF = 0x7777777777777777L;
+	
+	/**
+	 * Each long holds sixteen counters of 4 bits
+	 */
+	private long [] table;
+	private int mask, sampleSize, additions;
+	
+	/**
+	 * The sketch is sized for the expected amount of distinct keys that are tracked at the same time
+	 */
+	public FrequencySketch(int expectedSize) {
+		int width = Integer.highestOneBit(Math.max(64, expectedSize) - 1) << 1;
+		table = new long[width / 16 * SEEDS.length];
+		mask = width - 1;
+		sampleSize = width * 10;
+	}
+	
+	public synchronized void increment(Object key) {
+		int hash = spread(key.hashCode());
+		boolean added = false;
+		for (int row = 0; row < SEEDS.length; row++) {
+			added |= increment(row, index(hash, row));
+		}
+		if (added && ++additions >= sampleSize) {
+			reset();
+		}
+	}
+	
+	/**
+	 * The estimated frequency of the key, between 0 and 15
+	 */
+	public synchronized int frequency(Object key) {
+		int hash = spread(key.hashCode());
+		int frequency = 15;
+		for (int row = 0; row < SEEDS.length; row++) {
+			frequency = Math.min(frequency, get(row, index(hash, row)));
+		}
+		return frequency;
+	}
+	
+	private int get(int row, int index) {
+		long word = table[row * (table.length / SEEDS.length) + (index >>> 4)];
+		return (int) ((word >>> ((index & 15) << 2)) & 15L);
+	}
+	
+	/**
+	 * Returns false if the counter is already at its maximum
+	 */
+	private boolean increment(int row, int index) {
+		int position = row * (table.length / SEEDS.length) + (index >>> 4);
+		int shift = (index & 15) << 2;
+		if (((table[position] >>> shift) & 15L) == 15L) {
+			return false;
+		}
+		table[position] += 1L << shift;
+		return true;
+	}
+	
+	private void reset() {
+		for (int i = 0; i < table.length; i++) {
+			table[i] = (table[i] >>> 1) & HALF;
+		}
+		additions /= 2;
+	}
+	
+	private int index(int hash, int row) {
+		long value = (hash + SEEDS[row]) * SEEDS[row];
+		value += value >>> 32;
+		return (int) value & mask;
+	}
+	
+	private static int spread(int hash) {
+		hash = ((hash >>> 16) ^ hash) * 0x45d9f3b;
+		hash = ((hash >>> 16) ^ hash) * 0x45d9f3b;
+		return (hash >>> 16) ^ hash;
+	}
+}
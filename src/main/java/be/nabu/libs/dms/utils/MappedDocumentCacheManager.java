@@ -0,0 +1,348 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+package be.nabu.libs.dms.utils;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import be.nabu.libs.vfs.api.File;
+
+/**
+ * A cache that keeps the results outside of the heap in a memory mapped segment file, only a small index lives on the heap.
+ * Results are appended to the segment, when it is full the least recently used entries are evicted and the remaining ones are compacted into a new segment.
+ * A segment that is replaced stays mapped as long as it is being read so hits are never blocked by a compaction.
+ * The segments are scratch space, they do not survive a restart.
+ */
+public class MappedDocumentCacheManager implements RenditionCache {
+
+	private java.io.File directory;
+	private int segmentSize;
+	
+	/**
+	 * The fraction of the segment that is kept when compacting, the rest is freed for new entries
+	 */
+	private double compactionRatio = 0.5;
+	
+	/**
+	 * The maximum size of a single entry as a fraction of the segment
+	 */
+	private double maxEntryRatio = 0.25;
+	
+	private Logger logger = LoggerFactory.getLogger(getClass());
+	
+	private Segment segment;
+	private int generation;
+	
+	/**
+	 * The replaced segments that could not be deleted yet
+	 */
+	private List<java.io.File> retired = new ArrayList<java.io.File>();
+	private long liveSize;
+	
+	/**
+	 * The cached entries from least to most recently used
+	 */
+	private LinkedHashMap<String, Location> index = new LinkedHashMap<String, Location>(16, 0.75f, true);
+	
+	private AtomicLong hits = new AtomicLong(), misses = new AtomicLong(), evictions = new AtomicLong(), compactions = new AtomicLong();
+	
+	public MappedDocumentCacheManager(java.io.File directory, int segmentSize) throws IOException {
+		this.directory = directory;
+		this.segmentSize = segmentSize;
+		if (!directory.exists() && !directory.mkdirs()) {
+			throw new IOException("Can not create cache directory: " + directory);
+		}
+		// segments of a previous run are useless without the index
+		java.io.File [] files = directory.listFiles();
+		if (files != null) {
+			for (java.io.File file : files) {
+				if (file.getName().startsWith("segment-")) {
+					file.delete();
+				}
+			}
+		}
+		this.segment = newSegment();
+	}
+	
+	@Override
+	public byte [] getCached(File file, String contentType) {
+		Location location = getLocation(file, contentType);
+		if (location == null) {
+			return null;
+		}
+		byte [] content = new byte[location.length];
+		location.getBuffer().get(content);
+		return content;
+	}
+	
+	/**
+	 * Writes the cached result straight from the mapped segment to the output
+	 */
+	@Override
+	public boolean writeCached(File file, String contentType, OutputStream output) throws IOException {
+		Location location = getLocation(file, contentType);
+		if (location == null) {
+			return false;
+		}
+		WritableByteChannel channel = Channels.newChannel(output);
+		ByteBuffer buffer = location.getBuffer();
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+		return true;
+	}
+	
+	private Location getLocation(File file, String contentType) {
+		String key = getKey(file, contentType);
+		long lastModified = getLastModified(file);
+		synchronized(this) {
+			Location location = index.get(key);
+			// an outdated entry is kept until it is replaced, it can still be served as a stale result
+			if (location != null && location.lastModified != lastModified) {
+				location = null;
+			}
+			if (location == null) {
+				misses.incrementAndGet();
+			}
+			else {
+				hits.incrementAndGet();
+			}
+			return location;
+		}
+	}
+
+	@Override
+	public byte [] getStale(File file, String contentType) {
+		Location location;
+		synchronized(this) {
+			location = index.get(getKey(file, contentType));
+		}
+		if (location == null) {
+			return null;
+		}
+		byte [] content = new byte[location.length];
+		location.getBuffer().get(content);
+		return content;
+	}
+
+	@Override
+	public synchronized void setCached(File file, String contentType, byte [] content) {
+		if (content.length > segmentSize * maxEntryRatio) {
+			return;
+		}
+		String key = getKey(file, contentType);
+		Location previous = index.remove(key);
+		if (previous != null) {
+			liveSize -= previous.length;
+		}
+		try {
+			if (segment.position + content.length > segmentSize) {
+				compact(content.length);
+			}
+			ByteBuffer buffer = segment.buffer.duplicate();
+			buffer.position(segment.position);
+			buffer.put(content);
+			index.put(key, new Location(segment, segment.position, content.length, getLastModified(file)));
+			segment.position += content.length;
+			liveSize += content.length;
+		}
+		catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+	
+	/**
+	 * Evicts the least recently used entries until the remaining ones fit in the compaction ratio and copies those to a new segment
+	 * Whatever the ratios, enough is evicted to leave room for the new entry
+	 */
+	private void compact(int required) throws IOException {
+		Iterator<Location> iterator = index.values().iterator();
+		while ((liveSize > segmentSize * compactionRatio || liveSize + required > segmentSize) && iterator.hasNext()) {
+			liveSize -= iterator.next().length;
+			iterator.remove();
+			evictions.incrementAndGet();
+		}
+		Segment compacted = newSegment();
+		List<Map.Entry<String, Location>> entries = new ArrayList<Map.Entry<String, Location>>(index.entrySet());
+		// copying in access order keeps the order of the index intact
+		for (Map.Entry<String, Location> entry : entries) {
+			Location location = entry.getValue();
+			ByteBuffer target = compacted.buffer.duplicate();
+			target.position(compacted.position);
+			target.put(location.getBuffer());
+			entry.setValue(new Location(compacted, compacted.position, location.length, location.lastModified));
+			compacted.position += location.length;
+		}
+		Segment previous = segment;
+		segment = compacted;
+		// the mapping of the previous segment remains valid for readers until it is garbage collected
+		retire(previous.file);
+		compactions.incrementAndGet();
+	}
+	
+	/**
+	 * Some platforms do not allow deleting a file that is still mapped, such a segment is deleted at a later compaction
+	 */
+	private void retire(java.io.File file) {
+		retired.add(file);
+		Iterator<java.io.File> iterator = retired.iterator();
+		while (iterator.hasNext()) {
+			java.io.File next = iterator.next();
+			if (delete(next)) {
+				iterator.remove();
+			}
+			else {
+				logger.warn("Could not delete the replaced segment {}, retrying at the next compaction", next);
+			}
+		}
+	}
+	
+	protected boolean delete(java.io.File file) {
+		return file.delete() || !file.exists();
+	}
+	
+	private Segment newSegment() throws IOException {
+		java.io.File file = new java.io.File(directory, "segment-" + generation++);
+		RandomAccessFile access = new RandomAccessFile(file, "rw");
+		try {
+			access.setLength(segmentSize);
+			return new Segment(file, access.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segmentSize));
+		}
+		finally {
+			// the mapping stays valid after the channel is closed
+			access.close();
+		}
+	}
+	
+	private static String getKey(File file, String contentType) {
+		return file.getPath() + ";" + contentType;
+	}
+	
+	private static long getLastModified(File file) {
+		try {
+			Date lastModified = file.getLastModified();
+			return lastModified == null ? 0 : lastModified.getTime();
+		}
+		catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+	
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	public long getEvictions() {
+		return evictions.get();
+	}
+	
+	/**
+	 * The amount of replaced segments that are waiting to be deleted
+	 */
+	public synchronized int getRetiredSegments() {
+		return retired.size();
+	}
+
+	public long getCompactions() {
+		return compactions.get();
+	}
+	
+	public synchronized long getLiveSize() {
+		return liveSize;
+	}
+	
+	public double getCompactionRatio() {
+		return compactionRatio;
+	}
+
+	public void setCompactionRatio(double compactionRatio) {
+		if (compactionRatio < 0 || compactionRatio >= 1) {
+			throw new IllegalArgumentException("The compaction ratio must be at least 0 and less than 1");
+		}
+		this.compactionRatio = compactionRatio;
+	}
+
+	public double getMaxEntryRatio() {
+		return maxEntryRatio;
+	}
+
+	public void setMaxEntryRatio(double maxEntryRatio) {
+		if (maxEntryRatio <= 0 || maxEntryRatio > 1) {
+			throw new IllegalArgumentException("The maximum entry ratio must be more than 0 and at most 1");
+		}
+		this.maxEntryRatio = maxEntryRatio;
+	}
+
+	@Override
+	public String toString() {
+		return "[hits=" + getHits() + ", misses=" + getMisses() + ", evictions=" + getEvictions() + ", compactions=" + getCompactions() + ", liveSize=" + getLiveSize() + "]";
+	}
+
+	private static class Segment {
+		private java.io.File file;
+		private MappedByteBuffer buffer;
+		private int position;
+		
+		public Segment(java.io.File file, MappedByteBuffer buffer) {
+			this.file = file;
+			this.buffer = buffer;
+		}
+	}
+	
+	private static class Location {
+		private Segment segment;
+		private int offset, length;
+		private long lastModified;
+		
+		public Location(Segment segment, int offset, int length, long lastModified) {
+			this.segment = segment;
+			this.offset = offset;
+			this.length = length;
+			this.lastModified = lastModified;
+		}
+		
+		/**
+		 * A view on the entry that can be read independently of other readers
+		 */
+		public ByteBuffer getBuffer() {
+			ByteBuffer buffer = segment.buffer.duplicate();
+			buffer.position(offset);
+			buffer.limit(offset + length);
+			return buffer.slice();
+		}
+	}
+}
@@ -0,0 +1,195 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.dms.utils;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs tasks of different priorities on a shared executor with at most the given amount of workers.
+ * Whenever a worker is free, it takes the next task according to the weights of the priorities that have work waiting (smooth weighted round robin).
+ * A higher priority gets proportionally more turns but a lower priority always gets its share, bulk work does not starve when interactive work keeps coming in.
+ * Each priority has its own bounded queue, once it is full new tasks of that priority are rejected.
+ * A task that arrives while a worker is available is handed to a new worker directly, it is never queued.
+ */
+public class PriorityScheduler {
+
+	private Logger logger = LoggerFactory.getLogger(getClass());
+	
+	private Executor executor;
+	private int threads, queueSize;
+	private Deque<Runnable> [] queues;
+	private int [] weights, currentWeights;
+	
+	/**
+	 * The workers that are running
+	 */
+	private int active;
+	
+	/**
+	 * Runs the task it was started for and then takes queued tasks until there are none left
+	 */
+	private class Worker implements Runnable {
+		
+		private Runnable task;
+		
+		public Worker(Runnable task) {
+			this.task = task;
+		}
+		
+		@Override
+		public void run() {
+			try {
+				while (task != null) {
+					try {
+						task.run();
+					}
+					// an error (e.g. a stack overflow) only concerns the task, the worker keeps serving the queue
+					catch (Throwable e) {
+						logger.error("Scheduled task failed", e);
+					}
+					finally {
+						synchronized(PriorityScheduler.this) {
+							task = next();
+							if (task == null) {
+								active--;
+							}
+						}
+					}
+				}
+			}
+			finally {
+				// if the worker stops anyway, the task it already took is handed to a new worker that takes its place
+				if (task != null) {
+					handOver(task);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * The executor only runs the workers, it must be able to run the given amount of threads at the same time and should not bound its own queue as the scheduler already does
+	 * If the amount of threads is <= 0, a worker is started for every task
+	 */
+	@SuppressWarnings("unchecked")
+	public PriorityScheduler(Executor executor, int threads, int queueSize) {
+		this.executor = executor;
+		this.threads = threads;
+		this.queueSize = queueSize;
+		ConversionPriority [] priorities = ConversionPriority.values();
+		this.queues = new Deque[priorities.length];
+		this.weights = new int[priorities.length];
+		this.currentWeights = new int[priorities.length];
+		for (int i = 0; i < priorities.length; i++) {
+			queues[i] = new ArrayDeque<Runnable>();
+		}
+		// bulk gets at least 1/13th of the turns when everything is busy
+		weights[ConversionPriority.INTERACTIVE.ordinal()] = 8;
+		weights[ConversionPriority.NORMAL.ordinal()] = 4;
+		weights[ConversionPriority.BULK.ordinal()] = 1;
+	}
+	
+	public void execute(Runnable task, ConversionPriority priority) {
+		Deque<Runnable> queue = queues[priority.ordinal()];
+		synchronized(this) {
+			if (threads > 0 && active >= threads) {
+				if (queueSize > 0 && queue.size() >= queueSize) {
+					throw new RejectedExecutionException("Too many " + priority + " tasks are queued");
+				}
+				queue.add(task);
+				return;
+			}
+			active++;
+		}
+		try {
+			executor.execute(new Worker(task));
+		}
+		catch (RejectedExecutionException e) {
+			// the task was never queued so no other worker can have taken it
+			synchronized(this) {
+				active--;
+			}
+			throw e;
+		}
+	}
+	
+	private void handOver(Runnable task) {
+		try {
+			executor.execute(new Worker(task));
+		}
+		catch (RejectedExecutionException e) {
+			synchronized(this) {
+				active--;
+			}
+			logger.error("Could not hand over a scheduled task to a new worker", e);
+		}
+	}
+	
+	/**
+	 * Every priority with work waiting gains its weight, the one with the most is picked and pays back the total
+	 */
+	private synchronized Runnable next() {
+		int total = 0;
+		int selected = -1;
+		for (int i = 0; i < queues.length; i++) {
+			if (!queues[i].isEmpty()) {
+				currentWeights[i] += weights[i];
+				total += weights[i];
+				if (selected < 0 || currentWeights[i] > currentWeights[selected]) {
+					selected = i;
+				}
+			}
+		}
+		if (selected < 0) {
+			return null;
+		}
+		currentWeights[selected] -= total;
+		Runnable task = queues[selected].poll();
+		// a priority that has run dry does not save up (or owe) turns for later
+		for (int i = 0; i < queues.length; i++) {
+			if (queues[i].isEmpty()) {
+				currentWeights[i] = 0;
+			}
+		}
+		return task;
+	}
+	
+	public synchronized int getActive() {
+		return active;
+	}
+	
+	public synchronized int getQueueDepth(ConversionPriority priority) {
+		return queues[priority.ordinal()].size();
+	}
+	
+	public synchronized int getWeight(ConversionPriority priority) {
+		return weights[priority.ordinal()];
+	}
+	
+	public synchronized void setWeight(ConversionPriority priority, int weight) {
+		if (weight <= 0) {
+			throw new IllegalArgumentException("The weight must be positive");
+		}
+		weights[priority.ordinal()] = weight;
+	}
+}
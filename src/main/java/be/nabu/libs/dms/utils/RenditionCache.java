@@ -0,0 +1,38 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+package be.nabu.libs.dms.utils;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import be.nabu.libs.dms.api.DocumentCacheManager;
+import be.nabu.libs.vfs.api.File;
+
+/**
+ * A cache that can write a cached result directly to an output instead of handing out a copy
+ */
+public interface RenditionCache extends DocumentCacheManager {
+	/**
+	 * Returns false if there is no valid cached result, nothing is written in that case
+	 */
+	public boolean writeCached(File file, String contentType, OutputStream output) throws IOException;
+	
+	/**
+	 * Returns the cached result even if the file was modified since it was cached or null if there is none
+	 */
+	public byte [] getStale(File file, String contentType);
+}
@@ -0,0 +1,184 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.dms.utils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+
+/**
+ * A bounded buffer that connects a single writing thread to a single reading thread.
+ * The writer blocks while the buffer is full, the reader blocks while it is empty.
+ * Unlike the piped streams in the jdk, both sides are woken up as soon as there is something to do.
+ */
+public class RingBuffer {
+
+	private final byte [] buffer;
+	private int readPosition, available;
+
+	/**
+	 * The writer has closed its end, once the buffer is drained the reader gets an end of stream
+	 */
+	private boolean closed;
+
+	/**
+	 * The reader has closed its end, any further writes fail
+	 */
+	private boolean abandoned;
+
+	/**
+	 * The writer has failed, the reader gets an exception instead of an end of stream
+	 */
+	private Throwable failure;
+
+	private InputStream input = new InputStream() {
+		@Override
+		public int read() throws IOException {
+			byte [] single = new byte[1];
+			int read = read(single, 0, 1);
+			return read < 0 ? -1 : single[0] & 0xff;
+		}
+		@Override
+		public int read(byte [] bytes, int offset, int length) throws IOException {
+			return RingBuffer.this.read(bytes, offset, length);
+		}
+		@Override
+		public int available() throws IOException {
+			synchronized(RingBuffer.this) {
+				return available;
+			}
+		}
+		@Override
+		public void close() throws IOException {
+			synchronized(RingBuffer.this) {
+				abandoned = true;
+				RingBuffer.this.notifyAll();
+			}
+		}
+	};
+
+	private OutputStream output = new OutputStream() {
+		@Override
+		public void write(int single) throws IOException {
+			write(new byte [] { (byte) single }, 0, 1);
+		}
+		@Override
+		public void write(byte [] bytes, int offset, int length) throws IOException {
+			RingBuffer.this.write(bytes, offset, length);
+		}
+		@Override
+		public void close() throws IOException {
+			synchronized(RingBuffer.this) {
+				closed = true;
+				RingBuffer.this.notifyAll();
+			}
+		}
+	};
+
+	public RingBuffer(int size) {
+		this.buffer = new byte[size];
+	}
+
+	private synchronized int read(byte [] bytes, int offset, int length) throws IOException {
+		if (length == 0) {
+			return 0;
+		}
+		try {
+			while (available == 0 && !closed && failure == null && !abandoned) {
+				wait();
+			}
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting for data");
+		}
+		if (abandoned) {
+			throw new IOException("The buffer is closed");
+		}
+		else if (failure != null) {
+			throw new IOException("The writer has failed", failure);
+		}
+		else if (available == 0) {
+			return -1;
+		}
+		int read = 0;
+		// at most two copies are needed: up to the end of the array and from the start
+		while (read < length && available > 0) {
+			int amount = Math.min(Math.min(length - read, available), buffer.length - readPosition);
+			System.arraycopy(buffer, readPosition, bytes, offset + read, amount);
+			readPosition = (readPosition + amount) % buffer.length;
+			available -= amount;
+			read += amount;
+		}
+		notifyAll();
+		return read;
+	}
+
+	private synchronized void write(byte [] bytes, int offset, int length) throws IOException {
+		if (closed) {
+			throw new IOException("The buffer is closed for writing");
+		}
+		int written = 0;
+		while (written < length) {
+			try {
+				while (available == buffer.length && !abandoned) {
+					wait();
+				}
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while waiting for space");
+			}
+			if (abandoned) {
+				throw new IOException("The reader has closed the buffer");
+			}
+			while (written < length && available < buffer.length) {
+				int writePosition = (readPosition + available) % buffer.length;
+				int amount = Math.min(Math.min(length - written, buffer.length - available), buffer.length - writePosition);
+				System.arraycopy(bytes, offset + written, buffer, writePosition, amount);
+				available += amount;
+				written += amount;
+			}
+			notifyAll();
+		}
+	}
+
+	/**
+	 * Signals the reader that the writer has failed
+	 */
+	public synchronized void fail(Throwable failure) {
+		this.failure = failure;
+		notifyAll();
+	}
+
+	/**
+	 * Whether the reader has closed its end of the buffer
+	 */
+	public synchronized boolean isAbandoned() {
+		return abandoned;
+	}
+
+	public InputStream getInputStream() {
+		return input;
+	}
+
+	public OutputStream getOutputStream() {
+		return output;
+	}
+}
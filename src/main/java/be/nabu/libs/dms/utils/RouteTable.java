@@ -0,0 +1,244 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.dms.utils;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import be.nabu.libs.dms.api.Converter;
+import be.nabu.libs.dms.converters.ChainConverter;
+import be.nabu.libs.dms.converters.FusedConverter;
+
+/**
+ * An immutable table with the best route between every pair of known content types.
+ * The content types are interned to a dense id, for each pair we keep the best next hop and the resulting (possibly chained or fused) converter.
+ */
+public class RouteTable {
+
+	private Map<String, Integer> ids;
+	private List<String> contentTypes;
+	private Converter [][] nextHops;
+	private Converter [][] routes;
+	private BitSet [] reachable;
+
+	/**
+	 * The statistics are passed along to the chains so they can record the cost of each converter, they are optional
+	 */
+	public RouteTable(List<String> contentTypes, Converter [][] nextHops, ConverterStatistics statistics) {
+		this(contentTypes, nextHops, statistics, new ArrayList<FusedConverter>());
+	}
+	
+	/**
+	 * Adjacent converters in a route that are replaced by one of the fused converters are substituted
+	 */
+	public RouteTable(List<String> contentTypes, Converter [][] nextHops, ConverterStatistics statistics, List<FusedConverter> fusedConverters) {
+		this.contentTypes = contentTypes;
+		this.nextHops = nextHops;
+		this.ids = new HashMap<String, Integer>();
+		for (int i = 0; i < contentTypes.size(); i++) {
+			ids.put(contentTypes.get(i), i);
+		}
+		this.routes = new Converter[contentTypes.size()][contentTypes.size()];
+		this.reachable = new BitSet[contentTypes.size()];
+		for (int from = 0; from < contentTypes.size(); from++) {
+			reachable[from] = new BitSet(contentTypes.size());
+			for (int to = 0; to < contentTypes.size(); to++) {
+				List<Converter> path = getPath(from, to);
+				if (path != null) {
+					path = fuse(path, fusedConverters);
+					if (path.size() == 1) {
+						routes[from][to] = path.get(0);
+					}
+					else {
+						ChainConverter chain = new ChainConverter(path);
+						chain.setStatistics(statistics);
+						routes[from][to] = chain;
+					}
+					reachable[from].set(to);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Follows the next hops until we arrive at the target
+	 */
+	private List<Converter> getPath(int from, int to) {
+		if (nextHops[from][to] == null) {
+			return null;
+		}
+		List<Converter> path = new ArrayList<Converter>();
+		int current = from;
+		while (current != to) {
+			Converter converter = nextHops[current][to];
+			// every hop must bring us closer, if not the table is inconsistent
+			if (converter == null || path.size() >= contentTypes.size()) {
+				throw new IllegalStateException("Inconsistent route from " + contentTypes.get(from) + " to " + contentTypes.get(to));
+			}
+			path.add(converter);
+			Integer next = ids.get(converter.getOutputContentType());
+			if (next == null) {
+				throw new IllegalStateException("Unknown content type " + converter.getOutputContentType() + " in route from " + contentTypes.get(from) + " to " + contentTypes.get(to));
+			}
+			current = next;
+		}
+		return path;
+	}
+
+	private static List<Converter> fuse(List<Converter> path, List<FusedConverter> fusedConverters) {
+		if (fusedConverters.isEmpty() || path.size() < 2) {
+			return path;
+		}
+		List<Converter> fused = new ArrayList<Converter>();
+		int index = 0;
+		while (index < path.size()) {
+			FusedConverter match = null;
+			for (FusedConverter fusedConverter : fusedConverters) {
+				if (matches(path, index, fusedConverter.getFusedConverters())) {
+					match = fusedConverter;
+					break;
+				}
+			}
+			if (match == null) {
+				fused.add(path.get(index++));
+			}
+			else {
+				fused.add(match);
+				index += match.getFusedConverters().size();
+			}
+		}
+		return fused;
+	}
+	
+	private static boolean matches(List<Converter> path, int index, List<Class<? extends Converter>> classes) {
+		if (classes.isEmpty() || index + classes.size() > path.size()) {
+			return false;
+		}
+		for (int i = 0; i < classes.size(); i++) {
+			// subclasses may behave differently so only an exact match is replaced
+			if (!classes.get(i).equals(path.get(index + i).getClass())) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * Returns the id of the content type or -1 if it is not known
+	 */
+	public int getId(String contentType) {
+		Integer id = ids.get(contentType);
+		return id == null ? -1 : id;
+	}
+
+	public Converter getConverter(int fromId, int toId) {
+		return routes[fromId][toId];
+	}
+
+	public boolean isReachable(int fromId, int toId) {
+		return reachable[fromId].get(toId);
+	}
+
+	public List<String> getContentTypes() {
+		return contentTypes;
+	}
+
+	/**
+	 * The table is written as lines of "from to index" (tab separated) where the index points to the converter in the given list
+	 * The fingerprint is written first so the reader can verify that the table was calculated for the same converters
+	 */
+	public void write(Writer writer, String fingerprint, List<Converter> converters) throws IOException {
+		Map<Converter, Integer> indexes = new IdentityHashMap<Converter, Integer>();
+		for (int i = 0; i < converters.size(); i++) {
+			indexes.put(converters.get(i), i);
+		}
+		BufferedWriter buffered = new BufferedWriter(writer);
+		buffered.write(fingerprint);
+		buffered.newLine();
+		for (int from = 0; from < contentTypes.size(); from++) {
+			for (int to = 0; to < contentTypes.size(); to++) {
+				if (nextHops[from][to] != null) {
+					buffered.write(contentTypes.get(from) + "\t" + contentTypes.get(to) + "\t" + indexes.get(nextHops[from][to]));
+					buffered.newLine();
+				}
+			}
+		}
+		buffered.flush();
+	}
+
+	/**
+	 * Returns null if the fingerprint does not match
+	 */
+	public static RouteTable read(Reader reader, String fingerprint, List<Converter> converters, ConverterStatistics statistics, List<FusedConverter> fusedConverters) throws IOException {
+		BufferedReader buffered = new BufferedReader(reader);
+		if (!fingerprint.equals(buffered.readLine())) {
+			return null;
+		}
+		List<String> contentTypes = new ArrayList<String>();
+		Map<String, Integer> ids = new HashMap<String, Integer>();
+		List<String[]> lines = new ArrayList<String[]>();
+		String line;
+		while ((line = buffered.readLine()) != null) {
+			if (line.trim().isEmpty()) {
+				continue;
+			}
+			String [] parts = line.split("\t");
+			if (parts.length != 3) {
+				throw new IOException("Invalid route: " + line);
+			}
+			for (int i = 0; i < 2; i++) {
+				if (!ids.containsKey(parts[i])) {
+					ids.put(parts[i], contentTypes.size());
+					contentTypes.add(parts[i]);
+				}
+			}
+			lines.add(parts);
+		}
+		Converter [][] nextHops = new Converter[contentTypes.size()][contentTypes.size()];
+		for (String [] parts : lines) {
+			int index = Integer.parseInt(parts[2]);
+			if (index < 0 || index >= converters.size()) {
+				throw new IOException("Invalid converter index: " + index);
+			}
+			nextHops[ids.get(parts[0])][ids.get(parts[1])] = converters.get(index);
+		}
+		return new RouteTable(contentTypes, nextHops, statistics, fusedConverters);
+	}
+
+	public static RouteTable read(InputStream input, String fingerprint, List<Converter> converters, ConverterStatistics statistics, List<FusedConverter> fusedConverters) throws IOException {
+		return read(new InputStreamReader(input, Charset.forName("UTF-8")), fingerprint, converters, statistics, fusedConverters);
+	}
+
+	public void write(OutputStream output, String fingerprint, List<Converter> converters) throws IOException {
+		write(new OutputStreamWriter(output, Charset.forName("UTF-8")), fingerprint, converters);
+	}
+}
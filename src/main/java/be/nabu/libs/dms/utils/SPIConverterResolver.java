@@ -17,14 +17,23 @@
 
 package be.nabu.libs.dms.utils;
 
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.Collections;
-import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.PriorityQueue;
 import java.util.ServiceLoader;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -32,19 +41,96 @@ import org.slf4j.LoggerFactory;
 import be.nabu.libs.dms.api.Converter;
 import be.nabu.libs.dms.api.ConverterResolver;
 import be.nabu.libs.dms.converters.ChainConverter;
+import be.nabu.libs.dms.converters.FusedConverter;
 import be.nabu.libs.dms.converters.PassThroughConverter;
 import be.nabu.utils.io.ContentTypeMap;
 
 public class SPIConverterResolver implements ConverterResolver {
 
+	/**
+	 * If set, the calculated route table is stored in this file and reused at startup as long as the registered converters have not changed
+	 */
+	public static final String PROPERTY_ROUTE_TABLE = "be.nabu.dms.converter.routeTable";
+	
 	private Logger logger = LoggerFactory.getLogger(getClass());
 	
-	private Map<String, Map<String, Converter>> converters;
+	/**
+	 * The registered converters, this is the graph that is searched when resolving chains
+	 * It is never modified after construction so it can be read concurrently
+	 */
+	private final Map<String, Map<String, Converter>> converters;
+	
+	/**
+	 * The registered converters in the order they were found, this is used to (de)serialize the route table
+	 */
+	private final List<Converter> registeredConverters;
+	
+	/**
+	 * The fused converters that replace adjacent converters in the routes
+	 */
+	private final List<FusedConverter> fusedConverters;
+	
+	/**
+	 * The best route between every pair of content types, calculated on first use
+	 */
+	private volatile RouteTable routeTable;
+	
+	/**
+	 * The measured cost of the converters, this is used to rank the routes
+	 */
+	private ConverterStatistics statistics = new ConverterStatistics();
+	
+	/**
+	 * The relative costs used while calculating the current route table
+	 */
+	private Map<Converter, Double> relativeCosts = new HashMap<Converter, Double>();
+	
+	/**
+	 * How often (in ms) the routes are recalculated using the measured costs, a value <= 0 disables this
+	 */
+	private long rankingInterval = 5 * 60 * 1000;
+	private volatile long lastRanked = System.currentTimeMillis();
+	private AtomicBoolean ranking = new AtomicBoolean(false);
+	
+	private static volatile SPIConverterResolver instance;
+	
+	/**
+	 * A resolver for the SPI registered converters that can be shared by all document managers
+	 */
+	public static SPIConverterResolver getInstance() {
+		if (instance == null) {
+			synchronized(SPIConverterResolver.class) {
+				if (instance == null) {
+					instance = new SPIConverterResolver();
+				}
+			}
+		}
+		return instance;
+	}
 	
 	public SPIConverterResolver() {
+		this(ServiceLoader.load(Converter.class), ServiceLoader.load(FusedConverter.class));
+	}
+	
+	/**
+	 * Resolves against the given converters instead of the ones registered through SPI
+	 */
+	public SPIConverterResolver(Iterable<Converter> converters) {
+		this(converters, new ArrayList<FusedConverter>());
+	}
+	
+	public SPIConverterResolver(Iterable<Converter> converters, Iterable<FusedConverter> fusedConverters) {
 		// make sure this one is active
 		ContentTypeMap.register();
-		loadConverters();
+		this.registeredConverters = new ArrayList<Converter>();
+		for (Converter converter : converters) {
+			registeredConverters.add(converter);
+		}
+		this.converters = loadConverters(registeredConverters);
+		this.fusedConverters = new ArrayList<FusedConverter>();
+		for (FusedConverter fusedConverter : fusedConverters) {
+			this.fusedConverters.add(fusedConverter);
+		}
 	}
 	
 	@Override
@@ -52,28 +138,69 @@ public class SPIConverterResolver implements ConverterResolver {
 		if (fromContentType.equals(toContentType)) {
 			return new PassThroughConverter(fromContentType, toContentType);
 		}
-		// can not find any converters that start with this type
-		if (!converters.containsKey(fromContentType))
-			return null;
-		// there is no explicit converter and we have not checked for a chained converter yet
-		else if (!converters.get(fromContentType).containsKey(toContentType)) {
-			if (fromContentType.equals(toContentType))
-				converters.get(fromContentType).put(toContentType, new PassThroughConverter(fromContentType, toContentType));
-			else {
-				List<Converter> chain = getOptimalPath(fromContentType, toContentType);
-				if (chain == null || chain.size() == 0)
-					converters.get(fromContentType).put(toContentType, null);
-				else
-					converters.get(fromContentType).put(toContentType, new ChainConverter(chain));
+		RouteTable routeTable = getRouteTable();
+		int fromId = routeTable.getId(fromContentType);
+		int toId = routeTable.getId(toContentType);
+		return fromId < 0 || toId < 0 ? null : routeTable.getConverter(fromId, toId);
+	}
+	
+	public boolean canConvert(String fromContentType, String toContentType) {
+		if (fromContentType.equals(toContentType)) {
+			return true;
+		}
+		RouteTable routeTable = getRouteTable();
+		int fromId = routeTable.getId(fromContentType);
+		int toId = routeTable.getId(toContentType);
+		return fromId >= 0 && toId >= 0 && routeTable.isReachable(fromId, toId);
+	}
+	
+	/**
+	 * The route table is calculated (or loaded) by the first lookup so creating a resolver is cheap.
+	 * Once the ranking interval has passed, the first thread to get here starts a background thread that recalculates the route table based on the measured costs.
+	 * All threads keep using the current table in the meantime.
+	 */
+	private RouteTable getRouteTable() {
+		if (routeTable == null) {
+			synchronized(this) {
+				if (routeTable == null) {
+					routeTable = loadRouteTable();
+					lastRanked = System.currentTimeMillis();
+				}
 			}
 		}
-		return converters.get(fromContentType).get(toContentType);
+		else if (rankingInterval > 0 && System.currentTimeMillis() - lastRanked > rankingInterval && ranking.compareAndSet(false, true)) {
+			Thread thread = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						rank();
+					}
+					catch (RuntimeException e) {
+						logger.error("Could not rank the routes", e);
+					}
+					finally {
+						lastRanked = System.currentTimeMillis();
+						ranking.set(false);
+					}
+				}
+			}, "dms-route-ranking");
+			thread.setDaemon(true);
+			thread.start();
+		}
+		return routeTable;
+	}
+	
+	/**
+	 * Recalculates the routes using the currently measured costs
+	 */
+	public void rank() {
+		routeTable = calculateRouteTable();
+		logger.debug("Ranked routes using costs: {}", statistics.getCosts());
 	}
 	
-	private void loadConverters() {
-		ServiceLoader<Converter> serviceLoader = ServiceLoader.load(Converter.class);
-		converters = new HashMap<String, Map<String, Converter>>();
-		for (Converter converter : serviceLoader) {
+	private Map<String, Map<String, Converter>> loadConverters(Iterable<Converter> availableConverters) {
+		Map<String, Map<String, Converter>> converters = new HashMap<String, Map<String, Converter>>();
+		for (Converter converter : availableConverters) {
 			for (String inputContentType : converter.getContentTypes()) {
 				if (!converters.containsKey(inputContentType))
 					converters.put(inputContentType, new HashMap<String, Converter>());
@@ -88,6 +215,161 @@ public class SPIConverterResolver implements ConverterResolver {
 					ContentTypeMap.getInstance().registerContentType(converter.getOutputContentType(), guessExtension(converter.getOutputContentType()));
 			}
 		}
+		return converters;
+	}
+	
+	/**
+	 * Reuses the stored route table if it was calculated for the same converters, otherwise it is calculated (and stored if configured)
+	 */
+	private RouteTable loadRouteTable() {
+		String path = System.getProperty(PROPERTY_ROUTE_TABLE);
+		if (path == null) {
+			return calculateRouteTable();
+		}
+		java.io.File file = new java.io.File(path);
+		String fingerprint = getFingerprint();
+		if (file.exists()) {
+			try {
+				InputStream input = new FileInputStream(file);
+				try {
+					RouteTable routeTable = RouteTable.read(input, fingerprint, registeredConverters, statistics, fusedConverters);
+					if (routeTable != null) {
+						logger.debug("Loaded route table from {}", path);
+						return routeTable;
+					}
+				}
+				finally {
+					input.close();
+				}
+			}
+			catch (Exception e) {
+				logger.warn("Could not load route table from " + path + ", recalculating", e);
+			}
+		}
+		RouteTable routeTable = calculateRouteTable();
+		try {
+			// write to a temporary file first so concurrent readers never see a partial table
+			java.io.File temporary = new java.io.File(path + ".tmp");
+			OutputStream output = new FileOutputStream(temporary);
+			try {
+				routeTable.write(output, fingerprint, registeredConverters);
+			}
+			finally {
+				output.close();
+			}
+			if (!temporary.renameTo(file)) {
+				file.delete();
+				if (!temporary.renameTo(file)) {
+					throw new IOException("Could not rename " + temporary + " to " + file);
+				}
+			}
+		}
+		catch (IOException e) {
+			logger.warn("Could not store route table in " + path, e);
+		}
+		return routeTable;
+	}
+	
+	/**
+	 * Identifies the registered converters (and the order they were found in) so we know whether a stored route table is still valid
+	 */
+	private String getFingerprint() {
+		StringBuilder builder = new StringBuilder(getClass().getName());
+		for (Converter converter : registeredConverters) {
+			builder.append("\n").append(converter.getClass().getName())
+				.append(";").append(converter.getContentTypes())
+				.append(";").append(converter.getOutputContentType())
+				.append(";").append(converter.isLossless());
+		}
+		try {
+			byte [] digest = MessageDigest.getInstance("SHA-256").digest(builder.toString().getBytes("UTF-8"));
+			StringBuilder fingerprint = new StringBuilder();
+			for (byte single : digest) {
+				fingerprint.append(String.format("%02x", single));
+			}
+			return fingerprint.toString();
+		}
+		catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+		catch (UnsupportedEncodingException e) {
+			throw new RuntimeException(e);
+		}
+	}
+	
+	/**
+	 * Runs a search from every known content type and keeps the first converter of each best path as the next hop
+	 */
+	private synchronized RouteTable calculateRouteTable() {
+		relativeCosts = getRelativeCosts();
+		List<String> contentTypes = new ArrayList<String>();
+		Map<String, Integer> ids = new HashMap<String, Integer>();
+		for (String fromContentType : converters.keySet()) {
+			for (String contentType : converters.get(fromContentType).keySet()) {
+				if (!ids.containsKey(contentType)) {
+					ids.put(contentType, contentTypes.size());
+					contentTypes.add(contentType);
+				}
+			}
+			if (!ids.containsKey(fromContentType)) {
+				ids.put(fromContentType, contentTypes.size());
+				contentTypes.add(fromContentType);
+			}
+		}
+		Converter [][] nextHops = new Converter[contentTypes.size()][contentTypes.size()];
+		for (int from = 0; from < contentTypes.size(); from++) {
+			String fromContentType = contentTypes.get(from);
+			Map<String, Converter> firstHops = getFirstHops(fromContentType);
+			for (Map.Entry<String, Converter> firstHop : firstHops.entrySet()) {
+				nextHops[from][ids.get(firstHop.getKey())] = firstHop.getValue();
+			}
+		}
+		logger.debug("Calculated route table for {} content types", contentTypes.size());
+		return new RouteTable(contentTypes, nextHops, statistics, fusedConverters);
+	}
+	
+	/**
+	 * The converters that are replaced by a fused converter in the routes may never run on their own and are only measured as part of the fused converter.
+	 * A converter that has no measurement of its own gets an equal share of the relative cost of the fused converter(s) that replace it.
+	 */
+	private Map<Converter, Double> getRelativeCosts() {
+		Map<Converter, Double> relativeCosts = statistics.getRelativeCosts();
+		Map<Converter, List<Double>> shares = new HashMap<Converter, List<Double>>();
+		for (FusedConverter fusedConverter : fusedConverters) {
+			Double cost = relativeCosts.get(fusedConverter);
+			if (cost == null) {
+				continue;
+			}
+			List<Class<? extends Converter>> replaced = fusedConverter.getFusedConverters();
+			for (Converter converter : registeredConverters) {
+				if (replaced.contains(converter.getClass()) && !relativeCosts.containsKey(converter)) {
+					if (!shares.containsKey(converter)) {
+						shares.put(converter, new ArrayList<Double>());
+					}
+					shares.get(converter).add(cost / replaced.size());
+				}
+			}
+		}
+		for (Map.Entry<Converter, List<Double>> entry : shares.entrySet()) {
+			double total = 0;
+			for (Double share : entry.getValue()) {
+				total += share;
+			}
+			relativeCosts.put(entry.getKey(), total / entry.getValue().size());
+		}
+		return relativeCosts;
+	}
+	
+	public ConverterStatistics getStatistics() {
+		return statistics;
+	}
+
+	public long getRankingInterval() {
+		return rankingInterval;
+	}
+
+	public void setRankingInterval(long rankingInterval) {
+		this.rankingInterval = rankingInterval;
 	}
 	
 	/**
@@ -98,74 +380,96 @@ public class SPIConverterResolver implements ConverterResolver {
 		return contentType.replaceAll("^.*?([\\w]+)$", "$1").toLowerCase();
 	}
 	
-	private List<Converter> getOptimalPath(final String fromContentType, final String toContentType) {
-		List<List<Converter>> possiblePaths = getConverterPaths(fromContentType, toContentType, new ArrayList<String>());
-		if (possiblePaths == null)
-			return null;
-		logger.debug("Evaluating " + possiblePaths.size() + " possible paths");
-		Collections.sort(possiblePaths, new Comparator<List<Converter>>() {
-
-			@Override
-			public int compare(List<Converter> arg0, List<Converter> arg1) {
-				// sort inversely, the smaller the score the better
-				return getScore(arg0).compareTo(getScore(arg1));
-			}
-			
-			private Double getScore(List<Converter> path) {
-				double score = 0;
-				for (Converter converter : path) {
-					if (converter == null) {
-						// increase the score by ..a lot.. so it moves to the end of the list
-						score += 1000;
-						logger.error("Found a 'null' converter in path from " + fromContentType + " to " + toContentType + " path: " + path);
-					}
-					else if (converter instanceof ChainConverter)
-						score += getScore(((ChainConverter) converter).getChain());
-					else if (converter.isLossless())
-						score += 1;
-					else
-						// why 1.6? it 'felt' like the right number...
-						score += 1.6;
+	/**
+	 * Calculates the cheapest path from the content type to all reachable content types using dijkstra where the content types are the nodes and the converters the edges
+	 * With the default scores a direct converter always wins because any chain of two or more converters scores at least 2
+	 * For each reachable content type the first converter of its cheapest path is returned.
+	 * If two paths have the same score, the one with the least lossy converters wins.
+	 * The scores are summed in hundredths so paths that differ less than the precision of the measurements are considered equal.
+	 */
+	private Map<String, Converter> getFirstHops(String fromContentType) {
+		Map<String, Long> scores = new HashMap<String, Long>();
+		Map<String, Integer> lossyConverters = new HashMap<String, Integer>();
+		// for each content type we keep track of the first converter on the cheapest path that reached it
+		Map<String, Converter> firstHops = new HashMap<String, Converter>();
+		Set<String> visited = new HashSet<String>();
+		PriorityQueue<Node> queue = new PriorityQueue<Node>();
+		scores.put(fromContentType, 0l);
+		lossyConverters.put(fromContentType, 0);
+		queue.add(new Node(fromContentType, 0, 0));
+		while (!queue.isEmpty()) {
+			Node node = queue.poll();
+			// we may have queued the same content type multiple times with a decreasing score, only the first one counts
+			if (!visited.add(node.contentType)) {
+				continue;
+			}
+			Map<String, Converter> targets = converters.get(node.contentType);
+			if (targets == null) {
+				continue;
+			}
+			for (Map.Entry<String, Converter> target : targets.entrySet()) {
+				if (visited.contains(target.getKey())) {
+					continue;
 				}
-				logger.debug("Path {}: {}", path, score);
-				return score;
-			}
-		});
-		logger.debug("Paths: {}", possiblePaths);
-		return possiblePaths.size() > 0 ? possiblePaths.get(0) : null;
-	}
-	
-	private List<List<Converter>> getConverterPaths(String fromContentType, String toContentType, List<String> alreadyChecked) {
-		List<List<Converter>> converterPaths = new ArrayList<List<Converter>>();
-		if (!converters.containsKey(fromContentType))
-			return null;
-		// direct path always wins
-		else if (converters.get(fromContentType).containsKey(toContentType))
-			converterPaths.add(
-					new ArrayList<Converter>(
-							Arrays.asList(new Converter [] { converters.get(fromContentType).get(toContentType) }))
-			);
-		else {
-			for (String intermediate : converters.get(fromContentType).keySet()) {
-				// the converter can be null if it has been resolved before and found to be impossible
-				if (!alreadyChecked.contains(intermediate) && converters.get(fromContentType).get(intermediate) != null) {
-					List<String> alreadyCheckedCopy = new ArrayList<String>();
-					alreadyCheckedCopy.addAll(alreadyChecked);
-					alreadyCheckedCopy.add(intermediate);
-					List<List<Converter>> partialPaths = getConverterPaths(intermediate, toContentType, alreadyCheckedCopy);
-					if (partialPaths != null) {
-						// add the current converter to each path
-						for (List<Converter> partialPath : partialPaths)
-							partialPath.add(0, converters.get(fromContentType).get(intermediate));
-						converterPaths.addAll(partialPaths);
-//						List<Converter> path = new ArrayList<Converter>();
-//						path.add(converters.get(fromContentType).get(intermediate));
-//						path.addAll(partialPath);
-//						return path;
-					}
+				long score = node.score + getWeight(target.getValue());
+				int lossy = node.lossy + (target.getValue().isLossless() ? 0 : 1);
+				Long current = scores.get(target.getKey());
+				if (current == null || score < current || (score == current && lossy < lossyConverters.get(target.getKey()))) {
+					scores.put(target.getKey(), score);
+					lossyConverters.put(target.getKey(), lossy);
+					firstHops.put(target.getKey(), node.contentType.equals(fromContentType) ? target.getValue() : firstHops.get(node.contentType));
+					queue.add(new Node(target.getKey(), score, lossy));
 				}
 			}
 		}
-		return converterPaths;
+		// we are not interested in routes back to ourselves
+		firstHops.remove(fromContentType);
+		return firstHops;
+	}
+	
+	private long getWeight(Converter converter) {
+		return Math.round(getScore(converter) * 100);
+	}
+	
+	/**
+	 * The cost of using this converter in a path, the lower the better
+	 * The lossless/lossy score is multiplied with the measured cost of the converter relative to the others.
+	 * This means a lossless converter only wins from a lossy one as long as it is not more than 1.6 times as expensive.
+	 * Converters that are not (yet) measured are considered as expensive as the median of the measured ones.
+	 */
+	protected double getScore(Converter converter) {
+		if (converter instanceof ChainConverter) {
+			double score = 0;
+			for (Converter child : ((ChainConverter) converter).getChain()) {
+				score += getScore(child);
+			}
+			return score;
+		}
+		double relativeCost = relativeCosts.containsKey(converter) ? relativeCosts.get(converter) : 1;
+		if (converter.isLossless()) {
+			return relativeCost;
+		}
+		else {
+			// why 1.6? it 'felt' like the right number...
+			return 1.6 * relativeCost;
+		}
+	}
+	
+	private static class Node implements Comparable<Node> {
+		private String contentType;
+		private long score;
+		private int lossy;
+		
+		public Node(String contentType, long score, int lossy) {
+			this.contentType = contentType;
+			this.score = score;
+			this.lossy = lossy;
+		}
+
+		@Override
+		public int compareTo(Node other) {
+			int comparison = Long.compare(score, other.score);
+			return comparison == 0 ? lossy - other.lossy : comparison;
+		}
 	}
 }
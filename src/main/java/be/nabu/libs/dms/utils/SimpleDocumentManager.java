@@ -20,21 +20,47 @@ package be.nabu.libs.dms.utils;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.ServiceLoader;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import be.nabu.libs.datastore.api.WritableDatastore;
+import be.nabu.libs.dms.MemoryFileFragment;
 import be.nabu.libs.dms.api.Converter;
 import be.nabu.libs.dms.api.ConverterResolver;
 import be.nabu.libs.dms.api.DocumentCacheManager;
 import be.nabu.libs.dms.api.DocumentManager;
 import be.nabu.libs.dms.api.FormatException;
 import be.nabu.libs.dms.api.Templater;
+import be.nabu.libs.dms.converters.ChainConverter;
+import be.nabu.libs.dms.converters.PassThroughConverter;
 import be.nabu.libs.vfs.api.File;
 import be.nabu.utils.io.IOUtils;
 
@@ -48,8 +74,8 @@ public class SimpleDocumentManager implements DocumentManager {
 	private WritableDatastore datastore;
 	
 	/**
-	 * The maximum size a file can be while still being cached. If bigger, the file is never cached
-	 * Note that <= 0 means that all files are cached
+	 * The maximum size the converted output can be while still being cached. If bigger, it is still streamed to the caller but not cached
+	 * Note that <= 0 means that all results are cached
 	 */
 	private long cacheSizeLimit = 0;
 	
@@ -59,13 +85,120 @@ public class SimpleDocumentManager implements DocumentManager {
 	 */
 	private List<String> cacheContentTypes = new ArrayList<String>();
 	
+	/**
+	 * The intermediate results of chained conversions that are cached, by default the document exchange format which is shared by most chains
+	 * This allows for example the html and the text version of the same wiki document to share the result of the wiki conversion
+	 */
+	private List<String> intermediateCacheContentTypes = new ArrayList<String>(Arrays.asList(new String [] { Converter.DOCUMENT_EXCHANGE_FORMAT_CONTENT_TYPE }));
+	
+	/**
+	 * If set, the steps of a chained conversion run concurrently on this executor, connected by bounded buffers
+	 * The executor must be able to run the amount of pipeline threads at the same time, otherwise steps will wait on steps that never start
+	 */
+	private ExecutorService pipelineExecutor;
+	
+	/**
+	 * If true and no pipeline executor is set, one with the amount of pipeline threads is created the first time it is needed
+	 */
+	private boolean pipelined;
+	
+	/**
+	 * The maximum amount of steps of pipelined conversions that run at the same time, a chain that can not get a thread for each step runs sequentially
+	 */
+	private int pipelineThreads = Runtime.getRuntime().availableProcessors() * 2;
+	private Semaphore pipelinePermits;
+	
+	/**
+	 * The size of the buffer between two steps of a pipelined conversion
+	 */
+	private int pipelineBufferSize = 64 * 1024;
+	
+	/**
+	 * The pool that provides the buffers for intermediate results, if null the buffers are simply allocated
+	 */
+	private BufferPool bufferPool = BufferPool.getInstance();
+	
+	/**
+	 * The cached conversions that are currently running, concurrent requests for the same result wait for the running one instead of converting again
+	 */
+	private ConcurrentMap<String, InFlightConversion> inFlight = new ConcurrentHashMap<String, InFlightConversion>();
+	
+	/**
+	 * The files and resources each cached result depends on, e.g. its includes
+	 */
+	private DependencyGraph dependencyGraph = new DependencyGraph();
+	
+	/**
+	 * How long (in ms) after the modification of a file its previous cached result can still be served while a new one is calculated in the background
+	 * Stale results are only served if this is > 0 and the cache manager is a rendition cache
+	 */
+	private long maxStaleness = 0;
+	
+	/**
+	 * If true, results are cached by the hash of the content of the file so a file that is changed back to a previous version finds its results again.
+	 * Identical files only share their results (and keep them when moved) if the converter is a {@link be.nabu.libs.dms.converters.PathIndependentConverter}, otherwise the path is part of the key as well.
+	 */
+	private boolean contentKeys;
+	
+	/**
+	 * The content hashes of the most recently converted files, keyed by path, the previous hash is kept to find stale results
+	 */
+	private Map<String, ContentHash> contentHashes = new LinkedHashMap<String, ContentHash>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, ContentHash> eldest) {
+			return size() > 10000;
+		}
+	};
+	
+	/**
+	 * Recalculates the results of modified files in the background while the stale results are served, if not set a single thread is created the first time it is needed
+	 */
+	private ExecutorService revalidationExecutor;
+	
+	/**
+	 * Runs the asynchronous conversions, if not set a fixed pool is created the first time it is needed
+	 */
+	private ExecutorService asyncExecutor;
+	
+	/**
+	 * The amount of threads of the default asynchronous executor and the amount of queued conversions per priority, once the queue is full new conversions are rejected
+	 */
+	private int asyncThreads = Runtime.getRuntime().availableProcessors(), asyncQueueSize = 1024;
+	
+	/**
+	 * Decides which of the queued asynchronous and scheduled batch conversions runs next on the asynchronous executor
+	 */
+	private PriorityScheduler scheduler;
+	
+	/**
+	 * The deadline (in ms) of a conversion that is started without a cancellation token, if <= 0 there is no deadline
+	 * For an asynchronous conversion, the time it is queued counts as well
+	 */
+	private long conversionTimeout = 0;
+	
+	/**
+	 * Creates all the executors that are not set explicitly, by default the first registered provider or the default one
+	 */
+	private ConversionExecutorProvider executorProvider;
+	
+	/**
+	 * The executors that were created by the document manager itself, these are stopped by {@link #shutdown()}
+	 */
+	private List<ExecutorService> createdExecutors = new ArrayList<ExecutorService>();
+	
+	/**
+	 * Limits the amount of concurrent conversions per converter and per target content type, if not set there are no limits
+	 */
+	private ConversionLimiter limiter;
+	
 	public SimpleDocumentManager() {
-		this(new SPIConverterResolver());
+		this(SPIConverterResolver.getInstance());
 	}
 	
 	public SimpleDocumentManager(DocumentCacheManager cacheManager) {
 		this.cacheManager = cacheManager;
-		this.converterResolver = new SPIConverterResolver();
+		this.converterResolver = SPIConverterResolver.getInstance();
 	}
 	
 	public SimpleDocumentManager(ConverterResolver converterResolver) {
@@ -79,42 +212,761 @@ public class SimpleDocumentManager implements DocumentManager {
 	
 	@Override
 	public boolean canConvert(String fromContentType, String toContentType) {
+		// the spi resolver can answer this without building a converter
+		if (converterResolver instanceof SPIConverterResolver) {
+			return ((SPIConverterResolver) converterResolver).canConvert(fromContentType, toContentType);
+		}
 		return getConverter(fromContentType, toContentType) != null;
 	}
 
 	/**
-	 * The cache manager is only used if properties are null, otherwise it can not guarantee the correct result
+	 * The result is cached per combination of the properties that are relevant to the converter
 	 */
 	@Override
 	public void convert(File file, String toContentType, OutputStream output, Map<String, String> properties) throws IOException, FormatException {
-		DocumentCacheManager cacheManager = getCacheManager();
-		if (properties == null && cacheManager != null) {
-			byte [] content = cacheManager.getCached(file, toContentType);
-			if (content != null) {
-				logger.debug("Cache hit for {} to " + toContentType, file);
-				IOUtils.copyBytes(IOUtils.wrap(new ByteArrayInputStream(content)), IOUtils.wrap(output));
-				return;
-			}
-		}
-		
+		convert(file, toContentType, output, properties, null, newCancellation(), false);
+	}
+	
+	/**
+	 * The conversion fails with a {@link ConversionCancelledException} once the token is cancelled or its deadline has passed.
+	 * Part of the result may have been written to the output by then, but nothing is cached.
+	 * The returned result tells whether a stale result was served, its content is always null as it was written to the output.
+	 */
+	public ConversionResult convert(File file, String toContentType, OutputStream output, Map<String, String> properties, CancellationToken cancellation) throws IOException, FormatException {
+		long started = System.nanoTime();
+		boolean stale = convert(file, toContentType, output, properties, null, cancellation, false);
+		return new ConversionResult(file, toContentType, null, null, System.nanoTime() - started, stale);
+	}
+	
+	/**
+	 * A conversion that is started by a converter while it converts another file, see {@link ConversionContext}.
+	 * It takes no permits from the limiter and does not wait for an identical conversion that is running: the outer conversion already holds its permits and that other conversion could be waiting for them.
+	 */
+	void convertNested(File file, String toContentType, OutputStream output, Map<String, String> properties, CancellationToken cancellation) throws IOException, FormatException {
+		convert(file, toContentType, output, properties, null, cancellation, true);
+	}
+	
+	/**
+	 * Returns true if a stale result was served
+	 */
+	private boolean convert(File file, String toContentType, OutputStream output, Map<String, String> properties, BatchContext batch, CancellationToken cancellation, boolean nested) throws IOException, FormatException {
 		if (file.getContentType() == null) {
 			throw new IllegalStateException("The file has no content type: " + file.getPath());
 		}
 		if (toContentType == null) {
 			throw new IllegalArgumentException("The to content type is empty");
 		}
-		Converter converter = converterResolver.getConverter(file.getContentType(), toContentType);
+		Converter converter = batch == null ? converterResolver.getConverter(file.getContentType(), toContentType) : batch.getConverter(file.getContentType(), toContentType);
 		if (converter == null)
 			throw new IllegalArgumentException("Can not convert " + file.getContentType() + " to " + toContentType + ", no converter exists");
-		if (cacheManager != null && (cacheSizeLimit <= 0 || file.getSize() < cacheSizeLimit) && (cacheContentTypes.size() == 0 || cacheContentTypes.contains(toContentType))) {
-			logger.debug("Cache miss for {} to " + toContentType, file);
-			ByteArrayOutputStream buffer = new ByteArrayOutputStream();
-			converter.convert(this, file, buffer, properties);
-			cacheManager.setCached(file, toContentType, buffer.toByteArray());
-			IOUtils.copyBytes(IOUtils.wrap(new ByteArrayInputStream(buffer.toByteArray())), IOUtils.wrap(output));
+		if (cancellation != null) {
+			cancellation.check();
+		}
+		
+		DocumentCacheManager cacheManager = getCacheManager();
+		// calculated before the conversion as some converters modify the properties
+		String propertiesContentType = cacheManager == null ? null : DMSUtils.getCacheContentType(toContentType, DMSUtils.getRelevantProperties(converter, properties));
+		String cacheContentType = null;
+		File cacheFile = file;
+		if (cacheManager != null) {
+			// if an include has changed since the last conversion, the version of the file changes and the cached result no longer matches
+			cacheFile = getCacheFile(file, Arrays.asList(converter));
+			dependencyGraph.validate(cacheFile.getPath());
+			cacheContentType = getVersionedContentType(cacheFile, propertiesContentType);
+		}
+		if (cacheManager != null && writeCached(cacheManager, cacheFile, cacheContentType, output)) {
+			logger.debug("Cache hit for {} to " + cacheContentType, file);
+			return false;
+		}
+		if (cacheManager != null && (cacheContentTypes.size() == 0 || cacheContentTypes.contains(toContentType))) {
+			logger.debug("Cache miss for {} to " + cacheContentType, file);
+			String key = getConversionKey(cacheFile, cacheContentType);
+			if (writeStale(converter, file, cacheFile, output, properties, cacheManager, propertiesContentType, cacheContentType, key)) {
+				return true;
+			}
+			if (nested) {
+				convertAndCache(converter, file, cacheFile, output, properties, cacheManager, propertiesContentType, batch, cancellation, true);
+				return false;
+			}
+			InFlightConversion conversion = new InFlightConversion();
+			InFlightConversion running = inFlight.putIfAbsent(key, conversion);
+			// an identical conversion is running, wait for it and share the result
+			if (running != null) {
+				byte [] content = running.await(cancellation);
+				if (content != null) {
+					logger.debug("Shared conversion for {} to " + cacheContentType, file);
+					IOUtils.copyBytes(IOUtils.wrap(new ByteArrayInputStream(content)), IOUtils.wrap(output));
+					return false;
+				}
+				// the other conversion failed, was too big to share or found the result in the cache
+				if (!writeCached(cacheManager, cacheFile, cacheContentType, output)) {
+					convertAndCache(converter, file, cacheFile, output, properties, cacheManager, propertiesContentType, batch, cancellation, false);
+				}
+				return false;
+			}
+			byte [] content = null;
+			try {
+				// a conversion that just finished may have cached the result after we checked, waiting callers will check the cache again
+				if (!writeCached(cacheManager, cacheFile, cacheContentType, output)) {
+					content = convertAndCache(converter, file, cacheFile, output, properties, cacheManager, propertiesContentType, batch, cancellation, false);
+				}
+			}
+			finally {
+				inFlight.remove(key, conversion);
+				conversion.complete(content);
+			}
+		}
+		else {
+			ConversionLimiter.Permit permit = nested ? null : acquire(converter);
+			try {
+				convert(converter, new ConversionContext(this, batch, cancellation), file, output, properties);
+			}
+			finally {
+				release(permit);
+			}
+		}
+		return false;
+	}
+	
+	/**
+	 * Runs the converter and records its cost in the statistics of the resolver (if any) so the routes can be ranked
+	 * Chains record the cost of each of their steps themselves, the time spent in nested conversions counts for the converter that started them
+	 */
+	private void convert(Converter converter, ConversionContext context, File file, OutputStream output, Map<String, String> properties) throws IOException, FormatException {
+		ConverterStatistics statistics = getStatistics();
+		if (statistics == null || converter instanceof ChainConverter || converter instanceof PassThroughConverter) {
+			converter.convert(context, file, output, properties);
+		}
+		else {
+			long bytesIn = file.getSize();
+			CountingOutputStream counting = new CountingOutputStream(output);
+			long started = System.nanoTime();
+			converter.convert(context, file, counting, properties);
+			statistics.record(converter, System.nanoTime() - started, bytesIn, counting.getCount());
+		}
+	}
+	
+	/**
+	 * The statistics the resolver ranks its routes by, null if it does not rank them
+	 */
+	private ConverterStatistics getStatistics() {
+		return converterResolver instanceof SPIConverterResolver ? ((SPIConverterResolver) converterResolver).getStatistics() : null;
+	}
+	
+	/**
+	 * Conversions that are answered from the cache or shared with a running conversion do not need a permit
+	 */
+	private ConversionLimiter.Permit acquire(Converter converter) throws IOException {
+		ConversionLimiter limiter = getLimiter();
+		return limiter == null ? null : limiter.acquire(converter, converter.getOutputContentType());
+	}
+	
+	private static void release(ConversionLimiter.Permit permit) {
+		if (permit != null) {
+			permit.release();
+		}
+	}
+	
+	public CompletableFuture<ConversionResult> convertAsync(File file, String toContentType, OutputStream output, Map<String, String> properties) {
+		return convertAsync(file, toContentType, output, properties, ConversionPriority.NORMAL);
+	}
+	
+	/**
+	 * Runs the conversion on the asynchronous executor, the future completes once everything is written to the output
+	 * The output is not closed, if the queue of the priority is full the future fails with a {@link RejectedExecutionException}
+	 * The result tells whether a stale result was served
+	 */
+	public CompletableFuture<ConversionResult> convertAsync(final File file, final String toContentType, final OutputStream output, final Map<String, String> properties, ConversionPriority priority) {
+		final CompletableFuture<ConversionResult> future = new CompletableFuture<ConversionResult>();
+		CancellationToken timeout = newCancellation();
+		final CancellationToken cancellation = timeout == null ? new CancellationToken() : timeout;
+		// cancelling the future stops the conversion if it is already running
+		future.whenComplete(new BiConsumer<ConversionResult, Throwable>() {
+			@Override
+			public void accept(ConversionResult result, Throwable exception) {
+				if (future.isCancelled()) {
+					cancellation.cancel();
+				}
+			}
+		});
+		try {
+			getScheduler().execute(new Runnable() {
+				@Override
+				public void run() {
+					// cancelled while it was queued
+					if (future.isDone()) {
+						return;
+					}
+					try {
+						future.complete(convert(file, toContentType, output, properties, cancellation));
+					}
+					catch (Throwable e) {
+						future.completeExceptionally(e);
+					}
+				}
+			}, priority);
+		}
+		catch (RejectedExecutionException e) {
+			future.completeExceptionally(e);
+		}
+		return future;
+	}
+	
+	public CompletableFuture<byte []> convertAsync(File file, String toContentType, Map<String, String> properties) {
+		return convertAsync(file, toContentType, properties, ConversionPriority.NORMAL);
+	}
+	
+	/**
+	 * Runs the conversion on the asynchronous executor and completes with the result
+	 */
+	public CompletableFuture<byte []> convertAsync(File file, String toContentType, Map<String, String> properties, ConversionPriority priority) {
+		final ByteArrayOutputStream output = new ByteArrayOutputStream();
+		final CompletableFuture<ConversionResult> conversion = convertAsync(file, toContentType, output, properties, priority);
+		final CompletableFuture<byte []> future = conversion.thenApply(new Function<ConversionResult, byte []>() {
+			@Override
+			public byte [] apply(ConversionResult result) {
+				return output.toByteArray();
+			}
+		});
+		// a dependent future does not cancel the one it depends on
+		future.whenComplete(new BiConsumer<byte [], Throwable>() {
+			@Override
+			public void accept(byte [] result, Throwable exception) {
+				if (future.isCancelled()) {
+					conversion.cancel(true);
+				}
+			}
+		});
+		return future;
+	}
+	
+	/**
+	 * Converts every file to every target content type on a work stealing pool with the given parallelism.
+	 * The conversions share the converters, the resolved links and the converted includes, see {@link BatchContext}.
+	 * A failed conversion is reported in its result, it does not stop the others. The results are in the order of the files and then the content types.
+	 * If no output is given, the converted content is kept in the results. If the parallelism is <= 0, the amount of processors is used.
+	 */
+	public List<ConversionResult> convertBatch(Collection<File> files, Collection<String> toContentTypes, Map<String, String> properties, BatchOutput output, int parallelism) {
+		List<ConversionTask> tasks = newTasks(files, toContentTypes, properties, output, null);
+		ExecutorService executor = getExecutorProvider().newBatchExecutor("dms-batch", parallelism <= 0 ? Runtime.getRuntime().availableProcessors() : parallelism);
+		try {
+			if (executor instanceof ForkJoinPool) {
+				((ForkJoinPool) executor).invoke(new BatchTask(tasks, 0, tasks.size()));
+			}
+			else {
+				List<Callable<Object>> callables = new ArrayList<Callable<Object>>();
+				for (ConversionTask task : tasks) {
+					callables.add(Executors.callable(task));
+				}
+				executor.invokeAll(callables);
+			}
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			for (ConversionTask task : tasks) {
+				if (task.result == null) {
+					task.result = new ConversionResult(task.file, task.toContentType, null, e, 0);
+				}
+			}
+		}
+		finally {
+			executor.shutdownNow();
+		}
+		return getResults(tasks);
+	}
+	
+	/**
+	 * Converts every file to every target content type on the asynchronous executor with the given priority, at most the given amount of conversions of the batch is queued or running at the same time.
+	 * Unlike a batch on its own pool, this shares the capacity with the asynchronous conversions, e.g. a bulk batch yields to interactive conversions but still gets its share.
+	 * Conversions that can not be queued because the queue of the priority is full fail with a {@link RejectedExecutionException}.
+	 */
+	public List<ConversionResult> convertBatch(Collection<File> files, Collection<String> toContentTypes, Map<String, String> properties, BatchOutput output, int parallelism, ConversionPriority priority) {
+		return convertBatch(files, toContentTypes, properties, output, parallelism, priority, null);
+	}
+	
+	/**
+	 * Once the token is cancelled, the running conversions of the batch stop and the ones that are queued or not submitted yet fail with a {@link ConversionCancelledException} without running.
+	 * The conversion timeout still applies to every conversion separately.
+	 */
+	public List<ConversionResult> convertBatch(Collection<File> files, Collection<String> toContentTypes, Map<String, String> properties, BatchOutput output, int parallelism, ConversionPriority priority, CancellationToken cancellation) {
+		List<ConversionTask> tasks = newTasks(files, toContentTypes, properties, output, cancellation);
+		ScheduledBatch scheduled = new ScheduledBatch(tasks, priority, cancellation);
+		for (int i = 0; i < Math.max(1, parallelism); i++) {
+			scheduled.submitNext();
+		}
+		try {
+			scheduled.latch.await();
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			scheduled.cancel(e);
+		}
+		return getResults(tasks);
+	}
+	
+	private List<ConversionTask> newTasks(Collection<File> files, Collection<String> toContentTypes, Map<String, String> properties, BatchOutput output, CancellationToken cancellation) {
+		List<ConversionTask> tasks = new ArrayList<ConversionTask>();
+		BatchContext batch = new BatchContext(this);
+		for (File file : files) {
+			for (String toContentType : toContentTypes) {
+				tasks.add(new ConversionTask(batch, file, toContentType, properties, output, cancellation));
+			}
+		}
+		return tasks;
+	}
+	
+	private static List<ConversionResult> getResults(List<ConversionTask> tasks) {
+		List<ConversionResult> results = new ArrayList<ConversionResult>();
+		for (ConversionTask task : tasks) {
+			results.add(task.result);
+		}
+		return results;
+	}
+	
+	/**
+	 * Feeds the tasks of a batch to the scheduler, a new one is submitted whenever one finishes
+	 */
+	private class ScheduledBatch {
+		
+		private Iterator<ConversionTask> iterator;
+		private ConversionPriority priority;
+		private CountDownLatch latch;
+		private Exception cancelled;
+		private CancellationToken cancellation;
+		
+		public ScheduledBatch(List<ConversionTask> tasks, ConversionPriority priority, CancellationToken cancellation) {
+			this.iterator = tasks.iterator();
+			this.priority = priority;
+			this.cancellation = cancellation;
+			this.latch = new CountDownLatch(tasks.size());
+		}
+		
+		public synchronized void submitNext() {
+			while (iterator.hasNext()) {
+				final ConversionTask task = iterator.next();
+				if (cancelled == null && cancellation != null) {
+					try {
+						cancellation.check();
+					}
+					catch (ConversionCancelledException e) {
+						cancelled = e;
+					}
+				}
+				if (cancelled == null) {
+					try {
+						getScheduler().execute(new Runnable() {
+							@Override
+							public void run() {
+								try {
+									if (cancellation != null) {
+										cancellation.check();
+									}
+									task.run();
+								}
+								catch (ConversionCancelledException e) {
+									// the batch was cancelled while the task was queued
+									task.result = new ConversionResult(task.file, task.toContentType, null, e, 0);
+								}
+								finally {
+									latch.countDown();
+									submitNext();
+								}
+							}
+						}, priority);
+						return;
+					}
+					catch (RejectedExecutionException e) {
+						task.result = new ConversionResult(task.file, task.toContentType, null, e, 0);
+					}
+				}
+				else {
+					task.result = new ConversionResult(task.file, task.toContentType, null, cancelled, 0);
+				}
+				latch.countDown();
+			}
+		}
+		
+		/**
+		 * The tasks that were not submitted yet fail with the given exception
+		 */
+		public void cancel(Exception cause) {
+			synchronized(this) {
+				cancelled = cause;
+			}
+			submitNext();
+		}
+	}
+	
+	/**
+	 * Splits the tasks in halves until a single one remains so idle workers can steal the other half
+	 */
+	private static class BatchTask extends RecursiveAction {
+		
+		private static final long serialVersionUID = 1L;
+		private List<ConversionTask> tasks;
+		private int from, to;
+		
+		public BatchTask(List<ConversionTask> tasks, int from, int to) {
+			this.tasks = tasks;
+			this.from = from;
+			this.to = to;
+		}
+		
+		@Override
+		protected void compute() {
+			if (to - from == 1) {
+				tasks.get(from).run();
+			}
+			else if (to > from) {
+				int middle = (from + to) >>> 1;
+				invokeAll(new BatchTask(tasks, from, middle), new BatchTask(tasks, middle, to));
+			}
+		}
+	}
+	
+	private class ConversionTask implements Runnable {
+		
+		private BatchContext batch;
+		private File file;
+		private String toContentType;
+		private Map<String, String> properties;
+		private BatchOutput output;
+		private CancellationToken cancellation;
+		private ConversionResult result;
+		
+		public ConversionTask(BatchContext batch, File file, String toContentType, Map<String, String> properties, BatchOutput output, CancellationToken cancellation) {
+			this.batch = batch;
+			this.file = file;
+			this.toContentType = toContentType;
+			this.properties = properties;
+			this.output = output;
+			this.cancellation = cancellation;
+		}
+		
+		@Override
+		public void run() {
+			long started = System.nanoTime();
+			try {
+				// converters may modify the properties
+				Map<String, String> copy = properties == null ? new HashMap<String, String>() : new HashMap<String, String>(properties);
+				if (output == null) {
+					ByteArrayOutputStream content = new ByteArrayOutputStream();
+					boolean stale = convert(file, toContentType, content, copy, batch, newCancellation(cancellation), false);
+					result = new ConversionResult(file, toContentType, content.toByteArray(), null, System.nanoTime() - started, stale);
+				}
+				else {
+					OutputStream target = output.getOutput(file, toContentType);
+					boolean stale;
+					try {
+						stale = convert(file, toContentType, target, copy, batch, newCancellation(cancellation), false);
+					}
+					finally {
+						target.close();
+					}
+					result = new ConversionResult(file, toContentType, null, null, System.nanoTime() - started, stale);
+				}
+			}
+			// an error only fails this conversion, the batch still needs a result for it
+			catch (Throwable e) {
+				logger.warn("Batch conversion of " + file.getPath() + " to " + toContentType + " failed", e);
+				result = new ConversionResult(file, toContentType, null, e, System.nanoTime() - started);
+			}
+		}
+	}
+	
+	/**
+	 * Writes the cached result compressed if the cache manager compresses its entries and the result was worth compressing, returns true in that case.
+	 * Otherwise the result is converted (or taken from the cache) as usual and written uncompressed.
+	 * As the answer is only known once the result is written, a caller that has to announce the encoding first (e.g. a http server) should use {@link #getGzipped(File, String, Map)}.
+	 */
+	public boolean convertGzipped(File file, String toContentType, OutputStream output, Map<String, String> properties) throws IOException, FormatException {
+		Converter converter = getGzippableConverter(file, toContentType);
+		if (converter != null) {
+			File cacheFile = getCacheFile(file, Arrays.asList(converter));
+			String cacheContentType = getGzippedContentType(converter, cacheFile, toContentType, properties);
+			if (((CompressingDocumentCacheManager) getCacheManager()).writeGzipped(cacheFile, cacheContentType, output)) {
+				logger.debug("Compressed cache hit for {} to " + cacheContentType, file);
+				return true;
+			}
+		}
+		convert(file, toContentType, output, properties);
+		return false;
+	}
+	
+	/**
+	 * The cached result compressed with gzip or null if there is none, e.g. because it was not converted yet, was not worth compressing or the cache manager does not compress
+	 * Nothing is converted or written, a http server can set the content encoding and send these bytes as the body, or convert as usual if there are none
+	 */
+	public byte [] getGzipped(File file, String toContentType, Map<String, String> properties) throws IOException {
+		Converter converter = getGzippableConverter(file, toContentType);
+		if (converter == null) {
+			return null;
+		}
+		File cacheFile = getCacheFile(file, Arrays.asList(converter));
+		return ((CompressingDocumentCacheManager) getCacheManager()).getGzipped(cacheFile, getGzippedContentType(converter, cacheFile, toContentType, properties));
+	}
+	
+	/**
+	 * The converter if the result can be cached compressed, otherwise null
+	 */
+	private Converter getGzippableConverter(File file, String toContentType) throws IOException {
+		if (!(getCacheManager() instanceof CompressingDocumentCacheManager) || file.getContentType() == null || toContentType == null) {
+			return null;
+		}
+		return converterResolver.getConverter(file.getContentType(), toContentType);
+	}
+	
+	private String getGzippedContentType(Converter converter, File cacheFile, String toContentType, Map<String, String> properties) throws IOException {
+		dependencyGraph.validate(cacheFile.getPath());
+		return getVersionedContentType(cacheFile, DMSUtils.getCacheContentType(toContentType, DMSUtils.getRelevantProperties(converter, properties)));
+	}
+	
+	/**
+	 * A rendition cache can write the result without handing out a copy
+	 */
+	private boolean writeCached(DocumentCacheManager cacheManager, File file, String cacheContentType, OutputStream output) throws IOException {
+		if (cacheManager instanceof RenditionCache) {
+			return ((RenditionCache) cacheManager).writeCached(file, cacheContentType, output);
+		}
+		byte [] content = cacheManager.getCached(file, cacheContentType);
+		if (content != null) {
+			IOUtils.copyBytes(IOUtils.wrap(new ByteArrayInputStream(content)), IOUtils.wrap(output));
+		}
+		return content != null;
+	}
+	
+	/**
+	 * Serves the previous result of a recently modified file and starts a revalidation in the background unless one is already running
+	 * Callers that do not accept stale results wait for the revalidation as they would for any other running conversion
+	 */
+	private boolean writeStale(final Converter converter, final File file, final File cacheFile, OutputStream output, Map<String, String> properties, final DocumentCacheManager cacheManager, final String propertiesContentType, String cacheContentType, final String key) throws IOException {
+		if (maxStaleness <= 0 || !(cacheManager instanceof RenditionCache)) {
+			return false;
+		}
+		Date lastModified = file.getLastModified();
+		if (lastModified == null || System.currentTimeMillis() - lastModified.getTime() > maxStaleness) {
+			return false;
+		}
+		// with content keys the previous result was stored under the previous hash
+		File staleFile = contentKeys ? getPreviousCacheFile(file, Arrays.asList(converter)) : cacheFile;
+		byte [] stale = staleFile == null ? null : ((RenditionCache) cacheManager).getStale(staleFile, contentKeys ? getVersionedContentType(staleFile, propertiesContentType) : cacheContentType);
+		if (stale == null) {
+			return false;
+		}
+		final InFlightConversion conversion = new InFlightConversion();
+		if (inFlight.putIfAbsent(key, conversion) == null) {
+			// the caller is free to change its properties once we return
+			final Map<String, String> revalidationProperties = properties == null ? null : new HashMap<String, String>(properties);
+			try {
+				getRevalidationExecutor().execute(new Runnable() {
+					@Override
+					public void run() {
+						byte [] content = null;
+						try {
+							content = convertAndCache(converter, file, cacheFile, new DiscardingOutputStream(), revalidationProperties, cacheManager, propertiesContentType, null, newCancellation(), false);
+						}
+						catch (Exception e) {
+							logger.warn("Could not revalidate the result for " + file.getPath(), e);
+						}
+						finally {
+							inFlight.remove(key, conversion);
+							conversion.complete(content);
+						}
+					}
+				});
+			}
+			catch (RejectedExecutionException e) {
+				inFlight.remove(key, conversion);
+				conversion.complete(null);
+				return false;
+			}
+		}
+		logger.debug("Serving a stale result for {} to " + cacheContentType, file);
+		IOUtils.copyBytes(IOUtils.wrap(new ByteArrayInputStream(stale)), IOUtils.wrap(output));
+		return true;
+	}
+	
+	/**
+	 * The version of the dependencies of the result is part of the cache key, the file is the one that is handed to the cache manager (see {@link #getCacheFile(File, List)})
+	 * With content keys the dependencies are looked up by that key and their fingerprint is used instead so identical files with the same includes share their results, wherever they are
+	 */
+	public String getVersionedContentType(File cacheFile, String cacheContentType) {
+		String version = contentKeys ? dependencyGraph.getFingerprint(cacheFile.getPath()) : dependencyGraph.getVersion(cacheFile.getPath());
+		return version == null ? cacheContentType : cacheContentType + ";dependencies=" + version;
+	}
+	
+	/**
+	 * The file that is handed to the cache manager for the result of the given converter(s), with content keys this is a stand-in that is identified by the content type and the hash of the content
+	 * If the converters depend on the location of the file, its path is part of the identity of the stand-in as well
+	 * The stand-in has no modification date, a modified file has a different hash
+	 */
+	public File getCacheFile(File file, List<Converter> converters) throws IOException {
+		return contentKeys ? getContentFile(file, converters, getContentHash(file)) : file;
+	}
+	
+	/**
+	 * The stand-in for the previous content of a modified file, null if it is not known
+	 */
+	private File getPreviousCacheFile(File file, List<Converter> converters) throws IOException {
+		synchronized(contentHashes) {
+			ContentHash hash = contentHashes.get(file.getPath());
+			return hash == null || hash.previous == null ? null : getContentFile(file, converters, hash.previous);
+		}
+	}
+	
+	private File getContentFile(File file, List<Converter> converters, String hash) throws IOException {
+		final String path = "content:" + file.getContentType() + ":" + hash + (DMSUtils.isPathIndependent(converters) ? "" : ":" + file.getPath());
+		return new MemoryFileFragment(file, new byte[0], file.getName(), file.getContentType()) {
+			@Override
+			public String getPath() {
+				return path;
+			}
+			@Override
+			public Date getLastModified() {
+				return null;
+			}
+		};
+	}
+	
+	/**
+	 * The hash is only calculated again if the file was modified
+	 */
+	private String getContentHash(File file) throws IOException {
+		Date lastModified = file.getLastModified();
+		if (lastModified != null) {
+			synchronized(contentHashes) {
+				ContentHash hash = contentHashes.get(file.getPath());
+				if (hash != null && hash.lastModified == lastModified.getTime()) {
+					return hash.hash;
+				}
+			}
+		}
+		String hash = DMSUtils.getContentHash(file);
+		if (lastModified != null) {
+			synchronized(contentHashes) {
+				ContentHash current = contentHashes.get(file.getPath());
+				// a touched file keeps the hash it had before
+				String previous = current == null ? null : (current.hash.equals(hash) ? current.previous : current.hash);
+				contentHashes.put(file.getPath(), new ContentHash(lastModified.getTime(), hash, previous));
+			}
+		}
+		return hash;
+	}
+	
+	/**
+	 * Streams the result to the output while copying it for the cache, returns the cached result or null if it was too big
+	 * The dependencies of the conversion are recorded before it is cached so it is stored under the correct version
+	 */
+	private byte [] convertAndCache(Converter converter, File file, File cacheFile, OutputStream output, Map<String, String> properties, DocumentCacheManager cacheManager, String propertiesContentType, BatchContext batch, CancellationToken cancellation, boolean nested) throws IOException, FormatException {
+		// the permit is acquired before the buffers are allocated so waiting conversions do not hold on to memory
+		ConversionLimiter.Permit permit = nested ? null : acquire(converter);
+		TeeOutputStream tee = new TeeOutputStream(output, bufferPool, cacheSizeLimit);
+		try {
+			// a cancelled conversion fails before anything is cached and releases its buffer below
+			ConversionContext context = new ConversionContext(this, batch, cancellation);
+			long started = System.nanoTime();
+			convert(converter, context, file, tee, properties);
+			long nanos = System.nanoTime() - started;
+			// the dependencies are always recorded for the file so invalidations reach the files that include it
+			dependencyGraph.record(file.getPath(), context.getDependencies());
+			if (cacheFile != file) {
+				dependencyGraph.record(cacheFile.getPath(), context.getDependencies());
+			}
+			String cacheContentType = getVersionedContentType(cacheFile, propertiesContentType);
+			if (tee.getCopy() == null) {
+				logger.debug("The result for {} to " + cacheContentType + " exceeds the cache size limit", file);
+				return null;
+			}
+			byte [] content = tee.getCopy().toByteArray();
+			DMSUtils.setCached(cacheManager, cacheFile, cacheContentType, content, nanos);
+			return content;
+		}
+		finally {
+			release(permit);
+			tee.release();
+		}
+	}
+	
+	/**
+	 * Identifies a conversion the same way as the cache does, the modification date is added so a conversion of an older version is not shared
+	 */
+	private String getConversionKey(File file, String cacheContentType) throws IOException {
+		Date lastModified = file.getLastModified();
+		return file.getPath() + ";" + (lastModified == null ? "" : lastModified.getTime()) + ";" + cacheContentType;
+	}
+	
+	private static class ContentHash {
+		private long lastModified;
+		private String hash, previous;
+		
+		public ContentHash(long lastModified, String hash, String previous) {
+			this.lastModified = lastModified;
+			this.hash = hash;
+			this.previous = previous;
+		}
+	}
+	
+	private static class DiscardingOutputStream extends OutputStream {
+		@Override
+		public void write(int single) {
+			// discard
+		}
+		@Override
+		public void write(byte [] bytes, int offset, int length) {
+			// discard
+		}
+	}
+	
+	/**
+	 * A conversion that is running, other callers that need the same result can wait for it
+	 */
+	private static class InFlightConversion {
+		
+		private CountDownLatch done = new CountDownLatch(1);
+		private volatile byte [] content;
+		
+		public void complete(byte [] content) {
+			this.content = content;
+			done.countDown();
+		}
+		
+		/**
+		 * Returns null if the conversion failed or its result was not cached
+		 */
+		public byte [] await(CancellationToken cancellation) throws IOException {
+			try {
+				if (cancellation == null) {
+					done.await();
+				}
+				else {
+					// the running conversion has its own deadline, the waiting caller stops waiting once its own has passed
+					while (!done.await(100, TimeUnit.MILLISECONDS)) {
+						cancellation.check();
+					}
+				}
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while waiting for an identical conversion");
+			}
+			return content;
 		}
-		else
-			converter.convert(this, file, output, properties);
+	}
+
+	/**
+	 * Invalidates the cached results of all the files that include the given file, directly or indirectly
+	 * This is done automatically for files when their modification date changes but not for other resources, e.g. those in a datastore
+	 */
+	public Set<String> invalidate(String path) {
+		return dependencyGraph.invalidate(path);
+	}
+	
+	public Set<String> invalidate(File file) {
+		return invalidate(file.getPath());
+	}
+	
+	public DependencyGraph getDependencyGraph() {
+		return dependencyGraph;
 	}
 
 	public DocumentCacheManager getCacheManager() {
@@ -133,10 +985,210 @@ public class SimpleDocumentManager implements DocumentManager {
 		this.cacheSizeLimit = cacheSizeLimit;
 	}
 
+	public long getMaxStaleness() {
+		return maxStaleness;
+	}
+
+	public void setMaxStaleness(long maxStaleness) {
+		this.maxStaleness = maxStaleness;
+	}
+
+	public boolean isContentKeys() {
+		return contentKeys;
+	}
+
+	public void setContentKeys(boolean contentKeys) {
+		this.contentKeys = contentKeys;
+	}
+
+	public synchronized ExecutorService getRevalidationExecutor() {
+		if (revalidationExecutor == null) {
+			revalidationExecutor = created(getExecutorProvider().newExecutor("dms-revalidation", 1, asyncQueueSize));
+		}
+		return revalidationExecutor;
+	}
+
+	public synchronized void setRevalidationExecutor(ExecutorService revalidationExecutor) {
+		this.revalidationExecutor = revalidationExecutor;
+	}
+
+	public synchronized ExecutorService getAsyncExecutor() {
+		if (asyncExecutor == null) {
+			asyncExecutor = created(getExecutorProvider().newExecutor("dms-async", asyncThreads, 0));
+		}
+		return asyncExecutor;
+	}
+
+	/**
+	 * The asynchronous executor should have an unbounded queue, the scheduler limits the amount of queued conversions per priority
+	 */
+	public synchronized void setAsyncExecutor(ExecutorService asyncExecutor) {
+		this.asyncExecutor = asyncExecutor;
+		this.scheduler = null;
+	}
+
+	public synchronized PriorityScheduler getScheduler() {
+		if (scheduler == null) {
+			scheduler = new PriorityScheduler(getAsyncExecutor(), asyncThreads, asyncQueueSize);
+		}
+		return scheduler;
+	}
+
+	public int getAsyncThreads() {
+		return asyncThreads;
+	}
+
+	public void setAsyncThreads(int asyncThreads) {
+		this.asyncThreads = asyncThreads;
+	}
+
+	public int getAsyncQueueSize() {
+		return asyncQueueSize;
+	}
+
+	public void setAsyncQueueSize(int asyncQueueSize) {
+		this.asyncQueueSize = asyncQueueSize;
+	}
+
+	public synchronized ExecutorService getPipelineExecutor() {
+		if (pipelineExecutor == null && pipelined) {
+			pipelineExecutor = created(getExecutorProvider().newExecutor("dms-pipeline", pipelineThreads, 0));
+		}
+		return pipelineExecutor;
+	}
+
+	public synchronized void setPipelineExecutor(ExecutorService pipelineExecutor) {
+		this.pipelineExecutor = pipelineExecutor;
+	}
+
+	public boolean isPipelined() {
+		return pipelined;
+	}
+
+	public void setPipelined(boolean pipelined) {
+		this.pipelined = pipelined;
+	}
+
+	/**
+	 * A pipelined chain takes a permit for every step that runs on the pipeline executor
+	 */
+	public synchronized Semaphore getPipelinePermits() {
+		if (pipelinePermits == null) {
+			pipelinePermits = new Semaphore(pipelineThreads);
+		}
+		return pipelinePermits;
+	}
+
+	public int getPipelineThreads() {
+		return pipelineThreads;
+	}
+
+	/**
+	 * Only affects a pipeline executor that is created afterwards
+	 */
+	public synchronized void setPipelineThreads(int pipelineThreads) {
+		this.pipelineThreads = pipelineThreads;
+		this.pipelinePermits = null;
+	}
+
+	private ExecutorService created(ExecutorService executor) {
+		createdExecutors.add(executor);
+		return executor;
+	}
+	
+	/**
+	 * Stops the executors that the document manager created itself, the conversions that are running or queued still finish.
+	 * Executors that were set explicitly are left alone. If the manager is used again, new executors are created.
+	 * Calling this is not required: the default executors use daemon threads that stop once they have been idle for a minute.
+	 */
+	public synchronized void shutdown() {
+		for (ExecutorService executor : createdExecutors) {
+			executor.shutdown();
+		}
+		if (createdExecutors.contains(asyncExecutor)) {
+			asyncExecutor = null;
+			scheduler = null;
+		}
+		if (createdExecutors.contains(revalidationExecutor)) {
+			revalidationExecutor = null;
+		}
+		if (createdExecutors.contains(pipelineExecutor)) {
+			pipelineExecutor = null;
+		}
+		createdExecutors.clear();
+	}
+	
+	public synchronized ConversionExecutorProvider getExecutorProvider() {
+		if (executorProvider == null) {
+			for (ConversionExecutorProvider provider : ServiceLoader.load(ConversionExecutorProvider.class)) {
+				executorProvider = provider;
+				break;
+			}
+			if (executorProvider == null) {
+				executorProvider = new DefaultExecutorProvider();
+			}
+		}
+		return executorProvider;
+	}
+
+	public synchronized void setExecutorProvider(ConversionExecutorProvider executorProvider) {
+		this.executorProvider = executorProvider;
+	}
+
+	/**
+	 * The token for a conversion that is not given one, null if there is no deadline
+	 */
+	private CancellationToken newCancellation() {
+		return conversionTimeout > 0 ? new CancellationToken(conversionTimeout) : null;
+	}
+	
+	/**
+	 * The token for a conversion that is part of a larger whole (e.g. a batch) that can be cancelled as well
+	 */
+	private CancellationToken newCancellation(CancellationToken parent) {
+		return parent == null ? newCancellation() : new CancellationToken(parent, conversionTimeout);
+	}
+
+	public long getConversionTimeout() {
+		return conversionTimeout;
+	}
+
+	public void setConversionTimeout(long conversionTimeout) {
+		this.conversionTimeout = conversionTimeout;
+	}
+
+	public ConversionLimiter getLimiter() {
+		return limiter;
+	}
+
+	public void setLimiter(ConversionLimiter limiter) {
+		this.limiter = limiter;
+	}
+
+	public int getPipelineBufferSize() {
+		return pipelineBufferSize;
+	}
+
+	public void setPipelineBufferSize(int pipelineBufferSize) {
+		this.pipelineBufferSize = pipelineBufferSize;
+	}
+
+	public BufferPool getBufferPool() {
+		return bufferPool;
+	}
+
+	public void setBufferPool(BufferPool bufferPool) {
+		this.bufferPool = bufferPool;
+	}
+
 	public List<String> getCacheContentTypes() {
 		return cacheContentTypes;
 	}
 
+	public List<String> getIntermediateCacheContentTypes() {
+		return intermediateCacheContentTypes;
+	}
+
 	@Override
 	public WritableDatastore getDatastore(File file) {
 		return datastore == null ? new FileDatastore(file) : datastore;
@@ -0,0 +1,93 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+package be.nabu.libs.dms.utils;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Writes everything to the output and keeps a copy in a pooled buffer, e.g. to cache it once the conversion is done.
+ * If the copy would exceed the limit, it is dropped but the output keeps receiving the data.
+ * Closing the tee only flushes the output, the caller remains responsible for it.
+ */
+public class TeeOutputStream extends OutputStream {
+
+	private OutputStream output;
+	private ChunkedBuffer copy;
+	private long limit;
+	
+	/**
+	 * A limit <= 0 means the copy is never dropped
+	 */
+	public TeeOutputStream(OutputStream output, BufferPool pool, long limit) {
+		this.output = output;
+		this.copy = new ChunkedBuffer(pool);
+		this.limit = limit;
+	}
+	
+	@Override
+	public void write(int single) throws IOException {
+		output.write(single);
+		if (copy != null && reserve(1)) {
+			copy.write(single);
+		}
+	}
+
+	@Override
+	public void write(byte [] bytes, int offset, int length) throws IOException {
+		output.write(bytes, offset, length);
+		if (copy != null && reserve(length)) {
+			copy.write(bytes, offset, length);
+		}
+	}
+	
+	private boolean reserve(int length) {
+		if (limit > 0 && copy.size() + length > limit) {
+			copy.release();
+			copy = null;
+			return false;
+		}
+		return true;
+	}
+
+	@Override
+	public void flush() throws IOException {
+		output.flush();
+	}
+
+	@Override
+	public void close() throws IOException {
+		output.flush();
+	}
+	
+	/**
+	 * The copy of everything that was written or null if it exceeded the limit
+	 */
+	public ChunkedBuffer getCopy() {
+		return copy;
+	}
+	
+	/**
+	 * Releases the copy (if any) to the pool
+	 */
+	public void release() {
+		if (copy != null) {
+			copy.release();
+			copy = null;
+		}
+	}
+}
@@ -0,0 +1,514 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+package be.nabu.libs.dms.utils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import be.nabu.libs.vfs.api.File;
+
+/**
+ * A cache with two tiers: memory that is bounded by the total size of the content and a directory on local disk.
+ * Every result is written to disk so it survives a restart, the memory tier holds the ones that are most valuable to keep.
+ * A result that is found on disk is promoted to memory, once the disk exceeds its size the least recently used files are deleted.
+ * An entry is only valid as long as the modification date of the file has not changed, an outdated entry is kept until it is replaced so it can be served as a stale result.
+ * <p>
+ * New entries in memory start out in a small least recently used window. When they leave the window, they are only admitted to the main region
+ * if they are worth more than the entry they would replace. The worth of an entry is its estimated frequency of use times the time it took to convert per byte.
+ * This keeps a batch of one-off conversions from flushing the frequently used pages and an expensive rendition outlives a cheap one of the same size.
+ */
+public class TieredDocumentCacheManager implements RenditionCache, CostAwareCache {
+
+	private static final String EXTENSION = ".cache";
+	
+	private Logger logger = LoggerFactory.getLogger(getClass());
+	
+	private java.io.File directory;
+	private long maxMemorySize, maxDiskSize;
+	private long windowSize, mainSize, diskSize;
+	
+	/**
+	 * The part of the memory that is reserved for new entries
+	 */
+	private double windowRatio = 0.01;
+	
+	/**
+	 * The amount of least recently used entries in the main region that are considered when looking for the entry with the lowest worth
+	 */
+	private int sampleSize = 8;
+	
+	/**
+	 * The new entries in memory from least to most recently used
+	 */
+	private LinkedHashMap<String, Entry> window = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+	
+	/**
+	 * The admitted entries in memory from least to most recently used, this map also guards the window
+	 */
+	private LinkedHashMap<String, Entry> memory = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+	
+	/**
+	 * The frequency of use of all keys, including those that are not in memory
+	 */
+	private FrequencySketch sketch;
+	
+	/**
+	 * The average conversion time per byte, used for entries that were cached without a measurement
+	 */
+	private double averageCost;
+	
+	/**
+	 * The size of the files on disk from least to most recently used, keyed by file name
+	 */
+	private LinkedHashMap<String, Long> disk = new LinkedHashMap<String, Long>(16, 0.75f, true);
+	
+	private AtomicLong memoryHits = new AtomicLong(), diskHits = new AtomicLong(), misses = new AtomicLong(), memoryEvictions = new AtomicLong(), rejections = new AtomicLong(), diskEvictions = new AtomicLong();
+	
+	/**
+	 * If the directory is null, only the memory tier is used
+	 */
+	public TieredDocumentCacheManager(long maxMemorySize, java.io.File directory, long maxDiskSize) {
+		this.maxMemorySize = maxMemorySize;
+		this.directory = directory;
+		this.maxDiskSize = maxDiskSize;
+		// assume an average rendition of a kilobyte
+		this.sketch = new FrequencySketch((int) Math.min(1 << 20, Math.max(1024, maxMemorySize / 1024)));
+		if (directory != null) {
+			load();
+		}
+	}
+	
+	/**
+	 * Picks up the files that were cached before a restart, the modification date of the files reflects their last use
+	 */
+	private void load() {
+		if (!directory.exists() && !directory.mkdirs()) {
+			throw new IllegalArgumentException("Can not create cache directory: " + directory);
+		}
+		java.io.File [] files = directory.listFiles();
+		Arrays.sort(files, new Comparator<java.io.File>() {
+			@Override
+			public int compare(java.io.File first, java.io.File second) {
+				return Long.compare(first.lastModified(), second.lastModified());
+			}
+		});
+		synchronized(disk) {
+			for (java.io.File file : files) {
+				if (file.getName().endsWith(EXTENSION)) {
+					disk.put(file.getName(), file.length());
+					diskSize += file.length();
+				}
+				// leftovers of a write that was interrupted
+				else if (file.getName().endsWith(EXTENSION + ".tmp")) {
+					file.delete();
+				}
+			}
+			evictDisk();
+		}
+	}
+	
+	/**
+	 * The caller gets its own copy of the content, use {@link #writeCached(File, String, OutputStream)} to avoid the copy
+	 */
+	@Override
+	public byte [] getCached(File file, String contentType) {
+		Entry entry = getEntry(file, contentType);
+		return entry == null ? null : entry.content.clone();
+	}
+	
+	private Entry getEntry(File file, String contentType) {
+		String key = getKey(file, contentType);
+		long lastModified = getLastModified(file);
+		sketch.increment(key);
+		synchronized(memory) {
+			Entry entry = window.get(key);
+			if (entry == null) {
+				entry = memory.get(key);
+			}
+			if (entry != null && entry.lastModified == lastModified) {
+				memoryHits.incrementAndGet();
+				return entry;
+			}
+		}
+		if (directory != null) {
+			Entry entry = read(key);
+			if (entry != null && entry.lastModified == lastModified) {
+				diskHits.incrementAndGet();
+				putMemory(key, entry);
+				return entry;
+			}
+		}
+		misses.incrementAndGet();
+		return null;
+	}
+
+	@Override
+	public byte [] getStale(File file, String contentType) {
+		String key = getKey(file, contentType);
+		synchronized(memory) {
+			Entry entry = window.get(key);
+			if (entry == null) {
+				entry = memory.get(key);
+			}
+			if (entry != null) {
+				return entry.content.clone();
+			}
+		}
+		Entry entry = directory == null ? null : read(key);
+		return entry == null ? null : entry.content;
+	}
+
+	@Override
+	public boolean writeCached(File file, String contentType, OutputStream output) throws IOException {
+		Entry entry = getEntry(file, contentType);
+		if (entry != null) {
+			output.write(entry.content);
+		}
+		return entry != null;
+	}
+
+	/**
+	 * Without a measurement the entry is considered as expensive as the average entry
+	 */
+	@Override
+	public void setCached(File file, String contentType, byte [] content) {
+		setCached(file, contentType, content, 0);
+	}
+	
+	@Override
+	public void setCached(File file, String contentType, byte [] content, long nanos) {
+		String key = getKey(file, contentType);
+		Entry entry = new Entry(getLastModified(file), nanos, content);
+		putMemory(key, entry);
+		if (directory != null) {
+			write(key, entry);
+		}
+	}
+	
+	private void putMemory(String key, Entry entry) {
+		long maxWindowSize = getMaxWindowSize();
+		// results that are bigger than the main region only live on disk
+		if (entry.content.length > maxMemorySize - maxWindowSize) {
+			return;
+		}
+		synchronized(memory) {
+			if (entry.nanos > 0) {
+				double cost = entry.getCost(0);
+				averageCost = averageCost == 0 ? cost : averageCost + 0.01 * (cost - averageCost);
+			}
+			removeMemory(key);
+			window.put(key, entry);
+			windowSize += entry.content.length;
+			Iterator<Map.Entry<String, Entry>> iterator = window.entrySet().iterator();
+			while (windowSize > maxWindowSize && iterator.hasNext()) {
+				Map.Entry<String, Entry> eldest = iterator.next();
+				iterator.remove();
+				windowSize -= eldest.getValue().content.length;
+				admit(eldest.getKey(), eldest.getValue(), maxMemorySize - maxWindowSize);
+			}
+		}
+	}
+	
+	/**
+	 * An entry that leaves the window replaces the entries in the main region with the lowest worth, but only if it is worth more than each of them
+	 */
+	private void admit(String key, Entry candidate, long maxMainSize) {
+		double worth = getWorth(key, candidate);
+		List<String> victims = new ArrayList<String>();
+		long freed = 0;
+		while (mainSize - freed + candidate.content.length > maxMainSize) {
+			String victim = null;
+			Entry victimEntry = null;
+			double victimWorth = 0;
+			int sampled = 0;
+			// iterating does not change the access order
+			for (Map.Entry<String, Entry> entry : memory.entrySet()) {
+				if (victims.contains(entry.getKey())) {
+					continue;
+				}
+				double entryWorth = getWorth(entry.getKey(), entry.getValue());
+				if (victim == null || entryWorth < victimWorth) {
+					victim = entry.getKey();
+					victimEntry = entry.getValue();
+					victimWorth = entryWorth;
+				}
+				if (++sampled >= sampleSize) {
+					break;
+				}
+			}
+			// on a tie the entry that is already in memory is kept
+			if (victim == null || victimWorth >= worth) {
+				rejections.incrementAndGet();
+				return;
+			}
+			victims.add(victim);
+			freed += victimEntry.content.length;
+		}
+		for (String victim : victims) {
+			mainSize -= memory.remove(victim).content.length;
+			memoryEvictions.incrementAndGet();
+		}
+		memory.put(key, candidate);
+		mainSize += candidate.content.length;
+	}
+	
+	private double getWorth(String key, Entry entry) {
+		return sketch.frequency(key) * entry.getCost(averageCost == 0 ? 1 : averageCost);
+	}
+	
+	private void removeMemory(String key) {
+		Entry previous = window.remove(key);
+		if (previous != null) {
+			windowSize -= previous.content.length;
+		}
+		previous = memory.remove(key);
+		if (previous != null) {
+			mainSize -= previous.content.length;
+		}
+	}
+	
+	private long getMaxWindowSize() {
+		return (long) (maxMemorySize * windowRatio);
+	}
+	
+	private Entry read(String key) {
+		String name = getFileName(key);
+		synchronized(disk) {
+			if (disk.get(name) == null) {
+				return null;
+			}
+		}
+		java.io.File target = new java.io.File(directory, name);
+		try {
+			DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(target)));
+			try {
+				// protects against the (unlikely) collision of hashes
+				if (!key.equals(input.readUTF())) {
+					return null;
+				}
+				long lastModified = input.readLong();
+				long nanos = input.readLong();
+				byte [] content = new byte[input.readInt()];
+				input.readFully(content);
+				// the modification date of the file keeps track of its use across restarts
+				target.setLastModified(System.currentTimeMillis());
+				return new Entry(lastModified, nanos, content);
+			}
+			finally {
+				input.close();
+			}
+		}
+		// the file was evicted after we checked, it is simply no longer cached
+		catch (FileNotFoundException e) {
+			return null;
+		}
+		catch (IOException e) {
+			logger.warn("Could not read cached file " + target, e);
+			remove(name);
+			return null;
+		}
+	}
+	
+	private void write(String key, Entry entry) {
+		String name = getFileName(key);
+		java.io.File target = new java.io.File(directory, name);
+		// write to a temporary file first so a concurrent read never sees a partial file
+		java.io.File temporary = new java.io.File(directory, name + "." + Thread.currentThread().getId() + ".tmp");
+		try {
+			DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporary)));
+			try {
+				output.writeUTF(key);
+				output.writeLong(entry.lastModified);
+				output.writeLong(entry.nanos);
+				output.writeInt(entry.content.length);
+				output.write(entry.content);
+			}
+			finally {
+				output.close();
+			}
+			synchronized(disk) {
+				if (!temporary.renameTo(target)) {
+					target.delete();
+					if (!temporary.renameTo(target)) {
+						throw new IOException("Could not rename " + temporary + " to " + target);
+					}
+				}
+				Long previous = disk.put(name, target.length());
+				if (previous != null) {
+					diskSize -= previous;
+				}
+				diskSize += target.length();
+				evictDisk();
+			}
+		}
+		catch (IOException e) {
+			logger.warn("Could not write cached file " + target, e);
+			temporary.delete();
+		}
+	}
+	
+	private void remove(String name) {
+		synchronized(disk) {
+			Long size = disk.remove(name);
+			if (size != null) {
+				diskSize -= size;
+			}
+			new java.io.File(directory, name).delete();
+		}
+	}
+	
+	private void evictDisk() {
+		Iterator<Map.Entry<String, Long>> iterator = disk.entrySet().iterator();
+		while (diskSize > maxDiskSize && iterator.hasNext()) {
+			Map.Entry<String, Long> next = iterator.next();
+			new java.io.File(directory, next.getKey()).delete();
+			diskSize -= next.getValue();
+			iterator.remove();
+			diskEvictions.incrementAndGet();
+		}
+	}
+	
+	private static String getKey(File file, String contentType) {
+		return file.getPath() + ";" + contentType;
+	}
+	
+	private static long getLastModified(File file) {
+		try {
+			Date lastModified = file.getLastModified();
+			return lastModified == null ? 0 : lastModified.getTime();
+		}
+		catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+	
+	private static String getFileName(String key) {
+		try {
+			byte [] digest = MessageDigest.getInstance("SHA-256").digest(key.getBytes("UTF-8"));
+			StringBuilder builder = new StringBuilder();
+			for (int i = 0; i < 20; i++) {
+				builder.append(String.format("%02x", digest[i] & 0xff));
+			}
+			return builder.append(EXTENSION).toString();
+		}
+		catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+		catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+	
+	public long getMemoryHits() {
+		return memoryHits.get();
+	}
+
+	public long getDiskHits() {
+		return diskHits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	public long getMemoryEvictions() {
+		return memoryEvictions.get();
+	}
+
+	/**
+	 * The amount of entries that were not admitted to the main region of the memory
+	 */
+	public long getRejections() {
+		return rejections.get();
+	}
+
+	public long getDiskEvictions() {
+		return diskEvictions.get();
+	}
+	
+	public long getMemorySize() {
+		synchronized(memory) {
+			return windowSize + mainSize;
+		}
+	}
+	
+	public long getDiskSize() {
+		synchronized(disk) {
+			return diskSize;
+		}
+	}
+	
+	@Override
+	public String toString() {
+		return "[memoryHits=" + getMemoryHits() + ", diskHits=" + getDiskHits() + ", misses=" + getMisses() + ", memoryEvictions=" + getMemoryEvictions() + ", rejections=" + getRejections() + ", diskEvictions=" + getDiskEvictions() + ", memorySize=" + getMemorySize() + ", diskSize=" + getDiskSize() + "]";
+	}
+
+	public double getWindowRatio() {
+		return windowRatio;
+	}
+
+	public void setWindowRatio(double windowRatio) {
+		this.windowRatio = windowRatio;
+	}
+
+	public int getSampleSize() {
+		return sampleSize;
+	}
+
+	public void setSampleSize(int sampleSize) {
+		this.sampleSize = sampleSize;
+	}
+
+	private static class Entry {
+		private long lastModified, nanos;
+		private byte [] content;
+		
+		public Entry(long lastModified, long nanos, byte [] content) {
+			this.lastModified = lastModified;
+			this.nanos = nanos;
+			this.content = content;
+		}
+		
+		/**
+		 * The conversion time per byte of the result
+		 */
+		public double getCost(double defaultCost) {
+			return nanos <= 0 ? defaultCost : nanos / (double) Math.max(1, content.length);
+		}
+	}
+}
@@ -0,0 +1,53 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.dms.utils;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the conversions on virtual threads, a conversion that blocks on io (e.g. reading an include) does not hold on to a carrier thread.
+ * The bounds are kept so the amount of concurrent conversions (and their memory) is still limited.
+ * A batch does not use work stealing here, the tasks are simply queued for the given amount of virtual threads.
+ */
+public class DefaultExecutorProvider implements ConversionExecutorProvider {
+
+	@Override
+	public ExecutorService newExecutor(String name, int threads, int queueSize) {
+		ThreadFactory factory = Thread.ofVirtual().name(name + "-", 1).factory();
+		if (threads <= 0) {
+			return Executors.newThreadPerTaskExecutor(factory);
+		}
+		BlockingQueue<Runnable> queue = queueSize <= 0 ? new LinkedBlockingQueue<Runnable>() : new ArrayBlockingQueue<Runnable>(queueSize);
+		ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, queue, factory);
+		// an idle pool does not hold on to its threads
+		executor.allowCoreThreadTimeOut(true);
+		return executor;
+	}
+
+	@Override
+	public ExecutorService newBatchExecutor(String name, int parallelism) {
+		return newExecutor(name, parallelism, 0);
+	}
+}
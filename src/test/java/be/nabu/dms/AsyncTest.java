@@ -0,0 +1,155 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+
+package be.nabu.dms;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import be.nabu.libs.dms.api.Converter;
+import be.nabu.libs.dms.api.DocumentManager;
+import be.nabu.libs.dms.api.FormatException;
+import be.nabu.libs.dms.utils.ConversionResult;
+import be.nabu.libs.dms.utils.SPIConverterResolver;
+import be.nabu.libs.dms.utils.SimpleDocumentManager;
+import be.nabu.libs.vfs.api.File;
+import junit.framework.TestCase;
+
+/**
+ * The asynchronous api runs the conversions on a bounded executor that can be shut down
+ */
+public class AsyncTest extends TestCase {
+	
+	private CountDownLatch started = new CountDownLatch(1);
+	private CountDownLatch release = new CountDownLatch(0);
+	private TestConverter converter = new TestConverter("ab", "test/a", "test/b", true) {
+		@Override
+		protected byte [] transform(DocumentManager repository, File file, byte [] content, Map<String, String> properties) throws IOException, FormatException {
+			started.countDown();
+			try {
+				release.await();
+			}
+			catch (InterruptedException e) {
+				throw new IOException(e);
+			}
+			if (file.getPath().equals("/broken")) {
+				throw new FormatException("broken");
+			}
+			return super.transform(repository, file, content, properties);
+		}
+	};
+	private SimpleDocumentManager manager = new SimpleDocumentManager(new SPIConverterResolver(Arrays.<Converter>asList(converter)));
+	private MemoryTree tree = new MemoryTree();
+	
+	@Override
+	protected void tearDown() {
+		release = new CountDownLatch(0);
+		manager.shutdown();
+	}
+	
+	public void testResult() throws Exception {
+		File file = tree.put("/page", "page", "test/a");
+		assertEquals("page|ab", new String(manager.convertAsync(file, "test/b", null).get(10, TimeUnit.SECONDS), "UTF-8"));
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		ConversionResult result = manager.convertAsync(file, "test/b", output, null).get(10, TimeUnit.SECONDS);
+		assertFalse(result.isStale());
+		assertEquals("page|ab", new String(output.toByteArray(), "UTF-8"));
+	}
+	
+	public void testFailure() throws Exception {
+		try {
+			manager.convertAsync(tree.put("/broken", "page", "test/a"), "test/b", null).get(10, TimeUnit.SECONDS);
+			fail("The conversion should fail");
+		}
+		catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof FormatException);
+		}
+	}
+	
+	/**
+	 * Once the queue is full, new conversions are rejected through their future
+	 */
+	public void testRejected() throws Exception {
+		manager.setAsyncThreads(1);
+		manager.setAsyncQueueSize(1);
+		release = new CountDownLatch(1);
+		File file = tree.put("/page", "page", "test/a");
+		CompletableFuture<byte []> running = manager.convertAsync(file, "test/b", null);
+		assertTrue(started.await(10, TimeUnit.SECONDS));
+		CompletableFuture<byte []> queued = manager.convertAsync(file, "test/b", null);
+		CompletableFuture<byte []> rejected = manager.convertAsync(file, "test/b", null);
+		try {
+			rejected.get(10, TimeUnit.SECONDS);
+			fail("The conversion should be rejected");
+		}
+		catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof RejectedExecutionException);
+		}
+		release.countDown();
+		assertEquals("page|ab", new String(running.get(10, TimeUnit.SECONDS), "UTF-8"));
+		assertEquals("page|ab", new String(queued.get(10, TimeUnit.SECONDS), "UTF-8"));
+	}
+	
+	/**
+	 * Only the executors that the manager created are shut down, the manager creates new ones when it is used again
+	 */
+	public void testShutdown() throws Exception {
+		File file = tree.put("/page", "page", "test/a");
+		manager.convertAsync(file, "test/b", null).get(10, TimeUnit.SECONDS);
+		ExecutorService created = manager.getAsyncExecutor();
+		manager.shutdown();
+		assertTrue(created.awaitTermination(10, TimeUnit.SECONDS));
+		assertEquals("page|ab", new String(manager.convertAsync(file, "test/b", null).get(10, TimeUnit.SECONDS), "UTF-8"));
+		assertNotSame(created, manager.getAsyncExecutor());
+		
+		ExecutorService explicit = Executors.newFixedThreadPool(1);
+		try {
+			manager.setAsyncExecutor(explicit);
+			manager.convertAsync(file, "test/b", null).get(10, TimeUnit.SECONDS);
+			manager.shutdown();
+			assertFalse(explicit.isShutdown());
+			assertSame(explicit, manager.getAsyncExecutor());
+		}
+		finally {
+			explicit.shutdownNow();
+		}
+	}
+	
+	/**
+	 * The default executors do not keep the jvm alive
+	 */
+	public void testDaemon() throws Exception {
+		final boolean [] daemon = new boolean[1];
+		manager.getAsyncExecutor().submit(new Runnable() {
+			@Override
+			public void run() {
+				daemon[0] = Thread.currentThread().isDaemon();
+			}
+		}).get(10, TimeUnit.SECONDS);
+		assertTrue(daemon[0]);
+	}
+}
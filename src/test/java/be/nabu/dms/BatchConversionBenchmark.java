@@ -0,0 +1,134 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.dms;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import be.nabu.libs.dms.MemoryFileFragment;
+import be.nabu.libs.dms.api.Converter;
+import be.nabu.libs.dms.api.FormatException;
+import be.nabu.libs.dms.converters.DXFToHTML;
+import be.nabu.libs.dms.converters.DXFToText;
+import be.nabu.libs.dms.converters.WikiToDXF;
+import be.nabu.libs.dms.utils.ConversionResult;
+import be.nabu.libs.dms.utils.SPIConverterResolver;
+import be.nabu.libs.dms.utils.SimpleDocumentManager;
+import be.nabu.libs.vfs.api.File;
+
+/**
+ * Converts a tree of wiki pages that share a few included pages to html and text, once in a loop on a single thread and then as a batch on 1, 4 and 16 threads
+ */
+public class BatchConversionBenchmark {
+
+	private static final int PAGES = 2000;
+	private static final Date LAST_MODIFIED = new Date();
+	
+	private static Map<String, byte []> tree = new HashMap<String, byte []>();
+	
+	public static void main(String...args) throws IOException, FormatException {
+		tree.put("/shared/header", "h1. Header\n\nThe header of every page, it includes the [:menu]".getBytes("UTF-8"));
+		tree.put("/shared/menu", "* first\n* second\n* third".getBytes("UTF-8"));
+		tree.put("/shared/footer", "The footer of *every* page".getBytes("UTF-8"));
+		List<File> files = new ArrayList<File>();
+		for (int i = 0; i < PAGES; i++) {
+			StringBuilder page = new StringBuilder("[:../shared/header]\n\nh2. Page " + i + "\n\n");
+			for (int j = 0; j < 20; j++) {
+				page.append("A paragraph with some *bold* and _italic_ text that links to [page " + j + "|/pages/" + j + "].\n\n");
+			}
+			page.append("[:../shared/footer]");
+			tree.put("/pages/" + i, page.toString().getBytes("UTF-8"));
+			files.add(new BenchmarkFile("/pages/" + i));
+		}
+		List<String> toContentTypes = Arrays.asList("text/html", "text/plain");
+		
+		// warm up
+		newManager().convertBatch(files.subList(0, 100), toContentTypes, null, null, 4);
+		
+		SimpleDocumentManager manager = newManager();
+		long started = System.nanoTime();
+		for (File file : files) {
+			for (String toContentType : toContentTypes) {
+				manager.convert(file, toContentType, new ByteArrayOutputStream(), new HashMap<String, String>());
+			}
+		}
+		report("loop", System.nanoTime() - started, files.size() * toContentTypes.size(), 0);
+		
+		for (int threads : new int [] { 1, 4, 16 }) {
+			started = System.nanoTime();
+			List<ConversionResult> results = newManager().convertBatch(files, toContentTypes, null, null, threads);
+			int failures = 0;
+			for (ConversionResult result : results) {
+				if (!result.isSuccessful()) {
+					failures++;
+				}
+			}
+			report("batch on " + threads + " threads", System.nanoTime() - started, results.size(), failures);
+		}
+	}
+	
+	private static void report(String name, long nanos, int conversions, int failures) {
+		System.out.println(name + ": " + conversions + " conversions in " + (nanos / 1000000) + "ms, " + (conversions * 1000000000l / nanos) + " conversions/s, " + failures + " failures");
+	}
+	
+	private static SimpleDocumentManager newManager() {
+		return new SimpleDocumentManager(new SPIConverterResolver(Arrays.<Converter>asList(new WikiToDXF(), new DXFToHTML(), new DXFToText())));
+	}
+	
+	private static class BenchmarkFile extends MemoryFileFragment {
+		
+		private String path;
+		
+		public BenchmarkFile(String path) {
+			super(null, tree.containsKey(path) ? tree.get(path) : new byte[0], path.substring(path.lastIndexOf('/') + 1), WikiToDXF.WIKI_CONTENT_TYPE);
+			this.path = path;
+		}
+		@Override
+		public String getPath() {
+			return path;
+		}
+		@Override
+		public Date getLastModified() {
+			return LAST_MODIFIED;
+		}
+		@Override
+		public boolean exists() {
+			return tree.containsKey(path);
+		}
+		@Override
+		public File getParent() {
+			return new BenchmarkFile(path.substring(0, path.lastIndexOf('/') + 1));
+		}
+		@Override
+		public File resolve(String link) {
+			String directory = path.endsWith("/") ? path : path.substring(0, path.lastIndexOf('/') + 1);
+			String resolved = link.startsWith("/") ? link : directory + link;
+			// normalize the parent references
+			while (resolved.contains("/../")) {
+				resolved = resolved.replaceFirst("/[^/]+/\\.\\./", "/");
+			}
+			return new BenchmarkFile(resolved);
+		}
+	}
+}
@@ -0,0 +1,140 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+
+package be.nabu.dms;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import be.nabu.libs.dms.api.Converter;
+import be.nabu.libs.dms.api.DocumentManager;
+import be.nabu.libs.dms.api.FormatException;
+import be.nabu.libs.dms.utils.BatchOutput;
+import be.nabu.libs.dms.utils.ConversionResult;
+import be.nabu.libs.dms.utils.SPIConverterResolver;
+import be.nabu.libs.dms.utils.SimpleDocumentManager;
+import be.nabu.libs.vfs.api.File;
+import junit.framework.TestCase;
+
+/**
+ * A batch converts every file to every content type, a failed conversion does not stop the others
+ */
+public class BatchTest extends TestCase {
+	
+	private AtomicInteger running = new AtomicInteger(), maxRunning = new AtomicInteger();
+	private TestConverter ab = new TestConverter("ab", "test/a", "test/b", true) {
+		@Override
+		protected byte [] transform(DocumentManager repository, File file, byte [] content, Map<String, String> properties) throws IOException, FormatException {
+			int current = running.incrementAndGet();
+			try {
+				synchronized(maxRunning) {
+					maxRunning.set(Math.max(maxRunning.get(), current));
+				}
+				Thread.sleep(20);
+			}
+			catch (InterruptedException e) {
+				throw new IOException(e);
+			}
+			finally {
+				running.decrementAndGet();
+			}
+			if (file.getPath().equals("/broken")) {
+				throw new FormatException("broken");
+			}
+			return super.transform(repository, file, content, properties);
+		}
+	};
+	private SimpleDocumentManager manager = new SimpleDocumentManager(new SPIConverterResolver(Arrays.<Converter>asList(ab, new TestConverter("bc", "test/b", "test/c", true))));
+	private MemoryTree tree = new MemoryTree();
+	private List<File> files = Arrays.asList(tree.put("/first", "first", "test/a"), tree.put("/broken", "broken", "test/a"), tree.put("/second", "second", "test/a"));
+	
+	public void testResults() throws IOException {
+		List<ConversionResult> results = manager.convertBatch(files, Arrays.asList("test/b", "test/c"), null, null, 4);
+		assertEquals(6, results.size());
+		assertResult(results.get(0), "/first", "test/b", "first|ab");
+		assertResult(results.get(1), "/first", "test/c", "first|ab|bc");
+		assertFalse(results.get(2).isSuccessful());
+		assertTrue(results.get(2).getFailure() instanceof FormatException);
+		assertFalse(results.get(3).isSuccessful());
+		assertResult(results.get(4), "/second", "test/b", "second|ab");
+		assertResult(results.get(5), "/second", "test/c", "second|ab|bc");
+	}
+	
+	public void testParallelism() {
+		List<File> files = new ArrayList<File>();
+		for (int i = 0; i < 20; i++) {
+			files.add(tree.put("/page" + i, "page", "test/a"));
+		}
+		for (ConversionResult result : manager.convertBatch(files, Arrays.asList("test/b"), null, null, 2)) {
+			assertTrue(result.isSuccessful());
+		}
+		assertTrue(maxRunning.get() <= 2);
+	}
+	
+	/**
+	 * Without a valid parallelism the amount of processors is used
+	 */
+	public void testDefaultParallelism() {
+		for (int parallelism : new int [] { 0, -1 }) {
+			List<ConversionResult> results = manager.convertBatch(files, Arrays.asList("test/b"), null, null, parallelism);
+			assertEquals(3, results.size());
+			assertTrue(results.get(0).isSuccessful());
+		}
+	}
+	
+	/**
+	 * The converted content is written to the given outputs which are closed afterwards, the results do not keep it
+	 */
+	public void testOutput() throws IOException {
+		final Map<String, ByteArrayOutputStream> outputs = new ConcurrentHashMap<String, ByteArrayOutputStream>();
+		final AtomicInteger closed = new AtomicInteger();
+		List<ConversionResult> results = manager.convertBatch(files, Arrays.asList("test/c"), null, new BatchOutput() {
+			@Override
+			public OutputStream getOutput(File file, String toContentType) {
+				ByteArrayOutputStream output = new ByteArrayOutputStream() {
+					@Override
+					public void close() {
+						closed.incrementAndGet();
+					}
+				};
+				outputs.put(file.getPath(), output);
+				return output;
+			}
+		}, 2);
+		assertEquals(3, closed.get());
+		assertNull(results.get(0).getContent());
+		assertTrue(results.get(0).isSuccessful());
+		assertEquals("first|ab|bc", new String(outputs.get("/first").toByteArray(), "UTF-8"));
+		assertEquals("second|ab|bc", new String(outputs.get("/second").toByteArray(), "UTF-8"));
+		assertFalse(results.get(1).isSuccessful());
+	}
+	
+	private static void assertResult(ConversionResult result, String path, String toContentType, String content) throws IOException {
+		assertTrue(result.isSuccessful());
+		assertEquals(path, result.getFile().getPath());
+		assertEquals(toContentType, result.getToContentType());
+		assertEquals(content, new String(result.getContent(), "UTF-8"));
+	}
+}
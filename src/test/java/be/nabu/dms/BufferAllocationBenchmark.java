@@ -0,0 +1,161 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.dms;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import be.nabu.libs.dms.MemoryFileFragment;
+import be.nabu.libs.dms.api.Converter;
+import be.nabu.libs.dms.api.DocumentManager;
+import be.nabu.libs.dms.api.FormatException;
+import be.nabu.libs.dms.converters.ChainConverter;
+import be.nabu.libs.dms.utils.BufferPool;
+import be.nabu.libs.dms.utils.SPIConverterResolver;
+import be.nabu.libs.dms.utils.SimpleDocumentManager;
+import be.nabu.libs.vfs.api.File;
+
+/**
+ * Measures the bytes allocated per chained conversion by the calling thread for the old byte array buffers, unpooled chunks and pooled chunks
+ */
+public class BufferAllocationBenchmark {
+
+	private static final int ITERATIONS = 200;
+
+	public static void main(String...args) throws IOException, FormatException {
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		List<Converter> steps = new ArrayList<Converter>();
+		for (int i = 0; i < 3; i++) {
+			steps.add(new CopyConverter("application/x-benchmark-" + i, "application/x-benchmark-" + (i + 1)));
+		}
+		ChainConverter chain = new ChainConverter(steps);
+		for (int size : new int [] { 16 * 1024, 256 * 1024, 4 * 1024 * 1024 }) {
+			final byte [] content = new byte[size];
+			Arrays.fill(content, (byte) 'a');
+			File file = new MemoryFileFragment(null, content, "benchmark", "application/x-benchmark-0") {
+				@Override
+				public InputStream getInputStream() {
+					return new ByteArrayInputStream(content);
+				}
+				@Override
+				public long getSize() {
+					return content.length;
+				}
+			};
+			SimpleDocumentManager manager = new SimpleDocumentManager(new SPIConverterResolver(steps));
+			manager.setBufferPool(null);
+			long legacy = measure(threads, new ByteArrayChain(steps), manager, file);
+			long unpooled = measure(threads, chain, manager, file);
+			manager.setBufferPool(new BufferPool(32 * 1024 * 1024));
+			long pooled = measure(threads, chain, manager, file);
+			System.out.println((size / 1024) + "kb: byte arrays " + (legacy / 1024) + "kb, unpooled chunks " + (unpooled / 1024) + "kb, pooled chunks " + (pooled / 1024) + "kb allocated per conversion");
+		}
+	}
+
+	private static long measure(com.sun.management.ThreadMXBean threads, Converter converter, DocumentManager manager, File file) throws IOException, FormatException {
+		OutputStream output = new OutputStream() {
+			@Override
+			public void write(int single) {
+				// discard
+			}
+			@Override
+			public void write(byte [] bytes, int offset, int length) {
+				// discard
+			}
+		};
+		// warm up, this also fills the pool
+		for (int i = 0; i < ITERATIONS; i++) {
+			converter.convert(manager, file, output, null);
+		}
+		long allocated = threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+		for (int i = 0; i < ITERATIONS; i++) {
+			converter.convert(manager, file, output, null);
+		}
+		return (threads.getThreadAllocatedBytes(Thread.currentThread().getId()) - allocated) / ITERATIONS;
+	}
+
+	/**
+	 * The way the chain converter used to buffer its intermediate results
+	 */
+	private static class ByteArrayChain extends ChainConverter {
+		public ByteArrayChain(List<Converter> chain) {
+			super(chain);
+		}
+		@Override
+		public void convert(DocumentManager repository, File file, OutputStream output, Map<String, String> properties) throws IOException, FormatException {
+			byte [] result = null;
+			String currentContentType = null;
+			for (Converter converter : getChain()) {
+				File fileToConvert = result == null ? file : new MemoryFileFragment(file, result, "converted", currentContentType);
+				ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+				converter.convert(repository, fileToConvert, buffer, properties);
+				result = buffer.toByteArray();
+				currentContentType = converter.getOutputContentType();
+			}
+			output.write(result);
+		}
+	}
+
+	private static class CopyConverter implements Converter {
+
+		private String fromContentType, toContentType;
+
+		public CopyConverter(String fromContentType, String toContentType) {
+			this.fromContentType = fromContentType;
+			this.toContentType = toContentType;
+		}
+
+		@Override
+		public void convert(DocumentManager repository, File file, OutputStream output, Map<String, String> properties) throws IOException, FormatException {
+			InputStream input = file.getInputStream();
+			try {
+				byte [] buffer = new byte[8192];
+				int read;
+				while ((read = input.read(buffer)) > 0) {
+					output.write(buffer, 0, read);
+				}
+			}
+			finally {
+				input.close();
+			}
+		}
+
+		@Override
+		public List<String> getContentTypes() {
+			return Arrays.asList(new String [] { fromContentType });
+		}
+
+		@Override
+		public String getOutputContentType() {
+			return toContentType;
+		}
+
+		@Override
+		public boolean isLossless() {
+			return true;
+		}
+	}
+}
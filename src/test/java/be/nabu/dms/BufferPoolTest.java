@@ -0,0 +1,101 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.dms;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+import be.nabu.libs.dms.utils.BufferPool;
+import be.nabu.libs.dms.utils.ChunkedBuffer;
+import junit.framework.TestCase;
+
+/**
+ * The chunked buffers must return their chunks to the pool and the pool must respect its limit
+ */
+public class BufferPoolTest extends TestCase {
+	
+	public void testReuse() {
+		BufferPool pool = new BufferPool(1024 * 1024);
+		byte [] chunk = pool.acquire(BufferPool.MINIMUM_CHUNK_SIZE);
+		assertEquals(BufferPool.MINIMUM_CHUNK_SIZE, chunk.length);
+		pool.release(chunk);
+		assertEquals(BufferPool.MINIMUM_CHUNK_SIZE, pool.getSize());
+		assertSame(chunk, pool.acquire(BufferPool.MINIMUM_CHUNK_SIZE));
+		assertEquals(0, pool.getSize());
+	}
+	
+	public void testLimit() {
+		BufferPool pool = new BufferPool(BufferPool.MINIMUM_CHUNK_SIZE);
+		pool.release(new byte[BufferPool.MINIMUM_CHUNK_SIZE]);
+		pool.release(new byte[BufferPool.MINIMUM_CHUNK_SIZE]);
+		assertEquals(BufferPool.MINIMUM_CHUNK_SIZE, pool.getSize());
+		// chunks that are not one of the chunk sizes are never pooled
+		pool = new BufferPool(1024 * 1024);
+		pool.release(new byte[1000]);
+		pool.release(new byte[BufferPool.MAXIMUM_CHUNK_SIZE * 2]);
+		assertEquals(0, pool.getSize());
+	}
+	
+	public void testChunkSizes() {
+		assertEquals(BufferPool.MINIMUM_CHUNK_SIZE, BufferPool.getChunkSize(0));
+		assertEquals(BufferPool.MINIMUM_CHUNK_SIZE * 2, BufferPool.getChunkSize(1));
+		assertEquals(BufferPool.MAXIMUM_CHUNK_SIZE, BufferPool.getChunkSize(100));
+	}
+	
+	public void testChunkedBuffer() throws IOException {
+		BufferPool pool = new BufferPool(16 * 1024 * 1024);
+		byte [] content = new byte[1024 * 1024 + 123];
+		for (int i = 0; i < content.length; i++) {
+			content[i] = (byte) i;
+		}
+		ChunkedBuffer buffer = new ChunkedBuffer(pool);
+		buffer.write(content, 0, 10);
+		buffer.write(content[10]);
+		buffer.write(content, 11, content.length - 11);
+		assertEquals(content.length, buffer.size());
+		assertTrue(Arrays.equals(content, buffer.toByteArray()));
+		// the content can be read multiple times
+		for (int i = 0; i < 2; i++) {
+			ByteArrayOutputStream output = new ByteArrayOutputStream();
+			InputStream input = buffer.getInputStream();
+			byte [] bytes = new byte[7777];
+			int read;
+			while ((read = input.read(bytes)) > 0) {
+				output.write(bytes, 0, read);
+			}
+			assertTrue(Arrays.equals(content, output.toByteArray()));
+		}
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		buffer.writeTo(output);
+		assertTrue(Arrays.equals(content, output.toByteArray()));
+		
+		assertEquals(0, pool.getSize());
+		buffer.release();
+		assertEquals(0, buffer.size());
+		// all the chunks are returned so a second buffer of the same size does not allocate
+		long pooled = pool.getSize();
+		assertTrue(pooled >= content.length);
+		ChunkedBuffer second = new ChunkedBuffer(pool);
+		second.write(content, 0, content.length);
+		assertTrue(pool.getSize() < pooled);
+		second.release();
+		assertEquals(pooled, pool.getSize());
+	}
+}
@@ -0,0 +1,178 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+
+package be.nabu.dms;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import be.nabu.libs.dms.api.Converter;
+import be.nabu.libs.dms.api.DocumentManager;
+import be.nabu.libs.dms.api.FormatException;
+import be.nabu.libs.dms.converters.DXFToHTML;
+import be.nabu.libs.dms.converters.EHTMLToDXF;
+import be.nabu.libs.dms.converters.MarkdownToDXF;
+import be.nabu.libs.dms.converters.MarkdownToHTML;
+import be.nabu.libs.dms.converters.WikiToEHTML;
+import be.nabu.libs.dms.utils.CancellationToken;
+import be.nabu.libs.dms.utils.ConversionCancelledException;
+import be.nabu.libs.dms.utils.ConversionContext;
+import be.nabu.libs.dms.utils.DMSUtils;
+import be.nabu.libs.dms.utils.SPIConverterResolver;
+import be.nabu.libs.dms.utils.SimpleDocumentManager;
+import be.nabu.libs.dms.utils.TieredDocumentCacheManager;
+import be.nabu.libs.vfs.api.File;
+import junit.framework.TestCase;
+
+/**
+ * A cancelled conversion or one that runs past its deadline stops at the next check and caches nothing
+ */
+public class CancellationTest extends TestCase {
+	
+	private MemoryTree tree = new MemoryTree();
+	private CancellationToken cancelled = new CancellationToken();
+	
+	@Override
+	protected void setUp() {
+		cancelled.cancel();
+	}
+	
+	public void testMarkdownToHTML() throws IOException, FormatException {
+		File file = tree.put("/page", "# Title\n\nA [link](http://example.com)", MarkdownToDXF.CONTENT_TYPE);
+		assertCancelled(new MarkdownToHTML(), file);
+	}
+	
+	public void testDXFToHTML() throws IOException, FormatException {
+		File file = tree.put("/page", "<p>content</p>", Converter.DOCUMENT_EXCHANGE_FORMAT_CONTENT_TYPE);
+		try {
+			new DXFToHTML().toHTML(newContext(), file, "<p>content</p>", new HashMap<String, String>());
+			fail("The conversion should be cancelled");
+		}
+		catch (ConversionCancelledException e) {
+			assertFalse(e.isTimedOut());
+		}
+	}
+	
+	public void testEHTMLToDXF() throws IOException, FormatException {
+		assertCancelled(new EHTMLToDXF(), tree.put("/page", "<p>content</p>", WikiToEHTML.EDITABLE_HTML));
+	}
+	
+	/**
+	 * The regular expressions of markdown check the token that is bound to the thread
+	 */
+	public void testMarkdownExpressions() {
+		StringBuilder content = new StringBuilder();
+		for (int i = 0; i < 1000; i++) {
+			content.append("[name](/path/" + i + ") ");
+		}
+		CancellationToken previous = CancellationToken.bind(cancelled);
+		try {
+			new MarkdownToDXF().replaceExternalLinks(content.toString());
+			fail("The expression should be cancelled");
+		}
+		catch (UncheckedIOException e) {
+			assertTrue(e.getCause() instanceof ConversionCancelledException);
+		}
+		finally {
+			CancellationToken.bind(previous);
+		}
+	}
+	
+	/**
+	 * A conversion that runs past the deadline fails and its partial result is not cached
+	 */
+	public void testDeadline() throws Exception {
+		final long [] delay = new long [] { 200 };
+		TestConverter converter = new TestConverter("ab", "test/a", "test/b", true) {
+			@Override
+			protected byte [] transform(DocumentManager repository, File file, byte [] content, Map<String, String> properties) throws IOException, FormatException {
+				try {
+					Thread.sleep(delay[0]);
+				}
+				catch (InterruptedException e) {
+					throw new IOException(e);
+				}
+				DMSUtils.checkCancelled(repository);
+				return super.transform(repository, file, content, properties);
+			}
+		};
+		SimpleDocumentManager manager = new SimpleDocumentManager(new SPIConverterResolver(Arrays.<Converter>asList(converter)));
+		manager.setCacheManager(new TieredDocumentCacheManager(1024 * 1024, null, 0));
+		manager.setConversionTimeout(50);
+		File file = tree.put("/page", "page", "test/a");
+		try {
+			manager.convert(file, "test/b", new ByteArrayOutputStream(), null);
+			fail("The conversion should run past its deadline");
+		}
+		catch (ConversionCancelledException e) {
+			assertTrue(e.isTimedOut());
+		}
+		delay[0] = 0;
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		manager.convert(file, "test/b", output, null);
+		assertEquals("page|ab", new String(output.toByteArray(), "UTF-8"));
+		assertEquals(2, converter.getConversions());
+	}
+	
+	public void testParent() throws Exception {
+		CancellationToken parent = new CancellationToken();
+		CancellationToken child = new CancellationToken(parent, 0);
+		assertFalse(child.isCancelled());
+		assertEquals(-1, child.getRemaining());
+		parent.cancel();
+		assertTrue(child.isCancelled());
+		try {
+			child.check();
+			fail("The parent was cancelled");
+		}
+		catch (ConversionCancelledException e) {
+			assertFalse(e.isTimedOut());
+		}
+		// the earliest deadline applies
+		child = new CancellationToken(new CancellationToken(60000), 1000);
+		assertTrue(child.getRemaining() <= 1000);
+		child = new CancellationToken(new CancellationToken(0), 60000);
+		Thread.sleep(5);
+		assertTrue(child.isExpired());
+		try {
+			child.check();
+			fail("The parent ran past its deadline");
+		}
+		catch (ConversionCancelledException e) {
+			assertTrue(e.isTimedOut());
+		}
+	}
+	
+	private ConversionContext newContext() {
+		return new ConversionContext(new SimpleDocumentManager(new SPIConverterResolver(Arrays.<Converter>asList())), null, cancelled);
+	}
+	
+	private void assertCancelled(Converter converter, File file) throws IOException, FormatException {
+		try {
+			converter.convert(newContext(), file, new ByteArrayOutputStream(), new HashMap<String, String>());
+			fail("The conversion should be cancelled");
+		}
+		catch (ConversionCancelledException e) {
+			assertFalse(e.isTimedOut());
+		}
+	}
+}
@@ -0,0 +1,266 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+
+package be.nabu.dms;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+
+import be.nabu.libs.dms.api.Converter;
+import be.nabu.libs.dms.api.DocumentManager;
+import be.nabu.libs.dms.utils.CompressingDocumentCacheManager;
+import be.nabu.libs.dms.utils.SPIConverterResolver;
+import be.nabu.libs.dms.utils.SimpleDocumentManager;
+import be.nabu.libs.dms.utils.TieredDocumentCacheManager;
+import be.nabu.libs.vfs.api.File;
+import junit.framework.TestCase;
+
+/**
+ * Cached results are compressed where it pays off and can be served gzipped as they are
+ */
+public class CompressionTest extends TestCase {
+	
+	private TieredDocumentCacheManager cache = new TieredDocumentCacheManager(1024 * 1024, null, 0);
+	private CompressingDocumentCacheManager compressing = new CompressingDocumentCacheManager(cache);
+	private MemoryTree tree = new MemoryTree();
+	private File file = tree.put("/page", "page", "test/a");
+	
+	public void testCompressed() throws Exception {
+		byte [] content = repeat("compressible ", 1000);
+		compressing.setCached(file, "test/b", content);
+		assertTrue(Arrays.equals(content, compressing.getCached(file, "test/b")));
+		assertTrue(cache.getCached(file, "test/b").length < content.length / 10);
+		assertTrue(compressing.getStoredSize() < compressing.getOriginalSize());
+		
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		assertTrue(compressing.writeCached(file, "test/b", output));
+		assertTrue(Arrays.equals(content, output.toByteArray()));
+		
+		output = new ByteArrayOutputStream();
+		assertTrue(compressing.writeGzipped(file, "test/b", output));
+		assertTrue(Arrays.equals(content, gunzip(output.toByteArray())));
+	}
+	
+	/**
+	 * Small results, results that are already compressed and results that do not compress well are stored as they are
+	 */
+	public void testRaw() throws Exception {
+		byte [] small = "small".getBytes("UTF-8");
+		compressing.setCached(file, "test/small", small);
+		assertTrue(Arrays.equals(small, compressing.getCached(file, "test/small")));
+		assertEquals(small.length + 1, cache.getCached(file, "test/small").length);
+		assertFalse(compressing.writeGzipped(file, "test/small", new ByteArrayOutputStream()));
+		
+		byte [] zip = repeat("compressible ", 1000);
+		zip[0] = 0x50;
+		zip[1] = 0x4b;
+		zip[2] = 0x03;
+		zip[3] = 0x04;
+		compressing.setCached(file, "test/zip", zip);
+		assertEquals(zip.length + 1, cache.getCached(file, "test/zip").length);
+		assertTrue(Arrays.equals(zip, compressing.getCached(file, "test/zip")));
+		
+		byte [] random = new byte[4096];
+		new Random(1).nextBytes(random);
+		compressing.setCached(file, "test/random", random);
+		assertEquals(random.length + 1, cache.getCached(file, "test/random").length);
+	}
+	
+	/**
+	 * An entry that was not written by the compressing cache is a miss
+	 */
+	public void testUnknownHeader() throws Exception {
+		cache.setCached(file, "test/b", new byte [] { 5, 1, 2, 3 });
+		assertNull(compressing.getCached(file, "test/b"));
+		assertFalse(compressing.writeCached(file, "test/b", new ByteArrayOutputStream()));
+		assertFalse(compressing.writeGzipped(file, "test/b", new ByteArrayOutputStream()));
+		
+		// negative header bytes are not gzip either
+		cache.setCached(file, "test/negative", new byte [] { (byte) 0x9c, 1, 2, 3 });
+		assertNull(compressing.getCached(file, "test/negative"));
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		assertFalse(compressing.writeCached(file, "test/negative", output));
+		assertEquals(0, output.size());
+		assertFalse(compressing.writeGzipped(file, "test/negative", output));
+		
+		// a gzip header byte followed by something that is not gzip
+		cache.setCached(file, "test/corrupt", new byte [] { 1, 'n', 'o', 't', ' ', 'g', 'z', 'i', 'p', ' ', 'a', 't', ' ', 'a', 'l', 'l' });
+		assertNull(compressing.getCached(file, "test/corrupt"));
+		assertFalse(compressing.writeCached(file, "test/corrupt", output));
+		assertEquals(0, output.size());
+		assertFalse(compressing.writeGzipped(file, "test/corrupt", output));
+		assertEquals(0, output.size());
+	}
+	
+	public void testConvertGzipped() throws Exception {
+		TestConverter converter = new TestConverter("ab", "test/a", "test/b", true) {
+			@Override
+			protected byte [] transform(DocumentManager repository, File file, byte [] content, Map<String, String> properties) throws IOException {
+				return repeat(new String(content, "UTF-8"), 1000);
+			}
+		};
+		SimpleDocumentManager manager = new SimpleDocumentManager(new SPIConverterResolver(Arrays.<Converter>asList(converter)));
+		manager.setCacheManager(compressing);
+		
+		// the first conversion is written uncompressed
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		assertFalse(manager.convertGzipped(file, "test/b", output, null));
+		assertTrue(Arrays.equals(repeat("page", 1000), output.toByteArray()));
+		
+		output = new ByteArrayOutputStream();
+		assertTrue(manager.convertGzipped(file, "test/b", output, null));
+		assertTrue(Arrays.equals(repeat("page", 1000), gunzip(output.toByteArray())));
+		assertEquals(1, converter.getConversions());
+	}
+	
+	/**
+	 * The compressed result can be looked up before anything is written so the caller can announce the encoding
+	 */
+	public void testGetGzipped() throws Exception {
+		TestConverter converter = new TestConverter("ab", "test/a", "test/b", true) {
+			@Override
+			protected byte [] transform(DocumentManager repository, File file, byte [] content, Map<String, String> properties) throws IOException {
+				return repeat(new String(content, "UTF-8"), 1000);
+			}
+		};
+		SimpleDocumentManager manager = new SimpleDocumentManager(new SPIConverterResolver(Arrays.<Converter>asList(converter)));
+		manager.setCacheManager(compressing);
+		assertNull(manager.getGzipped(file, "test/b", null));
+		assertEquals(0, converter.getConversions());
+		
+		manager.convert(file, "test/b", new ByteArrayOutputStream(), null);
+		byte [] gzipped = manager.getGzipped(file, "test/b", null);
+		assertNotNull(gzipped);
+		assertTrue(Arrays.equals(repeat("page", 1000), gunzip(gzipped)));
+		assertEquals(1, converter.getConversions());
+		
+		// a manager that does not compress has nothing to offer
+		SimpleDocumentManager uncompressed = new SimpleDocumentManager(new SPIConverterResolver(Arrays.<Converter>asList(converter)));
+		uncompressed.setCacheManager(cache);
+		assertNull(uncompressed.getGzipped(file, "test/b", null));
+	}
+	
+	/**
+	 * If the wrapped cache can write its entries, the compressing cache does not ask it for a copy
+	 */
+	public void testWithoutCopy() throws Exception {
+		final AtomicInteger copies = new AtomicInteger();
+		CompressingDocumentCacheManager compressing = new CompressingDocumentCacheManager(new TieredDocumentCacheManager(1024 * 1024, null, 0) {
+			@Override
+			public byte [] getCached(File file, String contentType) {
+				copies.incrementAndGet();
+				return super.getCached(file, contentType);
+			}
+		});
+		byte [] content = repeat("compressible ", 1000);
+		compressing.setCached(file, "test/b", content);
+		compressing.setCached(file, "test/small", "small".getBytes("UTF-8"));
+		
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		assertTrue(compressing.writeCached(file, "test/b", output));
+		assertTrue(Arrays.equals(content, output.toByteArray()));
+		output = new ByteArrayOutputStream();
+		assertTrue(compressing.writeGzipped(file, "test/b", output));
+		assertTrue(Arrays.equals(content, gunzip(output.toByteArray())));
+		output = new ByteArrayOutputStream();
+		assertTrue(compressing.writeCached(file, "test/small", output));
+		assertEquals("small", new String(output.toByteArray(), "UTF-8"));
+		output = new ByteArrayOutputStream();
+		assertFalse(compressing.writeGzipped(file, "test/small", output));
+		assertEquals(0, output.size());
+		assertFalse(compressing.writeCached(file, "test/missing", output));
+		assertEquals(0, copies.get());
+	}
+	
+	/**
+	 * The wrapped cache may write its entry in any amount of pieces
+	 */
+	public void testSingleBytes() throws Exception {
+		CompressingDocumentCacheManager compressing = new CompressingDocumentCacheManager(new TieredDocumentCacheManager(1024 * 1024, null, 0) {
+			@Override
+			public boolean writeCached(File file, String contentType, final OutputStream output) throws IOException {
+				return super.writeCached(file, contentType, new OutputStream() {
+					@Override
+					public void write(int single) throws IOException {
+						output.write(single);
+					}
+				});
+			}
+		});
+		byte [] content = repeat("compressible ", 1000);
+		compressing.setCached(file, "test/b", content);
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		assertTrue(compressing.writeCached(file, "test/b", output));
+		assertTrue(Arrays.equals(content, output.toByteArray()));
+		output = new ByteArrayOutputStream();
+		assertTrue(compressing.writeGzipped(file, "test/b", output));
+		assertTrue(Arrays.equals(content, gunzip(output.toByteArray())));
+	}
+	
+	/**
+	 * A compressed entry that is damaged after its header fails instead of passing off a partial result as complete
+	 */
+	public void testCorruptTrailer() throws Exception {
+		byte [] content = repeat("compressible ", 1000);
+		compressing.setCached(file, "test/b", content);
+		byte [] entry = cache.getCached(file, "test/b");
+		entry[entry.length - 5]++;
+		cache.setCached(file, "test/b", entry);
+		assertNull(compressing.getCached(file, "test/b"));
+		try {
+			compressing.writeCached(file, "test/b", new ByteArrayOutputStream());
+			fail("The checksum does not match");
+		}
+		catch (IOException e) {
+			// expected
+		}
+	}
+	
+	private static byte [] repeat(String value, int times) throws UnsupportedEncodingException {
+		StringBuilder builder = new StringBuilder();
+		for (int i = 0; i < times; i++) {
+			builder.append(value);
+		}
+		return builder.toString().getBytes("UTF-8");
+	}
+	
+	private static byte [] gunzip(byte [] content) throws IOException {
+		InputStream input = new GZIPInputStream(new ByteArrayInputStream(content));
+		try {
+			ByteArrayOutputStream output = new ByteArrayOutputStream();
+			byte [] buffer = new byte[4096];
+			int read;
+			while ((read = input.read(buffer)) > 0) {
+				output.write(buffer, 0, read);
+			}
+			return output.toByteArray();
+		}
+		finally {
+			input.close();
+		}
+	}
+}
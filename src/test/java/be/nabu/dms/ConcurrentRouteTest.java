@@ -0,0 +1,81 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.dms;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import be.nabu.libs.dms.api.Converter;
+import be.nabu.libs.dms.converters.ChainConverter;
+import be.nabu.libs.dms.utils.SPIConverterResolver;
+import junit.framework.TestCase;
+
+/**
+ * Concurrent lookups on a fresh resolver must all see the same routes without external synchronization
+ */
+public class ConcurrentRouteTest extends TestCase {
+	
+	private static final List<String> CONTENT_TYPES = Arrays.asList("test/a", "test/b", "test/c", "test/d");
+	
+	public void testConcurrentLookups() throws Exception {
+		final SPIConverterResolver resolver = new SPIConverterResolver(Arrays.<Converter>asList(
+			new TestConverter("ab", "test/a", "test/b", true),
+			new TestConverter("bc", "test/b", "test/c", true),
+			new TestConverter("cd", "test/c", "test/d", true)
+		));
+		ExecutorService executor = Executors.newFixedThreadPool(8);
+		try {
+			List<Future<List<Converter>>> futures = new ArrayList<Future<List<Converter>>>();
+			for (int i = 0; i < 64; i++) {
+				futures.add(executor.submit(new Callable<List<Converter>>() {
+					@Override
+					public List<Converter> call() {
+						List<Converter> routes = new ArrayList<Converter>();
+						for (String from : CONTENT_TYPES) {
+							for (String to : CONTENT_TYPES) {
+								if (!from.equals(to)) {
+									routes.add(resolver.getConverter(from, to));
+								}
+							}
+						}
+						return routes;
+					}
+				}));
+			}
+			// the routes are calculated once so every thread must get the exact same instances
+			List<Converter> expected = futures.get(0).get();
+			for (Future<List<Converter>> future : futures) {
+				List<Converter> routes = future.get();
+				for (int i = 0; i < expected.size(); i++) {
+					assertSame(expected.get(i), routes.get(i));
+				}
+			}
+			assertEquals("ab", resolver.getConverter("test/a", "test/b").toString());
+			assertEquals("[ab, bc, cd]", ((ChainConverter) resolver.getConverter("test/a", "test/d")).getChain().toString());
+			assertNull(resolver.getConverter("test/d", "test/a"));
+		}
+		finally {
+			executor.shutdown();
+		}
+	}
+}
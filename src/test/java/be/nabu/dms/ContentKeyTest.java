@@ -0,0 +1,172 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+
+package be.nabu.dms;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.util.Arrays;
+import java.util.Map;
+
+import be.nabu.libs.dms.api.Converter;
+import be.nabu.libs.dms.api.DocumentManager;
+import be.nabu.libs.dms.api.FormatException;
+import be.nabu.libs.dms.converters.DXFToHTML;
+import be.nabu.libs.dms.converters.PathIndependentConverter;
+import be.nabu.libs.dms.converters.WikiToDXF;
+import be.nabu.libs.dms.utils.ConversionResult;
+import be.nabu.libs.dms.utils.DMSUtils;
+import be.nabu.libs.dms.utils.SPIConverterResolver;
+import be.nabu.libs.dms.utils.SimpleDocumentManager;
+import be.nabu.libs.dms.utils.TieredDocumentCacheManager;
+import be.nabu.libs.vfs.api.File;
+import junit.framework.TestCase;
+
+/**
+ * With content keys identical files only share their results if the converter does not depend on their location
+ */
+public class ContentKeyTest extends TestCase {
+	
+	private MemoryTree tree = new MemoryTree();
+	
+	private static class IndependentConverter extends TestConverter implements PathIndependentConverter {
+		public IndependentConverter(String name, String fromContentType, String toContentType) {
+			super(name, fromContentType, toContentType, true);
+		}
+	}
+	
+	/**
+	 * The relative links of identical wiki pages in different folders point to different files
+	 */
+	public void testRelativeLinks() throws IOException, FormatException {
+		SimpleDocumentManager manager = newManager(new WikiToDXF(), new DXFToHTML());
+		File first = tree.put("/first/page", "[$other]", WikiToDXF.WIKI_CONTENT_TYPE);
+		File second = tree.put("/second/page", "[$other]", WikiToDXF.WIKI_CONTENT_TYPE);
+		String firstResult = convert(manager, first, "text/html");
+		String secondResult = convert(manager, second, "text/html");
+		assertTrue(firstResult.contains("/first/other"));
+		assertTrue(secondResult.contains("/second/other"));
+		assertFalse(secondResult.contains("/first/other"));
+	}
+	
+	public void testShared() throws IOException, FormatException {
+		IndependentConverter converter = new IndependentConverter("ab", "test/a", "test/b");
+		SimpleDocumentManager manager = newManager(converter);
+		assertEquals("page|ab", convert(manager, tree.put("/first/page", "page", "test/a"), "test/b"));
+		assertEquals("page|ab", convert(manager, tree.put("/second/page", "page", "test/a"), "test/b"));
+		assertEquals(1, converter.getConversions());
+	}
+	
+	/**
+	 * The dependencies are looked up by the content key, so identical files share results with dependencies and the dependencies of other conversions of the same path do not get in the way
+	 */
+	public void testDependencies() throws IOException, FormatException {
+		final URI resource = URI.create("datastore:shared");
+		IndependentConverter independent = new IndependentConverter("ab", "test/a", "test/b") {
+			@Override
+			protected byte [] transform(DocumentManager repository, File file, byte [] content, Map<String, String> properties) throws IOException, FormatException {
+				DMSUtils.addDependency(repository, resource);
+				return super.transform(repository, file, content, properties);
+			}
+		};
+		final File header = tree.put("/header", "header", "test/a");
+		TestConverter including = new TestConverter("ac", "test/a", "test/c", true) {
+			@Override
+			protected byte [] transform(DocumentManager repository, File file, byte [] content, Map<String, String> properties) throws IOException, FormatException {
+				DMSUtils.addDependency(repository, header);
+				return super.transform(repository, file, content, properties);
+			}
+		};
+		SimpleDocumentManager manager = newManager(independent, including);
+		File first = tree.put("/first/page", "page", "test/a");
+		File second = tree.put("/second/page", "page", "test/a");
+		convert(manager, first, "test/c");
+		assertEquals("page|ab", convert(manager, first, "test/b"));
+		assertEquals("page|ab", convert(manager, second, "test/b"));
+		assertEquals(1, independent.getConversions());
+		
+		manager.invalidate(resource.toString());
+		assertEquals("page|ab", convert(manager, second, "test/b"));
+		assertEquals(2, independent.getConversions());
+	}
+	
+	public void testNotShared() throws IOException, FormatException {
+		TestConverter converter = new TestConverter("ab", "test/a", "test/b", true);
+		SimpleDocumentManager manager = newManager(converter);
+		convert(manager, tree.put("/first/page", "page", "test/a"), "test/b");
+		convert(manager, tree.put("/second/page", "page", "test/a"), "test/b");
+		assertEquals(2, converter.getConversions());
+	}
+	
+	/**
+	 * A chain is only independent of the path if all its steps are
+	 */
+	public void testChain() throws IOException, FormatException {
+		IndependentConverter ab = new IndependentConverter("ab", "test/a", "test/b");
+		TestConverter bc = new TestConverter("bc", "test/b", "test/c", true);
+		SimpleDocumentManager manager = newManager(ab, bc);
+		convert(manager, tree.put("/first/page", "page", "test/a"), "test/c");
+		convert(manager, tree.put("/second/page", "page", "test/a"), "test/c");
+		assertEquals(2, bc.getConversions());
+	}
+	
+	/**
+	 * A file that is changed back finds its previous result
+	 */
+	public void testReverted() throws IOException, FormatException {
+		TestConverter converter = new TestConverter("ab", "test/a", "test/b", true);
+		SimpleDocumentManager manager = newManager(converter);
+		File file = tree.put("/page", "v1", "test/a");
+		convert(manager, file, "test/b");
+		tree.modify("/page", "v2");
+		assertEquals("v2|ab", convert(manager, file, "test/b"));
+		tree.modify("/page", "v1");
+		assertEquals("v1|ab", convert(manager, file, "test/b"));
+		assertEquals(2, converter.getConversions());
+	}
+	
+	/**
+	 * The stale result of a modified file is found under its previous hash
+	 */
+	public void testStale() throws Exception {
+		TestConverter converter = new TestConverter("ab", "test/a", "test/b", true);
+		SimpleDocumentManager manager = newManager(converter);
+		manager.setMaxStaleness(60000);
+		File file = tree.put("/page", "v1", "test/a");
+		convert(manager, file, "test/b");
+		tree.modify("/page", "v2");
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		ConversionResult result = manager.convert(file, "test/b", output, null, null);
+		assertTrue(result.isStale());
+		assertEquals("v1|ab", new String(output.toByteArray(), "UTF-8"));
+	}
+	
+	private SimpleDocumentManager newManager(Converter...converters) {
+		SimpleDocumentManager manager = new SimpleDocumentManager(new SPIConverterResolver(Arrays.asList(converters)));
+		manager.setCacheManager(new TieredDocumentCacheManager(1024 * 1024, null, 0));
+		manager.setContentKeys(true);
+		return manager;
+	}
+	
+	private static String convert(SimpleDocumentManager manager, File file, String toContentType) throws IOException, FormatException {
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		manager.convert(file, toContentType, output, null);
+		return new String(output.toByteArray(), "UTF-8");
+	}
+}
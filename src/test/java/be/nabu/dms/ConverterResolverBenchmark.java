@@ -0,0 +1,114 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.dms;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import be.nabu.libs.dms.api.Converter;
+import be.nabu.libs.dms.api.DocumentManager;
+import be.nabu.libs.dms.api.FormatException;
+import be.nabu.libs.dms.utils.SPIConverterResolver;
+import be.nabu.libs.vfs.api.File;
+
+/**
+ * Measures how long it takes to calculate the routes and look up every pair in randomly generated converter graphs
+ */
+public class ConverterResolverBenchmark {
+
+	public static void main(String...args) {
+		for (int size : new int [] { 20, 100, 500 }) {
+			benchmark(size);
+		}
+	}
+
+	private static void benchmark(int amountOfConverters) {
+		// roughly the same ratio of converters to content types as the SPI registered converters
+		int amountOfContentTypes = Math.max(2, amountOfConverters / 2);
+		Random random = new Random(amountOfConverters);
+		List<Converter> converters = new ArrayList<Converter>();
+		for (int i = 0; i < amountOfConverters; i++) {
+			int from = random.nextInt(amountOfContentTypes);
+			int to = random.nextInt(amountOfContentTypes);
+			if (from == to) {
+				to = (to + 1) % amountOfContentTypes;
+			}
+			converters.add(new BenchmarkConverter(getContentType(from), getContentType(to), random.nextBoolean()));
+		}
+		int resolved = 0;
+		long started = System.nanoTime();
+		// a new resolver calculates its route table from scratch
+		SPIConverterResolver resolver = new SPIConverterResolver(converters);
+		for (int from = 0; from < amountOfContentTypes; from++) {
+			for (int to = 0; to < amountOfContentTypes; to++) {
+				if (resolver.getConverter(getContentType(from), getContentType(to)) != null) {
+					resolved++;
+				}
+			}
+		}
+		long elapsed = System.nanoTime() - started;
+		int pairs = amountOfContentTypes * amountOfContentTypes;
+		System.out.println(amountOfConverters + " converters, " + amountOfContentTypes + " content types: resolved " + resolved + "/" + pairs + " pairs in " + (elapsed / 1000000) + "ms (" + (elapsed / pairs / 1000) + "us per pair)");
+	}
+
+	private static String getContentType(int index) {
+		return "application/x-benchmark-" + index;
+	}
+
+	private static class BenchmarkConverter implements Converter {
+
+		private String fromContentType, toContentType;
+		private boolean lossless;
+
+		public BenchmarkConverter(String fromContentType, String toContentType, boolean lossless) {
+			this.fromContentType = fromContentType;
+			this.toContentType = toContentType;
+			this.lossless = lossless;
+		}
+
+		@Override
+		public void convert(DocumentManager repository, File file, OutputStream output, Map<String, String> properties) throws IOException, FormatException {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public List<String> getContentTypes() {
+			return Arrays.asList(new String [] { fromContentType });
+		}
+
+		@Override
+		public String getOutputContentType() {
+			return toContentType;
+		}
+
+		@Override
+		public boolean isLossless() {
+			return lossless;
+		}
+
+		@Override
+		public String toString() {
+			return fromContentType + " -> " + toContentType;
+		}
+	}
+}
@@ -0,0 +1,73 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.dms;
+
+import be.nabu.libs.dms.utils.TieredDocumentCacheManager;
+import be.nabu.libs.vfs.api.File;
+import junit.framework.TestCase;
+
+/**
+ * Entries are only admitted to the main memory region if they are worth more than the ones they replace, based on their frequency of use and their cost to recalculate
+ */
+public class CostAwareAdmissionTest extends TestCase {
+	
+	private MemoryTree tree = new MemoryTree();
+	private File file = tree.put("/page", "page", "test/a");
+	private TieredDocumentCacheManager cache = new TieredDocumentCacheManager(10000, null, 0);
+	
+	@Override
+	protected void setUp() {
+		// room for a single entry in the window and nine in the main region
+		cache.setWindowRatio(0.1);
+	}
+	
+	public void testFrequency() {
+		request("test/hot", 1);
+		for (int i = 0; i < 20; i++) {
+			assertNotNull(cache.getCached(file, "test/hot"));
+		}
+		for (int i = 0; i < 50; i++) {
+			request("test/cold" + i, 1);
+		}
+		assertNotNull(cache.getCached(file, "test/hot"));
+		assertTrue(cache.getRejections() > 0);
+		assertTrue(cache.getMemorySize() <= 10000);
+	}
+	
+	public void testCost() {
+		for (int i = 0; i < 20; i++) {
+			request("test/cheap" + i, 1000);
+		}
+		// equally frequent but far more expensive to recalculate, it must replace a cheap entry when it leaves the window
+		request("test/expensive", 1000000000);
+		for (int i = 20; i < 40; i++) {
+			request("test/cheap" + i, 1000);
+		}
+		assertNotNull(cache.getCached(file, "test/expensive"));
+		assertTrue(cache.getRejections() > 0);
+	}
+	
+	/**
+	 * A miss followed by a conversion, the way the document manager uses the cache
+	 */
+	private void request(String contentType, long nanos) {
+		if (cache.getCached(file, contentType) == null) {
+			cache.setCached(file, contentType, new byte[1000], nanos);
+		}
+	}
+}
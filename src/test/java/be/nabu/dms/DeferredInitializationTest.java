@@ -0,0 +1,95 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.dms;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import be.nabu.libs.dms.api.Converter;
+import be.nabu.libs.dms.api.DocumentManager;
+import be.nabu.libs.dms.api.FormatException;
+import be.nabu.libs.dms.converters.XSLConverter;
+import be.nabu.libs.dms.utils.SPIConverterResolver;
+import junit.framework.TestCase;
+
+/**
+ * Creating resolvers and converters must be cheap, the expensive work is deferred until first use
+ */
+public class DeferredInitializationTest extends TestCase {
+	
+	public void testSharedResolver() {
+		assertSame(SPIConverterResolver.getInstance(), SPIConverterResolver.getInstance());
+	}
+	
+	public void testDeferredRouteTable() throws IOException {
+		File file = File.createTempFile("routes", ".table");
+		file.delete();
+		System.setProperty(SPIConverterResolver.PROPERTY_ROUTE_TABLE, file.getAbsolutePath());
+		try {
+			SPIConverterResolver resolver = new SPIConverterResolver(Arrays.<Converter>asList(new TestConverter("ab", "test/a", "test/b", true)));
+			assertFalse(file.exists());
+			assertTrue(resolver.canConvert("test/a", "test/b"));
+			assertTrue(file.exists());
+		}
+		finally {
+			System.clearProperty(SPIConverterResolver.PROPERTY_ROUTE_TABLE);
+			file.delete();
+		}
+	}
+	
+	public void testDeferredStylesheet() throws IOException {
+		// the stylesheet does not exist but that is only noticed when it is used
+		MissingStylesheetConverter converter = new MissingStylesheetConverter(new File("missing.xsl").toURI().toURL());
+		try {
+			converter.convert(null, null, new ByteArrayOutputStream(), null);
+			fail("The missing stylesheet should fail the conversion");
+		}
+		catch (FormatException e) {
+			// expected
+		}
+	}
+	
+	private static class MissingStylesheetConverter extends XSLConverter {
+		public MissingStylesheetConverter(URL xsl) throws IOException {
+			super(xsl, false);
+		}
+		@Override
+		public void convert(DocumentManager repository, be.nabu.libs.vfs.api.File file, OutputStream output, Map<String, String> properties) throws IOException, FormatException {
+			transform(new ByteArrayInputStream(new byte[0]), output, properties);
+		}
+		@Override
+		public List<String> getContentTypes() {
+			return Arrays.asList("test/a");
+		}
+		@Override
+		public String getOutputContentType() {
+			return "test/b";
+		}
+		@Override
+		public boolean isLossless() {
+			return true;
+		}
+	}
+}
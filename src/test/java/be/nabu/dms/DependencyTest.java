@@ -0,0 +1,147 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.dms;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import be.nabu.libs.dms.api.Converter;
+import be.nabu.libs.dms.api.DocumentManager;
+import be.nabu.libs.dms.api.FormatException;
+import be.nabu.libs.dms.converters.DXFToHTML;
+import be.nabu.libs.dms.converters.WikiToDXF;
+import be.nabu.libs.dms.utils.DMSUtils;
+import be.nabu.libs.dms.utils.DependencyGraph;
+import be.nabu.libs.dms.utils.DependencyGraph.Dependency;
+import be.nabu.libs.dms.utils.SPIConverterResolver;
+import be.nabu.libs.dms.utils.SimpleDocumentManager;
+import be.nabu.libs.dms.utils.TieredDocumentCacheManager;
+import be.nabu.libs.vfs.api.File;
+import junit.framework.TestCase;
+
+/**
+ * A cached result must be invalidated when one of the files it includes changes
+ */
+public class DependencyTest extends TestCase {
+	
+	private MemoryTree tree = new MemoryTree();
+	private SimpleDocumentManager manager = new SimpleDocumentManager(new SPIConverterResolver(Arrays.<Converter>asList(new WikiToDXF(), new DXFToHTML())));
+	private File page;
+	
+	@Override
+	protected void setUp() {
+		manager.setCacheManager(new TieredDocumentCacheManager(1024 * 1024, null, 0));
+		manager.getDependencyGraph().setCheckInterval(0);
+		tree.put("/shared/header", "The original header", WikiToDXF.WIKI_CONTENT_TYPE);
+		page = tree.put("/pages/page", "[:../shared/header]\n\nThe page", WikiToDXF.WIKI_CONTENT_TYPE);
+	}
+	
+	public void testModifiedInclude() throws IOException, FormatException {
+		String original = convert();
+		assertTrue(original.contains("The original header"));
+		assertEquals(original, convert());
+		assertEquals(Arrays.asList("/shared/header").toString(), manager.getDependencyGraph().getDependencies("/pages/page").toString());
+		tree.modify("/shared/header", "The modified header");
+		String modified = convert();
+		assertTrue(modified.contains("The modified header"));
+		assertTrue(modified.contains("The page"));
+	}
+	
+	public void testCheckInterval() throws IOException, FormatException {
+		manager.getDependencyGraph().setCheckInterval(60000);
+		convert();
+		// the first check happens on the next use, after that the dependencies are not checked for a minute
+		convert();
+		tree.modify("/shared/header", "The modified header");
+		assertTrue(convert().contains("The original header"));
+		manager.getDependencyGraph().setCheckInterval(0);
+		assertTrue(convert().contains("The modified header"));
+	}
+	
+	/**
+	 * A resource that is not a file can only be invalidated explicitly
+	 */
+	public void testExplicitInvalidation() throws IOException, FormatException, URISyntaxException {
+		final URI uri = new URI("datastore:resource");
+		final String [] resource = new String [] { "original" };
+		TestConverter converter = new TestConverter("ab", "test/a", "test/b", true) {
+			@Override
+			protected byte [] transform(DocumentManager repository, File file, byte [] content, Map<String, String> properties) throws IOException, FormatException {
+				DMSUtils.addDependency(repository, uri);
+				return (new String(content, "UTF-8") + "|" + resource[0]).getBytes("UTF-8");
+			}
+		};
+		SimpleDocumentManager manager = new SimpleDocumentManager(new SPIConverterResolver(Arrays.<Converter>asList(converter)));
+		manager.setCacheManager(new TieredDocumentCacheManager(1024 * 1024, null, 0));
+		File file = tree.put("/page", "page", "test/a");
+		assertEquals("page|original", convert(manager, file, "test/b"));
+		resource[0] = "modified";
+		assertEquals("page|original", convert(manager, file, "test/b"));
+		assertTrue(manager.invalidate(uri.toString()).contains("/page"));
+		assertEquals("page|modified", convert(manager, file, "test/b"));
+		assertEquals(2, converter.getConversions());
+	}
+	
+	/**
+	 * The version only depends on the recorded dependencies so it survives a restart
+	 */
+	public void testDeterministicVersion() throws IOException {
+		File header = tree.get("/shared/header");
+		DependencyGraph first = new DependencyGraph();
+		first.record("/pages/page", Arrays.asList(new Dependency(header), new Dependency("datastore:resource")));
+		DependencyGraph second = new DependencyGraph();
+		second.record("/pages/page", Arrays.asList(new Dependency("datastore:resource"), new Dependency(header)));
+		assertNotNull(first.getVersion("/pages/page"));
+		assertEquals(first.getVersion("/pages/page"), second.getVersion("/pages/page"));
+		String version = first.getVersion("/pages/page");
+		first.invalidate("datastore:resource");
+		assertFalse(version.equals(first.getVersion("/pages/page")));
+		tree.modify("/shared/header", "The modified header");
+		second.record("/pages/page", Arrays.asList(new Dependency(header)));
+		assertFalse(version.equals(second.getVersion("/pages/page")));
+	}
+	
+	public void testBounded() throws IOException {
+		DependencyGraph graph = new DependencyGraph();
+		graph.setMaxFiles(2);
+		File header = tree.get("/shared/header");
+		for (int i = 0; i < 5; i++) {
+			graph.record("/pages/" + i, Arrays.asList(new Dependency(header)));
+		}
+		assertEquals(2, graph.getSize());
+		assertNull(graph.getVersion("/pages/0"));
+		assertNotNull(graph.getVersion("/pages/4"));
+		// forgotten files are no longer invalidated
+		assertEquals(2, graph.invalidate("/shared/header").size());
+	}
+	
+	private String convert() throws IOException, FormatException {
+		return convert(manager, page, "text/html");
+	}
+	
+	private static String convert(SimpleDocumentManager manager, File file, String toContentType) throws IOException, FormatException {
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		manager.convert(file, toContentType, output, new HashMap<String, String>());
+		return new String(output.toByteArray(), "UTF-8");
+	}
+}
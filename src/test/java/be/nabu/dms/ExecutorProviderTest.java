@@ -0,0 +1,148 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+
+package be.nabu.dms;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import be.nabu.libs.dms.api.Converter;
+import be.nabu.libs.dms.api.FormatException;
+import be.nabu.libs.dms.utils.ConversionExecutorProvider;
+import be.nabu.libs.dms.utils.DefaultExecutorProvider;
+import be.nabu.libs.dms.utils.SPIConverterResolver;
+import be.nabu.libs.dms.utils.SimpleDocumentManager;
+import be.nabu.libs.vfs.api.File;
+import junit.framework.TestCase;
+
+/**
+ * The executors are created by the provider, the pipeline executor is bounded
+ */
+public class ExecutorProviderTest extends TestCase {
+	
+	private List<String> created = Collections.synchronizedList(new ArrayList<String>());
+	private AtomicInteger tasks = new AtomicInteger();
+	private ConversionExecutorProvider provider = new ConversionExecutorProvider() {
+		private DefaultExecutorProvider parent = new DefaultExecutorProvider();
+		@Override
+		public ExecutorService newExecutor(String name, int threads, int queueSize) {
+			created.add(name + ":" + threads + ":" + queueSize);
+			final ThreadPoolExecutor executor = (ThreadPoolExecutor) parent.newExecutor(name, threads, queueSize);
+			return new ThreadPoolExecutor(executor.getCorePoolSize(), executor.getMaximumPoolSize(), 60, TimeUnit.SECONDS, executor.getQueue()) {
+				@Override
+				protected void beforeExecute(Thread thread, Runnable runnable) {
+					tasks.incrementAndGet();
+				}
+			};
+		}
+		@Override
+		public ExecutorService newBatchExecutor(String name, int parallelism) {
+			return parent.newBatchExecutor(name, parallelism);
+		}
+	};
+	private MemoryTree tree = new MemoryTree();
+	private SimpleDocumentManager manager = new SimpleDocumentManager(new SPIConverterResolver(Arrays.<Converter>asList(
+		new TestConverter("ab", "test/a", "test/b", true),
+		new TestConverter("bc", "test/b", "test/c", true),
+		new TestConverter("cd", "test/c", "test/d", true)
+	)));
+	
+	@Override
+	protected void setUp() {
+		manager.setExecutorProvider(provider);
+	}
+	
+	@Override
+	protected void tearDown() {
+		manager.shutdown();
+	}
+	
+	public void testProvider() throws Exception {
+		manager.setAsyncThreads(3);
+		manager.setAsyncQueueSize(10);
+		assertEquals("page|ab", new String(manager.convertAsync(tree.put("/page", "page", "test/a"), "test/b", null).get(10, TimeUnit.SECONDS), "UTF-8"));
+		assertEquals(Arrays.asList("dms-async:3:0"), created);
+	}
+	
+	public void testBoundedPipeline() throws Exception {
+		manager.setPipelined(true);
+		manager.setPipelineThreads(4);
+		manager.getPipelineExecutor();
+		assertEquals(Arrays.asList("dms-pipeline:4:0"), created);
+	}
+	
+	/**
+	 * A chain that needs more threads than are available runs sequentially
+	 */
+	public void testSequentialFallback() throws Exception {
+		manager.setPipelined(true);
+		manager.setPipelineThreads(1);
+		assertEquals("page|ab|bc|cd", convert(tree.put("/page", "page", "test/a"), "test/d"));
+		assertEquals(0, tasks.get());
+		// a chain of two steps needs a single thread
+		assertEquals("page|ab|bc", convert(tree.get("/page"), "test/c"));
+		assertEquals(1, tasks.get());
+		assertEquals(1, manager.getPipelinePermits().availablePermits());
+	}
+	
+	/**
+	 * Concurrent chains share the pipeline threads, the ones that do not get them still finish
+	 */
+	public void testConcurrentChains() throws Exception {
+		manager.setPipelined(true);
+		manager.setPipelineThreads(2);
+		final File file = tree.put("/page", "page", "test/a");
+		ExecutorService callers = Executors.newFixedThreadPool(8);
+		try {
+			List<Future<String>> futures = new ArrayList<Future<String>>();
+			for (int i = 0; i < 32; i++) {
+				futures.add(callers.submit(new Callable<String>() {
+					@Override
+					public String call() throws Exception {
+						return convert(file, "test/d");
+					}
+				}));
+			}
+			for (Future<String> future : futures) {
+				assertEquals("page|ab|bc|cd", future.get(10, TimeUnit.SECONDS));
+			}
+		}
+		finally {
+			callers.shutdownNow();
+		}
+		assertTrue(((ThreadPoolExecutor) manager.getPipelineExecutor()).getLargestPoolSize() <= 2);
+		assertEquals(2, manager.getPipelinePermits().availablePermits());
+	}
+	
+	private String convert(File file, String toContentType) throws IOException, FormatException {
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		manager.convert(file, toContentType, output, null);
+		return new String(output.toByteArray(), "UTF-8");
+	}
+}
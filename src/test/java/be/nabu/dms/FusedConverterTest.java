@@ -0,0 +1,93 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+package be.nabu.dms;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import be.nabu.libs.dms.api.Converter;
+import be.nabu.libs.dms.api.DocumentManager;
+import be.nabu.libs.dms.api.FormatException;
+import be.nabu.libs.dms.converters.ChainConverter;
+import be.nabu.libs.dms.converters.DXFToHTML;
+import be.nabu.libs.dms.converters.MarkdownToDXF;
+import be.nabu.libs.dms.converters.MarkdownToHTML;
+import be.nabu.libs.dms.converters.WikiToDXF;
+import be.nabu.libs.dms.converters.WikiToHTML;
+import be.nabu.libs.dms.utils.SimpleDocumentManager;
+import be.nabu.libs.events.EventDispatcherFactory;
+import be.nabu.libs.vfs.api.File;
+import be.nabu.libs.vfs.api.FileSystem;
+import be.nabu.libs.vfs.resources.impl.ResourceFileSystem;
+import be.nabu.utils.io.ContentTypeMap;
+import junit.framework.TestCase;
+
+/**
+ * The fused converters must produce exactly the same output as the chains they replace
+ */
+public class FusedConverterTest extends TestCase {
+	
+	private FileSystem system;
+	private DocumentManager manager;
+	
+	public FusedConverterTest() throws IOException, URISyntaxException {
+		ContentTypeMap.register();
+		ContentTypeMap.getInstance().registerContentType(WikiToDXF.WIKI_CONTENT_TYPE, "wiki");
+		ContentTypeMap.getInstance().registerContentType(MarkdownToDXF.CONTENT_TYPE, "md");
+		system = new ResourceFileSystem(EventDispatcherFactory.getInstance().getEventDispatcher(), new URI("classpath:/"), null);
+		manager = new SimpleDocumentManager();
+	}
+	
+	public void testWikiToHTML() throws IOException, FormatException {
+		assertEquivalent(new WikiToHTML(), new WikiToDXF(), "test.wiki", null);
+		assertEquivalent(new WikiToHTML(), new WikiToDXF(), "test2.wiki", null);
+	}
+	
+	public void testMarkdownToHTML() throws IOException, FormatException {
+		assertEquivalent(new MarkdownToHTML(), new MarkdownToDXF(), "test.md", null);
+	}
+	
+	public void testProperties() throws IOException, FormatException {
+		Map<String, String> properties = new HashMap<String, String>();
+		properties.put("viewPath", "pages");
+		properties.put("downloadPath", "files");
+		assertEquivalent(new WikiToHTML(), new WikiToDXF(), "test.wiki", properties);
+		assertEquivalent(new MarkdownToHTML(), new MarkdownToDXF(), "test.md", properties);
+	}
+	
+	public void testResolverSubstitutes() {
+		assertTrue(manager.getConverter(WikiToDXF.WIKI_CONTENT_TYPE, "text/html") instanceof WikiToHTML);
+	}
+	
+	private void assertEquivalent(Converter fused, Converter toDXF, String name, Map<String, String> properties) throws IOException, FormatException {
+		File file = system.resolve(name);
+		List<Converter> steps = new ArrayList<Converter>();
+		steps.add(toDXF);
+		steps.add(new DXFToHTML());
+		ByteArrayOutputStream expected = new ByteArrayOutputStream();
+		new ChainConverter(steps).convert(manager, file, expected, properties == null ? null : new HashMap<String, String>(properties));
+		ByteArrayOutputStream actual = new ByteArrayOutputStream();
+		fused.convert(manager, file, actual, properties == null ? null : new HashMap<String, String>(properties));
+		assertEquals(new String(expected.toByteArray(), "UTF-8"), new String(actual.toByteArray(), "UTF-8"));
+	}
+}
@@ -0,0 +1,82 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.dms;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+
+import be.nabu.libs.dms.api.Converter;
+import be.nabu.libs.dms.api.FormatException;
+import be.nabu.libs.dms.utils.SPIConverterResolver;
+import be.nabu.libs.dms.utils.SimpleDocumentManager;
+import be.nabu.libs.dms.utils.TieredDocumentCacheManager;
+import be.nabu.libs.vfs.api.File;
+import junit.framework.TestCase;
+
+/**
+ * Chains to different targets that share a prefix must reuse the cached intermediate result
+ */
+public class IntermediateCacheTest extends TestCase {
+	
+	private TestConverter ab = new TestConverter("ab", "test/a", "test/b", true);
+	private TestConverter bc = new TestConverter("bc", "test/b", "test/c", true);
+	private TestConverter bd = new TestConverter("bd", "test/b", "test/d", true);
+	private SimpleDocumentManager manager = new SimpleDocumentManager(new SPIConverterResolver(Arrays.<Converter>asList(ab, bc, bd)));
+	private MemoryTree tree = new MemoryTree();
+	
+	@Override
+	protected void setUp() {
+		manager.setCacheManager(new TieredDocumentCacheManager(1024 * 1024, null, 0));
+		manager.getIntermediateCacheContentTypes().add("test/b");
+		// only the intermediate results are cached
+		manager.getCacheContentTypes().add("test/none");
+	}
+	
+	public void testSharedPrefix() throws IOException, FormatException {
+		File file = tree.put("/page", "page", "test/a");
+		assertEquals("page|ab|bc", convert(file, "test/c"));
+		assertEquals("page|ab|bd", convert(file, "test/d"));
+		assertEquals("page|ab|bc", convert(file, "test/c"));
+		assertEquals(1, ab.getConversions());
+		assertEquals(2, bc.getConversions());
+		assertEquals(1, bd.getConversions());
+	}
+	
+	public void testModified() throws IOException, FormatException {
+		File file = tree.put("/page", "page", "test/a");
+		assertEquals("page|ab|bc", convert(file, "test/c"));
+		tree.modify("/page", "modified");
+		assertEquals("modified|ab|bd", convert(file, "test/d"));
+		assertEquals(2, ab.getConversions());
+	}
+	
+	public void testDirectConversionNotCached() throws IOException, FormatException {
+		File file = tree.put("/page", "page", "test/a");
+		assertEquals("page|ab", convert(file, "test/b"));
+		assertEquals("page|ab|bc", convert(file, "test/c"));
+		assertEquals(2, ab.getConversions());
+	}
+	
+	private String convert(File file, String toContentType) throws IOException, FormatException {
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		manager.convert(file, toContentType, output, new HashMap<String, String>());
+		return new String(output.toByteArray(), "UTF-8");
+	}
+}
@@ -0,0 +1,226 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+
+package be.nabu.dms;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import be.nabu.libs.dms.api.Converter;
+import be.nabu.libs.dms.api.DocumentManager;
+import be.nabu.libs.dms.api.FormatException;
+import be.nabu.libs.dms.utils.ConversionLimiter;
+import be.nabu.libs.dms.utils.ConversionRejectedException;
+import be.nabu.libs.dms.utils.SPIConverterResolver;
+import be.nabu.libs.dms.utils.SimpleDocumentManager;
+import be.nabu.libs.dms.utils.TieredDocumentCacheManager;
+import be.nabu.libs.vfs.api.File;
+import junit.framework.TestCase;
+
+/**
+ * The limiter bounds the concurrent conversions per content type, nested conversions run under the permits of the outer one
+ */
+public class LimiterTest extends TestCase {
+	
+	private MemoryTree tree = new MemoryTree();
+	private ConversionLimiter limiter = new ConversionLimiter();
+	private ExecutorService executor = Executors.newFixedThreadPool(4);
+	
+	/**
+	 * A converter that includes the file named in its content (after "include:") through the document manager
+	 */
+	private static class IncludingConverter extends TestConverter {
+		private CountDownLatch latch;
+		
+		public IncludingConverter(String name, String fromContentType, String toContentType, CountDownLatch latch) {
+			super(name, fromContentType, toContentType, true);
+			this.latch = latch;
+		}
+		
+		@Override
+		protected byte [] transform(DocumentManager repository, File file, byte [] content, Map<String, String> properties) throws IOException, FormatException {
+			String string = new String(content, "UTF-8");
+			if (string.startsWith("include:")) {
+				if (latch != null) {
+					// make sure every outer conversion holds its permit before the includes start
+					latch.countDown();
+					try {
+						latch.await(10, TimeUnit.SECONDS);
+					}
+					catch (InterruptedException e) {
+						throw new IOException(e);
+					}
+				}
+				String [] parts = string.substring("include:".length()).split(">");
+				ByteArrayOutputStream output = new ByteArrayOutputStream();
+				repository.convert(file.getParent().resolve(parts[0]), parts[1], output, properties);
+				string = new String(output.toByteArray(), "UTF-8");
+			}
+			return super.transform(repository, file, string.getBytes("UTF-8"), properties);
+		}
+	}
+	
+	@Override
+	protected void setUp() {
+		// without nested conversions a conversion that waits too long fails instead of hanging the test
+		limiter.setTimeout(5000);
+	}
+	
+	@Override
+	protected void tearDown() {
+		executor.shutdownNow();
+	}
+	
+	public void testLimit() throws Exception {
+		final AtomicInteger running = new AtomicInteger(), maxRunning = new AtomicInteger();
+		TestConverter converter = new TestConverter("ab", "test/a", "test/b", true) {
+			@Override
+			protected byte [] transform(DocumentManager repository, File file, byte [] content, Map<String, String> properties) throws IOException, FormatException {
+				int current = running.incrementAndGet();
+				synchronized(maxRunning) {
+					maxRunning.set(Math.max(maxRunning.get(), current));
+				}
+				try {
+					Thread.sleep(20);
+				}
+				catch (InterruptedException e) {
+					throw new IOException(e);
+				}
+				finally {
+					running.decrementAndGet();
+				}
+				return super.transform(repository, file, content, properties);
+			}
+		};
+		SimpleDocumentManager manager = newManager(converter);
+		limiter.setContentTypeLimit("test/b", 2);
+		List<Future<String>> futures = new ArrayList<Future<String>>();
+		for (int i = 0; i < 12; i++) {
+			futures.add(convert(manager, tree.put("/page" + i, "page", "test/a"), "test/b"));
+		}
+		for (Future<String> future : futures) {
+			assertEquals("page|ab", future.get(10, TimeUnit.SECONDS));
+		}
+		assertTrue(maxRunning.get() <= 2);
+		assertEquals(Integer.valueOf(0), limiter.getActive().get("test/b"));
+	}
+	
+	public void testRejected() throws Exception {
+		final CountDownLatch started = new CountDownLatch(1), release = new CountDownLatch(1);
+		TestConverter converter = new TestConverter("ab", "test/a", "test/b", true) {
+			@Override
+			protected byte [] transform(DocumentManager repository, File file, byte [] content, Map<String, String> properties) throws IOException, FormatException {
+				started.countDown();
+				try {
+					release.await(10, TimeUnit.SECONDS);
+				}
+				catch (InterruptedException e) {
+					throw new IOException(e);
+				}
+				return super.transform(repository, file, content, properties);
+			}
+		};
+		SimpleDocumentManager manager = newManager(converter);
+		limiter.setContentTypeLimit("test/b", 1);
+		limiter.setTimeout(100);
+		Future<String> running = convert(manager, tree.put("/first", "first", "test/a"), "test/b");
+		assertTrue(started.await(10, TimeUnit.SECONDS));
+		try {
+			convert(manager, tree.put("/second", "second", "test/a"), "test/b").get(10, TimeUnit.SECONDS);
+			fail("The conversion should be rejected");
+		}
+		catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof ConversionRejectedException);
+		}
+		release.countDown();
+		assertEquals("first|ab", running.get(10, TimeUnit.SECONDS));
+		assertEquals(1, limiter.getRejections());
+	}
+	
+	/**
+	 * With a limit of one, a conversion whose include needs the same limit does not wait on itself
+	 */
+	public void testInclude() throws Exception {
+		SimpleDocumentManager manager = newManager(new IncludingConverter("ab", "test/a", "test/b", null));
+		limiter.setContentTypeLimit("test/b", 1);
+		tree.put("/header", "header", "test/a");
+		assertEquals("header|ab|ab", convert(manager, tree.put("/page", "include:header>test/b", "test/a"), "test/b").get(10, TimeUnit.SECONDS));
+	}
+	
+	/**
+	 * Two conversions that each hold the permit the include of the other one needs
+	 */
+	public void testCrossedIncludes() throws Exception {
+		CountDownLatch latch = new CountDownLatch(2);
+		SimpleDocumentManager manager = newManager(new IncludingConverter("ab", "test/a", "test/b", latch), new IncludingConverter("cd", "test/c", "test/d", latch));
+		limiter.setContentTypeLimit("test/b", 1);
+		limiter.setContentTypeLimit("test/d", 1);
+		tree.put("/first-include", "first", "test/c");
+		tree.put("/second-include", "second", "test/a");
+		Future<String> first = convert(manager, tree.put("/first", "include:first-include>test/d", "test/a"), "test/b");
+		Future<String> second = convert(manager, tree.put("/second", "include:second-include>test/b", "test/c"), "test/d");
+		assertEquals("first|cd|ab", first.get(10, TimeUnit.SECONDS));
+		assertEquals("second|ab|cd", second.get(10, TimeUnit.SECONDS));
+	}
+	
+	/**
+	 * The steps of a pipelined chain run on other threads than the one that holds the permits
+	 */
+	public void testPipelinedInclude() throws Exception {
+		SimpleDocumentManager manager = newManager(new IncludingConverter("ab", "test/a", "test/b", null), new TestConverter("bc", "test/b", "test/c", true));
+		manager.setPipelined(true);
+		limiter.setContentTypeLimit("test/c", 1);
+		tree.put("/header", "header", "test/a");
+		try {
+			assertEquals("header|ab|bc|ab|bc", convert(manager, tree.put("/page", "include:header>test/c", "test/a"), "test/c").get(10, TimeUnit.SECONDS));
+		}
+		finally {
+			manager.shutdown();
+		}
+	}
+	
+	private SimpleDocumentManager newManager(Converter...converters) {
+		SimpleDocumentManager manager = new SimpleDocumentManager(new SPIConverterResolver(Arrays.asList(converters)));
+		manager.setCacheManager(new TieredDocumentCacheManager(1024 * 1024, null, 0));
+		manager.setLimiter(limiter);
+		return manager;
+	}
+	
+	private Future<String> convert(final SimpleDocumentManager manager, final File file, final String toContentType) {
+		return executor.submit(new Callable<String>() {
+			@Override
+			public String call() throws Exception {
+				ByteArrayOutputStream output = new ByteArrayOutputStream();
+				manager.convert(file, toContentType, output, null);
+				return new String(output.toByteArray(), "UTF-8");
+			}
+		});
+	}
+}
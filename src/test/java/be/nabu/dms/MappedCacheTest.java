@@ -0,0 +1,153 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.dms;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+import be.nabu.libs.dms.utils.MappedDocumentCacheManager;
+import junit.framework.TestCase;
+
+/**
+ * The mapped cache serves results from its segment and compacts it when it is full
+ */
+public class MappedCacheTest extends TestCase {
+	
+	private MemoryTree tree = new MemoryTree();
+	private File directory;
+	
+	@Override
+	protected void setUp() throws IOException {
+		directory = File.createTempFile("segments", "");
+		directory.delete();
+	}
+	
+	@Override
+	protected void tearDown() {
+		for (File file : directory.listFiles()) {
+			file.delete();
+		}
+		directory.delete();
+	}
+	
+	public void testCached() throws IOException {
+		MappedDocumentCacheManager cache = new MappedDocumentCacheManager(directory, 1024);
+		be.nabu.libs.vfs.api.File file = tree.put("/page", "page", "test/a");
+		cache.setCached(file, "test/b", "result".getBytes("UTF-8"));
+		assertEquals("result", new String(cache.getCached(file, "test/b"), "UTF-8"));
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		assertTrue(cache.writeCached(file, "test/b", output));
+		assertEquals("result", new String(output.toByteArray(), "UTF-8"));
+		tree.modify("/page", "modified");
+		assertNull(cache.getCached(file, "test/b"));
+		assertEquals("result", new String(cache.getStale(file, "test/b"), "UTF-8"));
+		// too big for the segment
+		cache.setCached(file, "test/c", new byte[1000]);
+		assertNull(cache.getCached(file, "test/c"));
+	}
+	
+	public void testCompaction() throws IOException {
+		MappedDocumentCacheManager cache = new MappedDocumentCacheManager(directory, 1024);
+		be.nabu.libs.vfs.api.File file = tree.put("/page", "page", "test/a");
+		for (int i = 0; i < 20; i++) {
+			cache.setCached(file, "test/" + i, filled(200, i));
+		}
+		assertTrue(cache.getCompactions() > 0);
+		assertTrue(cache.getEvictions() > 0);
+		assertTrue(cache.getLiveSize() <= 1024);
+		assertNull(cache.getCached(file, "test/0"));
+		// the most recent entries survive the compactions intact
+		assertTrue(Arrays.equals(filled(200, 19), cache.getCached(file, "test/19")));
+		// only the current segment remains
+		assertEquals(1, directory.listFiles().length);
+	}
+	
+	public void testRetryDelete() throws IOException {
+		final int [] failures = new int [] { 1 };
+		MappedDocumentCacheManager cache = new MappedDocumentCacheManager(directory, 1024) {
+			@Override
+			protected boolean delete(File file) {
+				// simulates a platform that does not allow deleting a mapped file
+				if (failures[0]-- > 0) {
+					return false;
+				}
+				return super.delete(file);
+			}
+		};
+		be.nabu.libs.vfs.api.File file = tree.put("/page", "page", "test/a");
+		int i = 0;
+		while (cache.getCompactions() == 0) {
+			cache.setCached(file, "test/" + i++, new byte[200]);
+		}
+		assertEquals(1, cache.getRetiredSegments());
+		assertEquals(2, directory.listFiles().length);
+		while (cache.getCompactions() == 1) {
+			cache.setCached(file, "test/" + i++, new byte[200]);
+		}
+		assertEquals(0, cache.getRetiredSegments());
+		assertEquals(1, directory.listFiles().length);
+	}
+	
+	/**
+	 * If the kept entries and the new one together exceed the segment, more is evicted instead of overflowing the segment
+	 */
+	public void testLargeRatios() throws IOException {
+		MappedDocumentCacheManager cache = new MappedDocumentCacheManager(directory, 1024);
+		cache.setCompactionRatio(0.9);
+		cache.setMaxEntryRatio(0.5);
+		be.nabu.libs.vfs.api.File file = tree.put("/page", "page", "test/a");
+		for (int i = 0; i < 20; i++) {
+			cache.setCached(file, "test/" + i, filled(i % 2 == 0 ? 100 : 500, i));
+			assertTrue(Arrays.equals(filled(i % 2 == 0 ? 100 : 500, i), cache.getCached(file, "test/" + i)));
+			assertTrue(cache.getLiveSize() <= 1024);
+		}
+		assertTrue(cache.getCompactions() > 0);
+	}
+	
+	public void testInvalidRatios() throws IOException {
+		MappedDocumentCacheManager cache = new MappedDocumentCacheManager(directory, 1024);
+		for (double ratio : new double [] { -0.1, 1, 1.5 }) {
+			try {
+				cache.setCompactionRatio(ratio);
+				fail("Invalid compaction ratio: " + ratio);
+			}
+			catch (IllegalArgumentException e) {
+				// expected
+			}
+		}
+		for (double ratio : new double [] { 0, -1, 1.5 }) {
+			try {
+				cache.setMaxEntryRatio(ratio);
+				fail("Invalid maximum entry ratio: " + ratio);
+			}
+			catch (IllegalArgumentException e) {
+				// expected
+			}
+		}
+		assertEquals(0.5, cache.getCompactionRatio(), 0);
+		assertEquals(0.25, cache.getMaxEntryRatio(), 0);
+	}
+	
+	private static byte [] filled(int length, int value) {
+		byte [] bytes = new byte[length];
+		Arrays.fill(bytes, (byte) value);
+		return bytes;
+	}
+}
@@ -0,0 +1,130 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.dms;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Date;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import be.nabu.libs.vfs.api.File;
+
+/**
+ * An in memory tree of files for the tests, a file can be modified after it was resolved to test invalidation
+ */
+public class MemoryTree {
+
+	private Map<String, byte []> contents = new ConcurrentHashMap<String, byte []>();
+	private Map<String, Date> lastModified = new ConcurrentHashMap<String, Date>();
+	private Map<String, String> contentTypes = new ConcurrentHashMap<String, String>();
+	private long time = System.currentTimeMillis();
+	
+	public File put(String path, String content, String contentType) {
+		try {
+			contents.put(path, content.getBytes("UTF-8"));
+		}
+		catch (UnsupportedEncodingException e) {
+			throw new RuntimeException(e);
+		}
+		contentTypes.put(path, contentType);
+		// every modification gets a later timestamp, even within the same millisecond
+		synchronized(this) {
+			lastModified.put(path, new Date(time += 1000));
+		}
+		return get(path);
+	}
+	
+	/**
+	 * Changes the content of an existing file
+	 */
+	public File modify(String path, String content) {
+		return put(path, content, contentTypes.get(path));
+	}
+	
+	public void remove(String path) {
+		contents.remove(path);
+		lastModified.remove(path);
+		contentTypes.remove(path);
+	}
+	
+	/**
+	 * The files are proxies so they behave like files on a real file system, the document manager handles in memory fragments differently
+	 */
+	public File get(final String path) {
+		return (File) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?> [] { File.class }, new InvocationHandler() {
+			@Override
+			public Object invoke(Object proxy, Method method, Object [] args) throws Throwable {
+				String name = method.getName();
+				if (name.equals("getPath") || name.equals("toString")) {
+					return path;
+				}
+				else if (name.equals("getName")) {
+					return path.substring(path.lastIndexOf('/') + 1);
+				}
+				else if (name.equals("getContentType")) {
+					return contentTypes.get(path);
+				}
+				else if (name.equals("getInputStream")) {
+					byte [] content = contents.get(path);
+					if (content == null) {
+						throw new IOException("The file " + path + " does not exist");
+					}
+					return new ByteArrayInputStream(content);
+				}
+				else if (name.equals("getSize")) {
+					byte [] content = contents.get(path);
+					return content == null ? 0l : (long) content.length;
+				}
+				else if (name.equals("getLastModified")) {
+					return lastModified.get(path);
+				}
+				else if (name.equals("exists")) {
+					return contents.containsKey(path);
+				}
+				else if (name.equals("isFile")) {
+					return !path.endsWith("/");
+				}
+				else if (name.equals("getParent")) {
+					return get(path.substring(0, path.lastIndexOf('/', path.length() - 2) + 1));
+				}
+				else if (name.equals("resolve")) {
+					String link = (String) args[0];
+					String directory = path.endsWith("/") ? path : path.substring(0, path.lastIndexOf('/') + 1);
+					String resolved = link.startsWith("/") ? link : directory + link;
+					// normalize the parent references
+					while (resolved.contains("/../")) {
+						resolved = resolved.replaceFirst("/[^/]+/\\.\\./", "/");
+					}
+					return get(resolved);
+				}
+				else if (name.equals("equals")) {
+					return proxy == args[0];
+				}
+				else if (name.equals("hashCode")) {
+					return System.identityHashCode(proxy);
+				}
+				throw new UnsupportedOperationException(name);
+			}
+		});
+	}
+}
@@ -0,0 +1,117 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.dms;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import be.nabu.libs.dms.api.Converter;
+import be.nabu.libs.dms.api.DocumentManager;
+import be.nabu.libs.dms.api.FormatException;
+import be.nabu.libs.dms.converters.DXFToHTML;
+import be.nabu.libs.dms.converters.WikiToDXF;
+import be.nabu.libs.dms.utils.ConverterStatistics;
+import be.nabu.libs.dms.utils.SPIConverterResolver;
+import be.nabu.libs.dms.utils.SimpleDocumentManager;
+import be.nabu.libs.vfs.api.File;
+import junit.framework.TestCase;
+
+/**
+ * A pipelined chain must produce exactly the same output as the sequential chain
+ */
+public class PipelineTest extends TestCase {
+	
+	public void testWikiToHTML() throws IOException, FormatException {
+		StringBuilder page = new StringBuilder("h1. Pipelined\n\n");
+		for (int i = 0; i < 500; i++) {
+			page.append("A paragraph with some *bold* and _italic_ text that links to [page " + i + "|/pages/" + i + "].\n\n");
+		}
+		MemoryTree tree = new MemoryTree();
+		File file = tree.put("/pages/pipelined", page.toString(), WikiToDXF.WIKI_CONTENT_TYPE);
+		SPIConverterResolver resolver = new SPIConverterResolver(Arrays.<Converter>asList(new WikiToDXF(), new DXFToHTML()));
+		
+		String expected = convert(new SimpleDocumentManager(resolver), file, "text/html");
+		SimpleDocumentManager manager = new SimpleDocumentManager(resolver);
+		manager.setPipelined(true);
+		// a small buffer makes sure the steps actually wait on one another
+		manager.setPipelineBufferSize(256);
+		String actual = convert(manager, file, "text/html");
+		assertTrue(expected.contains("Pipelined"));
+		assertTrue(expected.length() > page.length());
+		assertEquals(expected, actual);
+	}
+	
+	public void testLongChain() throws IOException, FormatException {
+		StringBuilder content = new StringBuilder();
+		for (int i = 0; i < 100000; i++) {
+			content.append((char) ('a' + i % 26));
+		}
+		MemoryTree tree = new MemoryTree();
+		SimpleDocumentManager manager = new SimpleDocumentManager(new SPIConverterResolver(Arrays.<Converter>asList(
+			new TestConverter("ab", "test/a", "test/b", true),
+			new TestConverter("bc", "test/b", "test/c", true),
+			new TestConverter("cd", "test/c", "test/d", true)
+		)));
+		manager.setPipelined(true);
+		manager.setPipelineBufferSize(1024);
+		assertEquals(content + "|ab|bc|cd", convert(manager, tree.put("/long", content.toString(), "test/a"), "test/d"));
+	}
+	
+	public void testSingleUse() throws IOException, FormatException {
+		MemoryTree tree = new MemoryTree();
+		SimpleDocumentManager manager = new SimpleDocumentManager(new SPIConverterResolver(Arrays.<Converter>asList(
+			new TestConverter("ab", "test/a", "test/b", true),
+			new TestConverter("bc", "test/b", "test/c", true) {
+				@Override
+				protected byte [] transform(DocumentManager repository, File file, byte [] content, Map<String, String> properties) throws IOException {
+					// the streamed input can not be read again
+					InputStream input = file.getInputStream();
+					input.close();
+					return content;
+				}
+			}
+		)));
+		manager.setPipelined(true);
+		try {
+			convert(manager, tree.put("/twice", "twice", "test/a"), "test/c");
+			fail("A pipelined intermediate result can only be read once");
+		}
+		catch (IllegalStateException e) {
+			// expected
+		}
+	}
+	
+	public void testUnknownSizeNotMeasured() {
+		ConverterStatistics statistics = new ConverterStatistics();
+		Converter converter = new TestConverter("ab", "test/a", "test/b", true);
+		statistics.record(converter, 1000, -1, 100);
+		assertTrue(statistics.getCosts().isEmpty());
+		statistics.record(converter, 1000, 10, 100);
+		assertEquals(100d, statistics.getCosts().get(converter).getNanosPerByte(), 0.001);
+	}
+	
+	private static String convert(SimpleDocumentManager manager, File file, String toContentType) throws IOException, FormatException {
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		manager.convert(file, toContentType, output, new HashMap<String, String>());
+		return new String(output.toByteArray(), "UTF-8");
+	}
+}
@@ -0,0 +1,115 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.dms;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import be.nabu.libs.dms.api.Converter;
+import be.nabu.libs.dms.api.FormatException;
+import be.nabu.libs.dms.converters.PropertyAwareConverter;
+import be.nabu.libs.dms.utils.DMSUtils;
+import be.nabu.libs.dms.utils.SPIConverterResolver;
+import be.nabu.libs.dms.utils.SimpleDocumentManager;
+import be.nabu.libs.dms.utils.TieredDocumentCacheManager;
+import be.nabu.libs.vfs.api.File;
+import junit.framework.TestCase;
+
+/**
+ * Conversions with properties are cached under a key that only depends on the (relevant) properties, not on their order
+ */
+public class PropertiesCacheKeyTest extends TestCase {
+	
+	public void testCanonicalKey() {
+		Map<String, String> first = new LinkedHashMap<String, String>();
+		first.put("a", "1");
+		first.put("b", "2");
+		Map<String, String> second = new LinkedHashMap<String, String>();
+		second.put("b", "2");
+		second.put("a", "1");
+		assertEquals(DMSUtils.getCacheContentType("text/html", first), DMSUtils.getCacheContentType("text/html", second));
+		second.put("b", "3");
+		assertFalse(DMSUtils.getCacheContentType("text/html", first).equals(DMSUtils.getCacheContentType("text/html", second)));
+		assertEquals("text/html", DMSUtils.getCacheContentType("text/html", null));
+		assertEquals("text/html", DMSUtils.getCacheContentType("text/html", new HashMap<String, String>()));
+	}
+	
+	public void testUnambiguousKey() {
+		assertFalse(DMSUtils.getCacheContentType("text/html", properties("a", "b=c")).equals(DMSUtils.getCacheContentType("text/html", properties("a=b", "c"))));
+		assertFalse(DMSUtils.getCacheContentType("text/html", properties("a", "")).equals(DMSUtils.getCacheContentType("text/html", properties("a", null))));
+	}
+	
+	public void testCachedWithProperties() throws IOException, FormatException {
+		TestConverter converter = new TestConverter("ab", "test/a", "test/b", true);
+		SimpleDocumentManager manager = newManager(converter);
+		File file = new MemoryTree().put("/page", "page", "test/a");
+		convert(manager, file, properties("a", "1"));
+		convert(manager, file, properties("a", "1"));
+		assertEquals(1, converter.getConversions());
+		convert(manager, file, properties("a", "2"));
+		assertEquals(2, converter.getConversions());
+		convert(manager, file, null);
+		assertEquals(3, converter.getConversions());
+	}
+	
+	public void testRelevantProperties() throws IOException, FormatException {
+		TestConverter converter = new AwareConverter();
+		SimpleDocumentManager manager = newManager(converter);
+		File file = new MemoryTree().put("/page", "page", "test/a");
+		Map<String, String> properties = properties("relevant", "1");
+		properties.put("irrelevant", "1");
+		convert(manager, file, properties);
+		properties.put("irrelevant", "2");
+		convert(manager, file, properties);
+		assertEquals(1, converter.getConversions());
+		properties.put("relevant", "2");
+		convert(manager, file, properties);
+		assertEquals(2, converter.getConversions());
+	}
+	
+	private static SimpleDocumentManager newManager(Converter converter) {
+		SimpleDocumentManager manager = new SimpleDocumentManager(new SPIConverterResolver(Arrays.<Converter>asList(converter)));
+		manager.setCacheManager(new TieredDocumentCacheManager(1024 * 1024, null, 0));
+		return manager;
+	}
+	
+	private static void convert(SimpleDocumentManager manager, File file, Map<String, String> properties) throws IOException, FormatException {
+		manager.convert(file, "test/b", new ByteArrayOutputStream(), properties);
+	}
+	
+	private static Map<String, String> properties(String key, String value) {
+		Map<String, String> properties = new HashMap<String, String>();
+		properties.put(key, value);
+		return properties;
+	}
+	
+	private static class AwareConverter extends TestConverter implements PropertyAwareConverter {
+		public AwareConverter() {
+			super("ab", "test/a", "test/b", true);
+		}
+		@Override
+		public List<String> getRelevantProperties() {
+			return Arrays.asList("relevant");
+		}
+	}
+}
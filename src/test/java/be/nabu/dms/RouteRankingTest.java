@@ -0,0 +1,219 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.dms;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import be.nabu.libs.dms.api.Converter;
+import be.nabu.libs.dms.api.DocumentManager;
+import be.nabu.libs.dms.api.FormatException;
+import be.nabu.libs.dms.converters.ChainConverter;
+import be.nabu.libs.dms.converters.FusedConverter;
+import be.nabu.libs.dms.utils.SPIConverterResolver;
+import be.nabu.libs.dms.utils.SimpleDocumentManager;
+import be.nabu.libs.vfs.api.File;
+import junit.framework.TestCase;
+
+/**
+ * The routes are ranked by the measured cost of the converters
+ */
+public class RouteRankingTest extends TestCase {
+	
+	private TestConverter ab = new TestConverter("ab", "test/a", "test/b", true);
+	private TestConverter bc = new TestConverter("bc", "test/b", "test/c", true);
+	private TestConverter ac = new TestConverter("ac", "test/a", "test/c", true);
+	private TestConverter de = new TestConverter("de", "test/d", "test/e", true);
+	private SPIConverterResolver resolver = new SPIConverterResolver(Arrays.<Converter>asList(ab, bc, ac, de));
+	
+	public void testMeasuredCost() {
+		assertEquals("ac", resolver.getConverter("test/a", "test/c").toString());
+		measure(ac, 1000);
+		measure(ab, 10);
+		measure(bc, 10);
+		resolver.rank();
+		assertEquals("[ab, bc]", ((ChainConverter) resolver.getConverter("test/a", "test/c")).getChain().toString());
+	}
+	
+	/**
+	 * An expensive converter elsewhere in the graph must not make the unmeasured converters look expensive
+	 */
+	public void testUnmeasuredIsMedian() {
+		measure(ab, 10);
+		measure(bc, 10);
+		measure(de, 10000);
+		resolver.rank();
+		assertEquals("ac", resolver.getConverter("test/a", "test/c").toString());
+	}
+	
+	public void testLosslessAdvantage() {
+		TestConverter lossy = new TestConverter("lossy", "test/a", "test/b", false);
+		TestConverter first = new TestConverter("first", "test/a", "test/x", true);
+		TestConverter second = new TestConverter("second", "test/x", "test/b", true);
+		SPIConverterResolver resolver = new SPIConverterResolver(Arrays.<Converter>asList(lossy, first, second));
+		// a single lossy converter beats a chain of two lossless ones
+		assertEquals("lossy", resolver.getConverter("test/a", "test/b").toString());
+		// but not if it is more than 2 / 1.6 times as expensive
+		measure(resolver, lossy, 13);
+		measure(resolver, first, 10);
+		measure(resolver, second, 10);
+		resolver.rank();
+		assertEquals("[first, second]", ((ChainConverter) resolver.getConverter("test/a", "test/b")).getChain().toString());
+	}
+	
+	public void testBackgroundRanking() throws InterruptedException {
+		resolver.setRankingInterval(50);
+		assertEquals("ac", resolver.getConverter("test/a", "test/c").toString());
+		measure(ac, 1000);
+		measure(ab, 10);
+		measure(bc, 10);
+		Thread.sleep(100);
+		// the lookup that triggers the ranking does not wait for it
+		resolver.getConverter("test/a", "test/c");
+		long timeout = System.currentTimeMillis() + 5000;
+		while (!(resolver.getConverter("test/a", "test/c") instanceof ChainConverter) && System.currentTimeMillis() < timeout) {
+			Thread.sleep(10);
+		}
+		assertEquals("[ab, bc]", ((ChainConverter) resolver.getConverter("test/a", "test/c")).getChain().toString());
+	}
+	
+	/**
+	 * The cost of the converters is measured by actual conversions, a slow direct converter loses from a fast chain once it is measured
+	 */
+	public void testMeasuredConversions() throws IOException, FormatException {
+		TestConverter slow = new SlowConverter("ac", "test/a", "test/c", 20);
+		SPIConverterResolver resolver = new SPIConverterResolver(Arrays.<Converter>asList(ab, bc, slow));
+		resolver.getStatistics().setMinimumSamples(3);
+		SimpleDocumentManager manager = new SimpleDocumentManager(resolver);
+		MemoryTree tree = new MemoryTree();
+		File a = tree.put("/a", "content", "test/a");
+		File b = tree.put("/b", "content", "test/b");
+		for (int i = 0; i < 3; i++) {
+			assertEquals("content|ac", convert(manager, a, "test/c"));
+			assertEquals("content|ab", convert(manager, a, "test/b"));
+			assertEquals("content|bc", convert(manager, b, "test/c"));
+		}
+		assertEquals(3, resolver.getStatistics().getCosts().get(slow).getSamples());
+		resolver.rank();
+		assertEquals("content|ab|bc", convert(manager, a, "test/c"));
+		assertEquals(4, ab.getConversions());
+	}
+	
+	/**
+	 * The steps of a pipelined chain are measured by their cpu time
+	 */
+	public void testPipelinedConversions() throws IOException, FormatException {
+		SPIConverterResolver resolver = new SPIConverterResolver(Arrays.<Converter>asList(ab, bc));
+		SimpleDocumentManager manager = new SimpleDocumentManager(resolver);
+		manager.setPipelined(true);
+		MemoryTree tree = new MemoryTree();
+		File a = tree.put("/a", "content", "test/a");
+		for (int i = 0; i < 3; i++) {
+			assertEquals("content|ab|bc", convert(manager, a, "test/c"));
+		}
+		manager.shutdown();
+		assertEquals(3, resolver.getStatistics().getCosts().get(ab).getSamples());
+		assertEquals(3, resolver.getStatistics().getCosts().get(bc).getSamples());
+		// the second step reads the output of the first one
+		assertEquals("content|ab|bc".length() / (double) "content|ab".length(), resolver.getStatistics().getCosts().get(bc).getRatio(), 0.0001);
+	}
+	
+	/**
+	 * The converters that are only used as part of a fused converter get a share of its measured cost
+	 */
+	public void testFusedConversions() throws IOException, FormatException {
+		TestConverter first = new First(), second = new Second();
+		TestConverter ax = new TestConverter("ax", "test/a", "test/x", false);
+		TestConverter xc = new TestConverter("xc", "test/x", "test/c", false);
+		FusedSlowConverter fused = new FusedSlowConverter();
+		SPIConverterResolver resolver = new SPIConverterResolver(Arrays.<Converter>asList(first, second, ax, xc), Arrays.<FusedConverter>asList(fused));
+		resolver.getStatistics().setMinimumSamples(3);
+		SimpleDocumentManager manager = new SimpleDocumentManager(resolver);
+		MemoryTree tree = new MemoryTree();
+		File a = tree.put("/a", "content", "test/a");
+		File x = tree.put("/x", "content", "test/x");
+		for (int i = 0; i < 3; i++) {
+			assertEquals("content|fused", convert(manager, a, "test/c"));
+			assertEquals("content|ax", convert(manager, a, "test/x"));
+			assertEquals("content|xc", convert(manager, x, "test/c"));
+		}
+		assertEquals(0, first.getConversions());
+		resolver.rank();
+		assertEquals("content|ax|xc", convert(manager, a, "test/c"));
+	}
+	
+	private static String convert(SimpleDocumentManager manager, File file, String toContentType) throws IOException, FormatException {
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		manager.convert(file, toContentType, output, new HashMap<String, String>());
+		return new String(output.toByteArray(), "UTF-8");
+	}
+	
+	private static class SlowConverter extends TestConverter {
+		private long sleep;
+		public SlowConverter(String name, String fromContentType, String toContentType, long sleep) {
+			super(name, fromContentType, toContentType, true);
+			this.sleep = sleep;
+		}
+		@Override
+		protected byte [] transform(DocumentManager repository, File file, byte [] content, Map<String, String> properties) throws IOException, FormatException {
+			try {
+				Thread.sleep(sleep);
+			}
+			catch (InterruptedException e) {
+				throw new RuntimeException(e);
+			}
+			return super.transform(repository, file, content, properties);
+		}
+	}
+	
+	private static class First extends TestConverter {
+		public First() {
+			super("first", "test/a", "test/b", true);
+		}
+	}
+	
+	private static class Second extends TestConverter {
+		public Second() {
+			super("second", "test/b", "test/c", true);
+		}
+	}
+	
+	private static class FusedSlowConverter extends SlowConverter implements FusedConverter {
+		public FusedSlowConverter() {
+			super("fused", "test/a", "test/c", 20);
+		}
+		@Override
+		public List<Class<? extends Converter>> getFusedConverters() {
+			return Arrays.<Class<? extends Converter>>asList(First.class, Second.class);
+		}
+	}
+	
+	private void measure(Converter converter, long nanosPerByte) {
+		measure(resolver, converter, nanosPerByte);
+	}
+	
+	private static void measure(SPIConverterResolver resolver, Converter converter, long nanosPerByte) {
+		for (int i = 0; i < resolver.getStatistics().getMinimumSamples(); i++) {
+			resolver.getStatistics().record(converter, nanosPerByte * 1000, 1000, 1000);
+		}
+	}
+}
@@ -0,0 +1,100 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.dms;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import be.nabu.libs.dms.api.Converter;
+import be.nabu.libs.dms.converters.ChainConverter;
+import be.nabu.libs.dms.utils.SPIConverterResolver;
+import junit.framework.TestCase;
+
+/**
+ * The route table can be stored and is only reused as long as the registered converters do not change
+ */
+public class RouteTableTest extends TestCase {
+
+	private File file;
+	
+	@Override
+	protected void setUp() throws IOException {
+		file = File.createTempFile("routes", ".table");
+		file.delete();
+		System.setProperty(SPIConverterResolver.PROPERTY_ROUTE_TABLE, file.getAbsolutePath());
+	}
+	
+	@Override
+	protected void tearDown() {
+		System.clearProperty(SPIConverterResolver.PROPERTY_ROUTE_TABLE);
+		file.delete();
+	}
+	
+	public void testStoredTable() {
+		SPIConverterResolver resolver = new SPIConverterResolver(Arrays.<Converter>asList(
+			new TestConverter("ab", "test/a", "test/b", true),
+			new TestConverter("bc", "test/b", "test/c", true)
+		));
+		assertEquals("[ab, bc]", ((ChainConverter) resolver.getConverter("test/a", "test/c")).getChain().toString());
+		assertTrue(file.exists());
+		long stored = file.lastModified();
+		
+		// the same converters reuse the stored table
+		resolver = new SPIConverterResolver(Arrays.<Converter>asList(
+			new TestConverter("ab", "test/a", "test/b", true),
+			new TestConverter("bc", "test/b", "test/c", true)
+		));
+		assertEquals("[ab, bc]", ((ChainConverter) resolver.getConverter("test/a", "test/c")).getChain().toString());
+		assertTrue(resolver.canConvert("test/a", "test/c"));
+		assertFalse(resolver.canConvert("test/c", "test/a"));
+		assertEquals(stored, file.lastModified());
+	}
+	
+	public void testChangedConverters() {
+		new SPIConverterResolver(Arrays.<Converter>asList(
+			new TestConverter("ab", "test/a", "test/b", true),
+			new TestConverter("bc", "test/b", "test/c", true)
+		)).getConverter("test/a", "test/c");
+		assertTrue(file.exists());
+		
+		// a new converter changes the fingerprint so the stored table must be recalculated
+		SPIConverterResolver resolver = new SPIConverterResolver(Arrays.<Converter>asList(
+			new TestConverter("ab", "test/a", "test/b", true),
+			new TestConverter("bc", "test/b", "test/c", true),
+			new TestConverter("ca", "test/c", "test/a", true)
+		));
+		assertTrue(resolver.canConvert("test/c", "test/a"));
+		assertEquals("[bc, ca]", ((ChainConverter) resolver.getConverter("test/b", "test/a")).getChain().toString());
+	}
+	
+	public void testCorruptTable() throws IOException {
+		FileOutputStream output = new FileOutputStream(file);
+		try {
+			output.write("not a route table".getBytes("UTF-8"));
+		}
+		finally {
+			output.close();
+		}
+		SPIConverterResolver resolver = new SPIConverterResolver(Arrays.<Converter>asList(
+			new TestConverter("ab", "test/a", "test/b", true)
+		));
+		assertEquals("ab", resolver.getConverter("test/a", "test/b").toString());
+	}
+}
@@ -0,0 +1,79 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.dms;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+
+import be.nabu.libs.dms.api.Converter;
+import be.nabu.libs.dms.api.FormatException;
+import be.nabu.libs.dms.converters.ChainConverter;
+import be.nabu.libs.dms.utils.SPIConverterResolver;
+import be.nabu.libs.dms.utils.SimpleDocumentManager;
+import junit.framework.TestCase;
+
+/**
+ * The resolver must find the cheapest chain of converters between two content types
+ */
+public class RouteTest extends TestCase {
+	
+	private SPIConverterResolver resolver = new SPIConverterResolver(Arrays.<Converter>asList(
+		new TestConverter("ab", "test/a", "test/b", true),
+		new TestConverter("bc", "test/b", "test/c", true),
+		new TestConverter("cd", "test/c", "test/d", true),
+		// a lossy shortcut that is cheaper than the two lossless steps it replaces
+		new TestConverter("ac", "test/a", "test/c", false),
+		// a lossy shortcut that replaces a lossless and a lossy step
+		new TestConverter("be", "test/b", "test/e", true),
+		new TestConverter("ef", "test/e", "test/f", false),
+		new TestConverter("bf", "test/b", "test/f", false),
+		new TestConverter("xy", "test/x", "test/y", true)
+	));
+	
+	public void testDirect() {
+		assertEquals("ab", resolver.getConverter("test/a", "test/b").toString());
+	}
+	
+	public void testChain() {
+		Converter converter = resolver.getConverter("test/a", "test/d");
+		assertTrue(converter instanceof ChainConverter);
+		assertEquals("[ac, cd]", ((ChainConverter) converter).getChain().toString());
+	}
+	
+	public void testShortcut() {
+		assertEquals("ac", resolver.getConverter("test/a", "test/c").toString());
+		assertEquals("bf", resolver.getConverter("test/b", "test/f").toString());
+	}
+	
+	public void testUnreachable() {
+		assertNull(resolver.getConverter("test/a", "test/x"));
+		assertNull(resolver.getConverter("test/unknown", "test/a"));
+		assertFalse(resolver.canConvert("test/d", "test/a"));
+		assertTrue(resolver.canConvert("test/a", "test/f"));
+		assertTrue(resolver.canConvert("test/a", "test/a"));
+	}
+	
+	public void testConvert() throws IOException, FormatException {
+		MemoryTree tree = new MemoryTree();
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		new SimpleDocumentManager(resolver).convert(tree.put("/page", "page", "test/a"), "test/d", output, new HashMap<String, String>());
+		assertEquals("page|ac|cd", new String(output.toByteArray(), "UTF-8"));
+	}
+}
@@ -0,0 +1,273 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+
+package be.nabu.dms;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import be.nabu.libs.dms.api.Converter;
+import be.nabu.libs.dms.api.DocumentManager;
+import be.nabu.libs.dms.api.FormatException;
+import be.nabu.libs.dms.utils.CancellationToken;
+import be.nabu.libs.dms.utils.ConversionCancelledException;
+import be.nabu.libs.dms.utils.ConversionPriority;
+import be.nabu.libs.dms.utils.ConversionResult;
+import be.nabu.libs.dms.utils.PriorityScheduler;
+import be.nabu.libs.dms.utils.SPIConverterResolver;
+import be.nabu.libs.dms.utils.SimpleDocumentManager;
+import be.nabu.libs.vfs.api.File;
+import junit.framework.TestCase;
+
+/**
+ * The scheduler shares its workers between the priorities by weight and bounds the queue of each priority
+ */
+public class SchedulerTest extends TestCase {
+	
+	private ExecutorService executor = Executors.newCachedThreadPool();
+	private CountDownLatch started = new CountDownLatch(1), release = new CountDownLatch(1);
+	private List<String> executed = Collections.synchronizedList(new ArrayList<String>());
+	
+	/**
+	 * Occupies the only worker until it is released
+	 */
+	private Runnable blocker = new Runnable() {
+		@Override
+		public void run() {
+			started.countDown();
+			try {
+				release.await(10, TimeUnit.SECONDS);
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	};
+	
+	@Override
+	protected void tearDown() {
+		release.countDown();
+		executor.shutdownNow();
+	}
+	
+	public void testQueueBound() throws Exception {
+		PriorityScheduler scheduler = new PriorityScheduler(executor, 1, 2);
+		scheduler.execute(blocker, ConversionPriority.NORMAL);
+		assertTrue(started.await(10, TimeUnit.SECONDS));
+		scheduler.execute(task("first"), ConversionPriority.NORMAL);
+		scheduler.execute(task("second"), ConversionPriority.NORMAL);
+		try {
+			scheduler.execute(task("third"), ConversionPriority.NORMAL);
+			fail("The queue is full");
+		}
+		catch (RejectedExecutionException e) {
+			// expected
+		}
+		// every priority has its own queue
+		scheduler.execute(task("bulk"), ConversionPriority.BULK);
+		assertEquals(2, scheduler.getQueueDepth(ConversionPriority.NORMAL));
+		assertEquals(1, scheduler.getQueueDepth(ConversionPriority.BULK));
+		release.countDown();
+		waitForIdle(scheduler);
+		assertEquals(3, executed.size());
+		assertFalse(executed.contains("third"));
+	}
+	
+	/**
+	 * A task that starts a worker is not queued, so a full queue does not block it and a failed start leaves nothing behind
+	 */
+	public void testHandOff() throws Exception {
+		PriorityScheduler scheduler = new PriorityScheduler(executor, 2, 1);
+		scheduler.execute(blocker, ConversionPriority.NORMAL);
+		scheduler.execute(task("direct"), ConversionPriority.NORMAL);
+		assertEquals(0, scheduler.getQueueDepth(ConversionPriority.NORMAL));
+		
+		PriorityScheduler rejecting = new PriorityScheduler(new Executor() {
+			@Override
+			public void execute(Runnable command) {
+				throw new RejectedExecutionException("rejected");
+			}
+		}, 1, 1);
+		try {
+			rejecting.execute(task("rejected"), ConversionPriority.NORMAL);
+			fail("The worker could not be started");
+		}
+		catch (RejectedExecutionException e) {
+			// expected
+		}
+		assertEquals(0, rejecting.getActive());
+		assertEquals(0, rejecting.getQueueDepth(ConversionPriority.NORMAL));
+		release.countDown();
+		waitForIdle(scheduler);
+		assertEquals(Arrays.asList("direct"), executed);
+	}
+	
+	/**
+	 * While everything is busy, interactive work gets eight turns for every turn of bulk work
+	 */
+	public void testWeights() throws Exception {
+		PriorityScheduler scheduler = new PriorityScheduler(executor, 1, 100);
+		scheduler.execute(blocker, ConversionPriority.NORMAL);
+		assertTrue(started.await(10, TimeUnit.SECONDS));
+		for (int i = 0; i < 18; i++) {
+			scheduler.execute(task("interactive"), ConversionPriority.INTERACTIVE);
+			scheduler.execute(task("bulk"), ConversionPriority.BULK);
+		}
+		release.countDown();
+		waitForIdle(scheduler);
+		assertEquals(36, executed.size());
+		assertEquals(1, Collections.frequency(executed.subList(0, 9), "bulk"));
+		assertEquals(2, Collections.frequency(executed.subList(0, 18), "bulk"));
+	}
+	
+	/**
+	 * Cancelling the token of a scheduled batch stops the conversions that are still queued or not submitted
+	 */
+	public void testBatchCancellation() throws Exception {
+		TestConverter converter = new TestConverter("ab", "test/a", "test/b", true) {
+			@Override
+			protected byte [] transform(DocumentManager repository, File file, byte [] content, Map<String, String> properties) throws IOException, FormatException {
+				started.countDown();
+				try {
+					release.await(10, TimeUnit.SECONDS);
+				}
+				catch (InterruptedException e) {
+					throw new IOException(e);
+				}
+				return super.transform(repository, file, content, properties);
+			}
+		};
+		final SimpleDocumentManager manager = new SimpleDocumentManager(new SPIConverterResolver(Arrays.<Converter>asList(converter)));
+		manager.setAsyncThreads(1);
+		MemoryTree tree = new MemoryTree();
+		final List<File> files = new ArrayList<File>();
+		for (int i = 0; i < 10; i++) {
+			files.add(tree.put("/page" + i, "page", "test/a"));
+		}
+		final CancellationToken cancellation = new CancellationToken();
+		Future<List<ConversionResult>> future = executor.submit(new Callable<List<ConversionResult>>() {
+			@Override
+			public List<ConversionResult> call() {
+				return manager.convertBatch(files, Arrays.asList("test/b"), null, null, 3, ConversionPriority.BULK, cancellation);
+			}
+		});
+		try {
+			assertTrue(started.await(10, TimeUnit.SECONDS));
+			cancellation.cancel();
+			release.countDown();
+			List<ConversionResult> results = future.get(10, TimeUnit.SECONDS);
+			assertEquals(10, results.size());
+			// the running conversion does not check the token after it started
+			assertTrue(results.get(0).isSuccessful());
+			for (ConversionResult result : results.subList(1, results.size())) {
+				assertTrue(result.getFailure() instanceof ConversionCancelledException);
+			}
+			assertEquals(1, converter.getConversions());
+		}
+		finally {
+			manager.shutdown();
+		}
+	}
+	
+	/**
+	 * A task that fails with an error does not take its worker with it, the queued tasks still run
+	 */
+	public void testError() throws Exception {
+		PriorityScheduler scheduler = new PriorityScheduler(executor, 1, 10);
+		scheduler.execute(blocker, ConversionPriority.NORMAL);
+		assertTrue(started.await(10, TimeUnit.SECONDS));
+		scheduler.execute(new Runnable() {
+			@Override
+			public void run() {
+				throw new StackOverflowError();
+			}
+		}, ConversionPriority.NORMAL);
+		scheduler.execute(task("after"), ConversionPriority.NORMAL);
+		release.countDown();
+		waitForIdle(scheduler);
+		assertEquals(Arrays.asList("after"), executed);
+		scheduler.execute(task("again"), ConversionPriority.NORMAL);
+		waitForIdle(scheduler);
+		assertEquals(Arrays.asList("after", "again"), executed);
+	}
+	
+	/**
+	 * A conversion that fails with an error is reported in its result like any other failure
+	 */
+	public void testBatchError() throws InterruptedException {
+		TestConverter converter = new TestConverter("ab", "test/a", "test/b", true) {
+			@Override
+			protected byte [] transform(DocumentManager repository, File file, byte [] content, Map<String, String> properties) throws IOException, FormatException {
+				if (file.getPath().equals("/page1")) {
+					throw new StackOverflowError();
+				}
+				return super.transform(repository, file, content, properties);
+			}
+		};
+		SimpleDocumentManager manager = new SimpleDocumentManager(new SPIConverterResolver(Arrays.<Converter>asList(converter)));
+		manager.setAsyncThreads(1);
+		MemoryTree tree = new MemoryTree();
+		List<File> files = new ArrayList<File>();
+		for (int i = 0; i < 4; i++) {
+			files.add(tree.put("/page" + i, "page", "test/a"));
+		}
+		try {
+			List<ConversionResult> results = manager.convertBatch(files, Arrays.asList("test/b"), null, null, 1, ConversionPriority.BULK);
+			assertEquals(4, results.size());
+			assertTrue(results.get(1).getFailure() instanceof StackOverflowError);
+			for (int i : new int [] { 0, 2, 3 }) {
+				assertTrue(results.get(i).isSuccessful());
+				assertEquals("page|ab", new String(results.get(i).getContent()));
+			}
+			// the worker is released once it finds no more work
+			waitForIdle(manager.getScheduler());
+		}
+		finally {
+			manager.shutdown();
+		}
+	}
+	
+	private Runnable task(final String name) {
+		return new Runnable() {
+			@Override
+			public void run() {
+				executed.add(name);
+			}
+		};
+	}
+	
+	private static void waitForIdle(PriorityScheduler scheduler) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 10000;
+		while (scheduler.getActive() > 0 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		assertEquals(0, scheduler.getActive());
+	}
+}
@@ -0,0 +1,127 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.dms;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import be.nabu.libs.dms.api.Converter;
+import be.nabu.libs.dms.api.DocumentManager;
+import be.nabu.libs.dms.api.FormatException;
+import be.nabu.libs.dms.utils.SPIConverterResolver;
+import be.nabu.libs.dms.utils.SimpleDocumentManager;
+import be.nabu.libs.dms.utils.TieredDocumentCacheManager;
+import be.nabu.libs.vfs.api.File;
+import junit.framework.TestCase;
+
+/**
+ * Concurrent requests for the same conversion must run the converter only once and share its result
+ */
+public class SingleFlightTest extends TestCase {
+	
+	private static final int THREADS = 8;
+	
+	private CountDownLatch started = new CountDownLatch(1);
+	private CountDownLatch release = new CountDownLatch(1);
+	private volatile boolean failing;
+	private TestConverter converter = new TestConverter("ab", "test/a", "test/b", true) {
+		@Override
+		protected byte [] transform(DocumentManager repository, File file, byte [] content, Map<String, String> properties) throws IOException, FormatException {
+			started.countDown();
+			try {
+				release.await();
+			}
+			catch (InterruptedException e) {
+				throw new IOException(e);
+			}
+			if (failing) {
+				throw new FormatException("failed");
+			}
+			return super.transform(repository, file, content, properties);
+		}
+	};
+	private SimpleDocumentManager manager = new SimpleDocumentManager(new SPIConverterResolver(Arrays.<Converter>asList(converter)));
+	private ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+	
+	@Override
+	protected void setUp() {
+		manager.setCacheManager(new TieredDocumentCacheManager(1024 * 1024, null, 0));
+	}
+	
+	@Override
+	protected void tearDown() {
+		executor.shutdownNow();
+	}
+	
+	public void testShared() throws Exception {
+		List<Future<String>> futures = convertConcurrently(new MemoryTree().put("/page", "page", "test/a"));
+		for (Future<String> future : futures) {
+			assertEquals("page|ab", future.get(10, TimeUnit.SECONDS));
+		}
+		assertEquals(1, converter.getConversions());
+	}
+	
+	/**
+	 * If the shared conversion fails, the waiting callers run the conversion themselves
+	 */
+	public void testFailure() throws Exception {
+		failing = true;
+		List<Future<String>> futures = convertConcurrently(new MemoryTree().put("/page", "page", "test/a"));
+		int failures = 0;
+		for (Future<String> future : futures) {
+			try {
+				future.get(10, TimeUnit.SECONDS);
+			}
+			catch (Exception e) {
+				failures++;
+			}
+		}
+		assertEquals(THREADS, failures);
+		assertTrue(converter.getConversions() > 1);
+	}
+	
+	private List<Future<String>> convertConcurrently(final File file) throws InterruptedException {
+		List<Future<String>> futures = new ArrayList<Future<String>>();
+		for (int i = 0; i < THREADS; i++) {
+			futures.add(executor.submit(new Callable<String>() {
+				@Override
+				public String call() throws Exception {
+					ByteArrayOutputStream output = new ByteArrayOutputStream();
+					manager.convert(file, "test/b", output, new HashMap<String, String>());
+					return new String(output.toByteArray(), "UTF-8");
+				}
+			}));
+		}
+		// give the other threads the time to join the running conversion
+		assertTrue(started.await(10, TimeUnit.SECONDS));
+		Thread.sleep(200);
+		release.countDown();
+		return futures;
+	}
+}
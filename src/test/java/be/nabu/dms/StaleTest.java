@@ -0,0 +1,117 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+
+package be.nabu.dms;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import be.nabu.libs.dms.api.Converter;
+import be.nabu.libs.dms.utils.ConversionResult;
+import be.nabu.libs.dms.utils.SPIConverterResolver;
+import be.nabu.libs.dms.utils.SimpleDocumentManager;
+import be.nabu.libs.dms.utils.TieredDocumentCacheManager;
+import be.nabu.libs.vfs.api.File;
+import junit.framework.TestCase;
+
+/**
+ * A recently modified file is answered with its previous result while it is revalidated, the caller is told through the result
+ */
+public class StaleTest extends TestCase {
+	
+	private TestConverter converter = new TestConverter("ab", "test/a", "test/b", true);
+	private SimpleDocumentManager manager = new SimpleDocumentManager(new SPIConverterResolver(Arrays.<Converter>asList(converter)));
+	private MemoryTree tree = new MemoryTree();
+	
+	@Override
+	protected void setUp() {
+		manager.setCacheManager(new TieredDocumentCacheManager(1024 * 1024, null, 0));
+		manager.setMaxStaleness(60000);
+	}
+	
+	public void testStale() throws Exception {
+		File file = tree.put("/page", "v1", "test/a");
+		Map<String, String> properties = new HashMap<String, String>();
+		properties.put("key", "value");
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		ConversionResult result = manager.convert(file, "test/b", output, properties, null);
+		assertFalse(result.isStale());
+		assertEquals("v1|ab", new String(output.toByteArray(), "UTF-8"));
+		
+		tree.modify("/page", "v2");
+		output = new ByteArrayOutputStream();
+		result = manager.convert(file, "test/b", output, properties, null);
+		assertTrue(result.isStale());
+		assertEquals("v1|ab", new String(output.toByteArray(), "UTF-8"));
+		// the properties of the caller are left alone
+		assertEquals(Collections.singletonMap("key", "value"), properties);
+		
+		assertEquals("v2|ab", waitForFresh(file, properties));
+		assertEquals(2, converter.getConversions());
+	}
+	
+	/**
+	 * The caller may pass properties it does not allow to be modified
+	 */
+	public void testUnmodifiableProperties() throws Exception {
+		File file = tree.put("/page", "v1", "test/a");
+		Map<String, String> properties = Collections.unmodifiableMap(new HashMap<String, String>());
+		manager.convert(file, "test/b", new ByteArrayOutputStream(), properties, null);
+		tree.modify("/page", "v2");
+		assertTrue(manager.convert(file, "test/b", new ByteArrayOutputStream(), properties, null).isStale());
+		assertEquals("v2|ab", waitForFresh(file, properties));
+	}
+	
+	public void testAsync() throws Exception {
+		File file = tree.put("/page", "v1", "test/a");
+		assertFalse(manager.convertAsync(file, "test/b", new ByteArrayOutputStream(), null).get().isStale());
+		tree.modify("/page", "v2");
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		assertTrue(manager.convertAsync(file, "test/b", output, null).get().isStale());
+		assertEquals("v1|ab", new String(output.toByteArray(), "UTF-8"));
+	}
+	
+	/**
+	 * Without a maximum staleness every conversion is fresh
+	 */
+	public void testDisabled() throws Exception {
+		manager.setMaxStaleness(0);
+		File file = tree.put("/page", "v1", "test/a");
+		manager.convert(file, "test/b", new ByteArrayOutputStream(), null, null);
+		tree.modify("/page", "v2");
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		assertFalse(manager.convert(file, "test/b", output, null, null).isStale());
+		assertEquals("v2|ab", new String(output.toByteArray(), "UTF-8"));
+	}
+	
+	private String waitForFresh(File file, Map<String, String> properties) throws Exception {
+		long deadline = System.currentTimeMillis() + 10000;
+		while (System.currentTimeMillis() < deadline) {
+			ByteArrayOutputStream output = new ByteArrayOutputStream();
+			if (!manager.convert(file, "test/b", output, properties, null).isStale()) {
+				return new String(output.toByteArray(), "UTF-8");
+			}
+			Thread.sleep(10);
+		}
+		fail("The result was not revalidated");
+		return null;
+	}
+}
@@ -0,0 +1,94 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.dms;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import be.nabu.libs.dms.api.Converter;
+import be.nabu.libs.dms.api.DocumentManager;
+import be.nabu.libs.dms.api.FormatException;
+import be.nabu.libs.dms.utils.BufferPool;
+import be.nabu.libs.dms.utils.SPIConverterResolver;
+import be.nabu.libs.dms.utils.SimpleDocumentManager;
+import be.nabu.libs.dms.utils.TeeOutputStream;
+import be.nabu.libs.dms.utils.TieredDocumentCacheManager;
+import be.nabu.libs.vfs.api.File;
+import junit.framework.TestCase;
+
+/**
+ * A cache miss is streamed to the caller while it is copied for the cache
+ */
+public class StreamingCacheTest extends TestCase {
+	
+	private ByteArrayOutputStream output = new ByteArrayOutputStream();
+	
+	public void testTee() throws IOException {
+		TeeOutputStream tee = new TeeOutputStream(output, new BufferPool(1024 * 1024), 10);
+		tee.write("12345".getBytes("UTF-8"));
+		tee.write('6');
+		assertEquals("123456", new String(tee.getCopy().toByteArray(), "UTF-8"));
+		// the copy is dropped once it exceeds the limit, the output is not affected
+		tee.write("7890abc".getBytes("UTF-8"));
+		assertNull(tee.getCopy());
+		tee.write('d');
+		assertEquals("1234567890abcd", new String(output.toByteArray(), "UTF-8"));
+		tee.release();
+	}
+	
+	public void testStreamed() throws IOException, FormatException {
+		TestConverter converter = new TestConverter("ab", "test/a", "test/b", true) {
+			@Override
+			public void convert(DocumentManager repository, File file, OutputStream target, Map<String, String> properties) throws IOException, FormatException {
+				super.convert(repository, file, target, properties);
+				// the caller already has the output before the conversion is done
+				assertEquals("page|ab", new String(output.toByteArray(), "UTF-8"));
+			}
+		};
+		SimpleDocumentManager manager = newManager(converter);
+		File file = new MemoryTree().put("/page", "page", "test/a");
+		manager.convert(file, "test/b", output, new HashMap<String, String>());
+		ByteArrayOutputStream cached = new ByteArrayOutputStream();
+		manager.convert(file, "test/b", cached, new HashMap<String, String>());
+		assertEquals("page|ab", new String(cached.toByteArray(), "UTF-8"));
+		assertEquals(1, converter.getConversions());
+	}
+	
+	public void testSizeLimit() throws IOException, FormatException {
+		TestConverter converter = new TestConverter("ab", "test/a", "test/b", true);
+		SimpleDocumentManager manager = newManager(converter);
+		manager.setCacheSizeLimit(5);
+		File file = new MemoryTree().put("/page", "page", "test/a");
+		for (int i = 0; i < 2; i++) {
+			ByteArrayOutputStream output = new ByteArrayOutputStream();
+			manager.convert(file, "test/b", output, new HashMap<String, String>());
+			assertEquals("page|ab", new String(output.toByteArray(), "UTF-8"));
+		}
+		assertEquals(2, converter.getConversions());
+	}
+	
+	private static SimpleDocumentManager newManager(Converter converter) {
+		SimpleDocumentManager manager = new SimpleDocumentManager(new SPIConverterResolver(Arrays.<Converter>asList(converter)));
+		manager.setCacheManager(new TieredDocumentCacheManager(1024 * 1024, null, 0));
+		return manager;
+	}
+}
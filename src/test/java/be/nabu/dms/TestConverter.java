@@ -0,0 +1,104 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+package be.nabu.dms;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import be.nabu.libs.dms.api.Converter;
+import be.nabu.libs.dms.api.DocumentManager;
+import be.nabu.libs.dms.api.FormatException;
+import be.nabu.libs.vfs.api.File;
+
+/**
+ * A converter between two made up content types that appends its name to the input so the tests can see which converters were used
+ */
+public class TestConverter implements Converter {
+
+	private String name, fromContentType, toContentType;
+	private boolean lossless;
+	private AtomicInteger conversions = new AtomicInteger();
+	
+	public TestConverter(String name, String fromContentType, String toContentType, boolean lossless) {
+		this.name = name;
+		this.fromContentType = fromContentType;
+		this.toContentType = toContentType;
+		this.lossless = lossless;
+	}
+	
+	@Override
+	public void convert(DocumentManager repository, File file, OutputStream output, Map<String, String> properties) throws IOException, FormatException {
+		conversions.incrementAndGet();
+		InputStream input = file.getInputStream();
+		try {
+			ByteArrayOutputStream content = new ByteArrayOutputStream();
+			byte [] buffer = new byte[4096];
+			int read;
+			while ((read = input.read(buffer)) > 0) {
+				content.write(buffer, 0, read);
+			}
+			output.write(transform(repository, file, content.toByteArray(), properties));
+		}
+		finally {
+			input.close();
+		}
+	}
+	
+	/**
+	 * Calculates the output, by default the name of the converter is appended to the input
+	 */
+	protected byte [] transform(DocumentManager repository, File file, byte [] content, Map<String, String> properties) throws IOException, FormatException {
+		return (new String(content, "UTF-8") + "|" + name).getBytes("UTF-8");
+	}
+
+	@Override
+	public List<String> getContentTypes() {
+		return Arrays.asList(fromContentType);
+	}
+
+	@Override
+	public String getOutputContentType() {
+		return toContentType;
+	}
+
+	@Override
+	public boolean isLossless() {
+		return lossless;
+	}
+	
+	public String getName() {
+		return name;
+	}
+	
+	/**
+	 * How many times this converter actually ran
+	 */
+	public int getConversions() {
+		return conversions.get();
+	}
+	
+	@Override
+	public String toString() {
+		return name;
+	}
+}
@@ -0,0 +1,166 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+package be.nabu.dms;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+
+import be.nabu.libs.dms.MemoryFileFragment;
+import be.nabu.libs.dms.utils.TieredDocumentCacheManager;
+import be.nabu.libs.vfs.api.File;
+
+/**
+ * Fills the tiered cache with 10k and 100k renditions and reads them back with a skewed access pattern where a small set of documents is hot
+ * Afterwards it checks how well the memory tier protects the hot documents against a batch of one-off conversions and how it weighs the cost of a conversion
+ */
+public class TieredCacheBenchmark {
+
+	private static final int RENDITION_SIZE = 1024;
+	private static final int READS = 200000;
+	
+	public static void main(String...args) throws IOException {
+		for (int amount : new int [] { 10000, 100000 }) {
+			benchmark(amount);
+		}
+		scan();
+		cost();
+	}
+	
+	/**
+	 * A set of hot pages that fits in memory is read while a batch job converts 20k documents that are used only once
+	 */
+	private static void scan() {
+		TieredDocumentCacheManager cache = new TieredDocumentCacheManager(1000 * RENDITION_SIZE, null, 0);
+		byte [] content = new byte[RENDITION_SIZE];
+		List<File> hot = new ArrayList<File>();
+		for (int i = 0; i < 500; i++) {
+			hot.add(new BenchmarkFile("/hot/" + i + ".wiki"));
+		}
+		Random random = new Random(0);
+		int hits = 0, reads = 0;
+		for (int i = 0; i < 20000; i++) {
+			File batch = new BenchmarkFile("/batch/" + i + ".wiki");
+			if (cache.getCached(batch, "text/plain") == null) {
+				cache.setCached(batch, "text/plain", content);
+			}
+			File page = hot.get(random.nextInt(hot.size()));
+			reads++;
+			if (cache.getCached(page, "text/html") != null) {
+				hits++;
+			}
+			else {
+				cache.setCached(page, "text/html", content);
+			}
+		}
+		System.out.println("scan: " + (hits * 100 / reads) + "% hits on the hot pages during a batch of one-off conversions, " + cache);
+	}
+	
+	/**
+	 * Renditions of the same size and popularity but a different conversion time compete for a memory that holds half of them
+	 */
+	private static void cost() {
+		TieredDocumentCacheManager cache = new TieredDocumentCacheManager(1000 * RENDITION_SIZE, null, 0);
+		byte [] content = new byte[RENDITION_SIZE];
+		List<File> files = new ArrayList<File>();
+		for (int i = 0; i < 2000; i++) {
+			files.add(new BenchmarkFile("/documents/" + i + ".odt"));
+		}
+		Random random = new Random(0);
+		for (int i = 0; i < 50000; i++) {
+			int index = random.nextInt(files.size());
+			// the even documents are ten times as expensive to convert
+			String contentType = index % 2 == 0 ? "text/html" : "text/plain";
+			if (cache.getCached(files.get(index), contentType) == null) {
+				cache.setCached(files.get(index), contentType, content, index % 2 == 0 ? 10000000 : 1000000);
+			}
+		}
+		int expensive = 0, cheap = 0;
+		for (int i = 0; i < files.size(); i++) {
+			if (i % 2 == 0 && cache.getCached(files.get(i), "text/html") != null) {
+				expensive++;
+			}
+			else if (i % 2 == 1 && cache.getCached(files.get(i), "text/plain") != null) {
+				cheap++;
+			}
+		}
+		System.out.println("cost: " + expensive + " expensive and " + cheap + " cheap renditions in memory");
+	}
+	
+	private static void benchmark(int amount) throws IOException {
+		java.io.File directory = java.io.File.createTempFile("dms-cache", "");
+		directory.delete();
+		try {
+			// memory holds 10% of the renditions, disk holds half
+			TieredDocumentCacheManager cache = new TieredDocumentCacheManager(amount * RENDITION_SIZE / 10, directory, amount * (RENDITION_SIZE + 100) / 2);
+			List<File> files = new ArrayList<File>();
+			byte [] content = new byte[RENDITION_SIZE];
+			Arrays.fill(content, (byte) 'a');
+			long started = System.nanoTime();
+			for (int i = 0; i < amount; i++) {
+				File file = new BenchmarkFile("/documents/" + i + ".wiki");
+				files.add(file);
+				cache.setCached(file, "text/html", content);
+			}
+			long written = System.nanoTime() - started;
+			Random random = new Random(amount);
+			started = System.nanoTime();
+			for (int i = 0; i < READS; i++) {
+				// 80% of the reads go to 5% of the documents
+				int index = random.nextInt(10) < 8 ? random.nextInt(amount / 20) : random.nextInt(amount);
+				// like the document manager, a miss is converted and cached again
+				if (cache.getCached(files.get(index), "text/html") == null) {
+					cache.setCached(files.get(index), "text/html", content);
+				}
+			}
+			long read = System.nanoTime() - started;
+			System.out.println(amount + " renditions: " + (written / amount / 1000) + "us per write, " + (read / READS / 1000) + "us per read (including refills), " + cache);
+			// a new instance picks up what is on disk
+			started = System.nanoTime();
+			TieredDocumentCacheManager restarted = new TieredDocumentCacheManager(amount * RENDITION_SIZE / 10, directory, amount * (RENDITION_SIZE + 100) / 2);
+			System.out.println("\trestarted in " + ((System.nanoTime() - started) / 1000000) + "ms with " + restarted.getDiskSize() + " bytes on disk, first document cached: " + (restarted.getCached(files.get(0), "text/html") != null));
+		}
+		finally {
+			for (java.io.File file : directory.listFiles()) {
+				file.delete();
+			}
+			directory.delete();
+		}
+	}
+	
+	private static class BenchmarkFile extends MemoryFileFragment {
+		
+		private static final Date LAST_MODIFIED = new Date();
+		private String path;
+		
+		public BenchmarkFile(String path) {
+			super(null, new byte[0], path, "application/vnd-nabu-wiki");
+			this.path = path;
+		}
+		@Override
+		public String getPath() {
+			return path;
+		}
+		@Override
+		public Date getLastModified() {
+			return LAST_MODIFIED;
+		}
+	}
+}
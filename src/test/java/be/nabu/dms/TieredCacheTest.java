@@ -0,0 +1,168 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.dms;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import be.nabu.libs.dms.utils.TieredDocumentCacheManager;
+import junit.framework.TestCase;
+
+/**
+ * The tiered cache keeps small results in memory and spills to disk
+ */
+public class TieredCacheTest extends TestCase {
+	
+	private MemoryTree tree = new MemoryTree();
+	private File directory;
+	
+	@Override
+	protected void setUp() throws IOException {
+		directory = File.createTempFile("cache", "");
+		directory.delete();
+	}
+	
+	@Override
+	protected void tearDown() {
+		File [] files = directory.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				file.delete();
+			}
+		}
+		directory.delete();
+	}
+	
+	public void testMemory() throws IOException {
+		TieredDocumentCacheManager cache = new TieredDocumentCacheManager(1024 * 1024, null, 0);
+		be.nabu.libs.vfs.api.File file = tree.put("/page", "page", "test/a");
+		cache.setCached(file, "test/b", bytes("result"));
+		assertEquals("result", string(cache.getCached(file, "test/b")));
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		assertTrue(cache.writeCached(file, "test/b", output));
+		assertEquals("result", string(output.toByteArray()));
+		assertNull(cache.getCached(file, "test/c"));
+		// a modified file no longer matches the cached result
+		tree.modify("/page", "modified");
+		assertNull(cache.getCached(file, "test/b"));
+		assertEquals("result", string(cache.getStale(file, "test/b")));
+	}
+	
+	public void testCopy() throws IOException {
+		TieredDocumentCacheManager cache = new TieredDocumentCacheManager(1024 * 1024, null, 0);
+		be.nabu.libs.vfs.api.File file = tree.put("/page", "page", "test/a");
+		cache.setCached(file, "test/b", bytes("result"));
+		byte [] cached = cache.getCached(file, "test/b");
+		Arrays.fill(cached, (byte) 0);
+		assertEquals("result", string(cache.getCached(file, "test/b")));
+	}
+	
+	public void testDisk() throws IOException {
+		// too small for the results so they only live on disk
+		TieredDocumentCacheManager cache = new TieredDocumentCacheManager(8, directory, 1024 * 1024);
+		be.nabu.libs.vfs.api.File file = tree.put("/page", "page", "test/a");
+		cache.setCached(file, "test/b", bytes("a result that does not fit in memory"));
+		assertEquals("a result that does not fit in memory", string(cache.getCached(file, "test/b")));
+		assertEquals(1, cache.getDiskHits());
+		// the disk tier survives a restart
+		cache = new TieredDocumentCacheManager(8, directory, 1024 * 1024);
+		assertEquals("a result that does not fit in memory", string(cache.getCached(file, "test/b")));
+	}
+	
+	public void testDiskLimit() throws IOException {
+		TieredDocumentCacheManager cache = new TieredDocumentCacheManager(8, directory, 1024);
+		be.nabu.libs.vfs.api.File file = tree.put("/page", "page", "test/a");
+		for (int i = 0; i < 10; i++) {
+			cache.setCached(file, "test/" + i, new byte[200]);
+		}
+		assertTrue(cache.getDiskSize() <= 1024);
+		assertTrue(cache.getDiskEvictions() > 0);
+		assertNull(cache.getCached(file, "test/0"));
+		assertNotNull(cache.getCached(file, "test/9"));
+	}
+	
+	/**
+	 * A file that disappears from disk (e.g. because it is evicted concurrently) is a miss
+	 */
+	public void testDeletedFile() throws IOException {
+		TieredDocumentCacheManager cache = new TieredDocumentCacheManager(8, directory, 1024 * 1024);
+		be.nabu.libs.vfs.api.File file = tree.put("/page", "page", "test/a");
+		cache.setCached(file, "test/b", bytes("a result that does not fit in memory"));
+		for (File cached : directory.listFiles()) {
+			assertTrue(cached.delete());
+		}
+		assertNull(cache.getCached(file, "test/b"));
+		cache.setCached(file, "test/b", bytes("a result that does not fit in memory"));
+		assertNotNull(cache.getCached(file, "test/b"));
+	}
+	
+	/**
+	 * Reads that race with writes and evictions must either miss or return the complete result
+	 */
+	public void testConcurrentEviction() throws Exception {
+		final TieredDocumentCacheManager cache = new TieredDocumentCacheManager(8, directory, 4096);
+		final be.nabu.libs.vfs.api.File file = tree.put("/page", "page", "test/a");
+		ExecutorService executor = Executors.newFixedThreadPool(8);
+		try {
+			List<Future<Integer>> futures = new ArrayList<Future<Integer>>();
+			for (int i = 0; i < 8; i++) {
+				final int thread = i;
+				futures.add(executor.submit(new Callable<Integer>() {
+					@Override
+					public Integer call() throws IOException {
+						int hits = 0;
+						for (int j = 0; j < 500; j++) {
+							String contentType = "test/" + ((thread + j) % 20);
+							byte [] cached = cache.getCached(file, contentType);
+							if (cached != null) {
+								assertEquals(contentType + contentType + contentType, string(cached));
+								hits++;
+							}
+							else {
+								cache.setCached(file, contentType, bytes(contentType + contentType + contentType));
+							}
+						}
+						return hits;
+					}
+				}));
+			}
+			for (Future<Integer> future : futures) {
+				future.get();
+			}
+		}
+		finally {
+			executor.shutdown();
+		}
+	}
+	
+	private static byte [] bytes(String content) throws IOException {
+		return content.getBytes("UTF-8");
+	}
+	
+	private static String string(byte [] content) throws IOException {
+		return content == null ? null : new String(content, "UTF-8");
+	}
+}